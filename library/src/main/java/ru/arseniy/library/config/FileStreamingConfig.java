@@ -0,0 +1,66 @@
+package ru.arseniy.library.config;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.web.embedded.tomcat.TomcatServletWebServerFactory;
+import org.springframework.boot.web.server.WebServerFactoryCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.lang.NonNull;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+/**
+ * Конфигурация потоковой передачи файлов ({@code StreamingResponseBody}).
+ * <p>
+ * Содержимое файлов копируется в ответ в отдельном пуле потоков с ограниченным размером,
+ * а время асинхронной обработки запроса увеличено, чтобы не обрывать скачивание
+ * больших файлов на медленных соединениях.
+ * <p>
+ * Файлы, которые хранилище отдаёт асинхронно, пишутся в ответ без блокировки и без этого пула;
+ * время такой передачи ограничено таймаутом асинхронных запросов коннектора Tomcat, равным тому же значению.
+ */
+@Configuration
+@Slf4j
+public class FileStreamingConfig implements WebMvcConfigurer {
+
+    @Value("${app.files.streaming.max-threads:100}")
+    private int maxThreads;
+
+    @Value("${app.files.streaming.queue-capacity:100}")
+    private int queueCapacity;
+
+    @Value("${app.files.streaming.timeout-ms:1800000}")
+    private long timeoutMs;
+
+    /**
+     * Пул создаётся без регистрации бином, чтобы не подменять пул задач приложения по умолчанию
+     */
+    private ThreadPoolTaskExecutor createFileStreamingExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(maxThreads);
+        executor.setMaxPoolSize(maxThreads);
+        executor.setQueueCapacity(queueCapacity);
+        executor.setAllowCoreThreadTimeOut(true);
+        executor.setThreadNamePrefix("file-stream-");
+        executor.setDaemon(true);
+        executor.initialize();
+        log.info("Пул потоковой передачи файлов: {} потоков, очередь {}", maxThreads, queueCapacity);
+        return executor;
+    }
+
+    /**
+     * Таймаут коннектора применяется к асинхронным запросам, запущенным в обход Spring MVC
+     */
+    @Bean
+    public WebServerFactoryCustomizer<TomcatServletWebServerFactory> fileStreamingTimeoutCustomizer() {
+        return factory -> factory.addConnectorCustomizers(connector -> connector.setAsyncTimeout(timeoutMs));
+    }
+
+    @Override
+    public void configureAsyncSupport(@NonNull AsyncSupportConfigurer configurer) {
+        configurer.setTaskExecutor(createFileStreamingExecutor());
+        configurer.setDefaultTimeout(timeoutMs);
+    }
+}
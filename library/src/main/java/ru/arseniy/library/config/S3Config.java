@@ -2,15 +2,21 @@ package ru.arseniy.library.config;
 
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
 import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
 import software.amazon.awssdk.core.client.config.ClientOverrideConfiguration;
 import software.amazon.awssdk.core.retry.RetryPolicy;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
 import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.S3AsyncClientBuilder;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.S3ClientBuilder;
+import software.amazon.awssdk.services.s3.S3Configuration;
+import software.amazon.awssdk.services.s3.presigner.S3Presigner;
 
 import java.net.URI;
 import java.time.Duration;
@@ -19,6 +25,7 @@ import java.time.Duration;
  * Конфигурация для подключения к S3-совместимому хранилищу
  */
 @Configuration
+@ConditionalOnProperty(name = "app.files.storage.type", havingValue = "s3", matchIfMissing = true)
 @Slf4j
 public class S3Config {
 
@@ -40,6 +47,9 @@ public class S3Config {
     @Value("${aws.s3.force-path-style:false}")
     private boolean forcePathStyle;
 
+    @Value("${app.files.async.max-concurrent-downloads:200}")
+    private int maxConcurrentAsyncDownloads;
+
     /**
      * Создает и настраивает клиент для работы с S3
      *
@@ -83,4 +93,60 @@ public class S3Config {
         log.info("S3Client успешно инициализирован");
         return client;
     }
+
+    /**
+     * Создает асинхронный клиент S3 для неблокирующей отдачи файлов.
+     * Размер пула соединений совпадает с лимитом одновременных асинхронных скачиваний,
+     * поэтому скачивание в пределах лимита не ждёт свободного соединения.
+     *
+     * @return настроенный S3AsyncClient
+     */
+    @Bean(destroyMethod = "close")
+    public S3AsyncClient s3AsyncClient() {
+        S3AsyncClientBuilder builder = S3AsyncClient.builder()
+                .region(Region.of(region))
+                .credentialsProvider(StaticCredentialsProvider.create(
+                        AwsBasicCredentials.create(accessKey, secretKey)
+                ))
+                .httpClientBuilder(NettyNioAsyncHttpClient.builder()
+                        .maxConcurrency(maxConcurrentAsyncDownloads)
+                        .connectionAcquisitionTimeout(Duration.ofSeconds(10))
+                        .readTimeout(Duration.ofSeconds(30)))
+                .overrideConfiguration(ClientOverrideConfiguration.builder()
+                        .retryPolicy(RetryPolicy.builder().numRetries(3).build())
+                        .build())
+                .serviceConfiguration(S3Configuration.builder()
+                        .pathStyleAccessEnabled(pathStyleAccessEnabled || forcePathStyle)
+                        .build());
+
+        if (endpoint != null && !endpoint.isEmpty()) {
+            builder.endpointOverride(URI.create(endpoint));
+        }
+
+        log.info("Инициализация S3AsyncClient, соединений не более {}", maxConcurrentAsyncDownloads);
+        return builder.build();
+    }
+
+    /**
+     * Создает генератор подписанных ссылок на объекты S3 с теми же учетными данными и endpoint, что и S3Client
+     *
+     * @return настроенный S3Presigner
+     */
+    @Bean(destroyMethod = "close")
+    public S3Presigner s3Presigner() {
+        S3Presigner.Builder builder = S3Presigner.builder()
+                .region(Region.of(region))
+                .credentialsProvider(StaticCredentialsProvider.create(
+                        AwsBasicCredentials.create(accessKey, secretKey)
+                ))
+                .serviceConfiguration(S3Configuration.builder()
+                        .pathStyleAccessEnabled(pathStyleAccessEnabled || forcePathStyle)
+                        .build());
+
+        if (endpoint != null && !endpoint.isEmpty()) {
+            builder.endpointOverride(URI.create(endpoint));
+        }
+
+        return builder.build();
+    }
 }
@@ -0,0 +1,250 @@
+package ru.arseniy.library.controller;
+
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.extern.slf4j.Slf4j;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.springframework.http.HttpStatus;
+import ru.arseniy.library.service.StoredFile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Неблокирующая передача содержимого файла из асинхронного клиента хранилища в ответ сервлета.
+ * <p>
+ * Буферы запрашиваются у хранилища по одному и записываются в ответ, только когда контейнер готов
+ * принять их без блокировки ({@link WriteListener}). Пока файл передаётся, поток не занят ни ожиданием
+ * хранилища, ни ожиданием медленного клиента. Запись начинается после того, как поток обработки запроса
+ * вернётся в контейнер; время передачи ограничено таймаутом асинхронных запросов коннектора.
+ */
+@Slf4j
+final class AsyncFileWriter implements Subscriber<ByteBuffer> {
+
+    private final StoredFile storedFile;
+    private final AsyncContext asyncContext;
+    private final HttpServletResponse response;
+    private final ServletOutputStream out;
+
+    private Subscription subscription;
+    private ByteBuffer pending;
+    private boolean requested;
+    private boolean writable;
+    private boolean upstreamComplete;
+    private boolean draining;
+    private boolean finished;
+
+    private AsyncFileWriter(StoredFile storedFile, AsyncContext asyncContext, HttpServletResponse response)
+            throws IOException {
+        this.storedFile = storedFile;
+        this.asyncContext = asyncContext;
+        this.response = response;
+        this.out = response.getOutputStream();
+    }
+
+    /**
+     * Переводит запрос в асинхронный режим и начинает передачу содержимого файла.
+     * Статус и заголовки ответа должны быть установлены до вызова; файл закрывается после передачи.
+     *
+     * @param storedFile файл, читаемый асинхронно
+     * @param request текущий запрос, поддерживающий асинхронную обработку
+     * @param response текущий ответ
+     */
+    static void start(StoredFile storedFile, HttpServletRequest request, HttpServletResponse response) {
+        AsyncContext asyncContext = request.startAsync(request, response);
+        AsyncFileWriter writer;
+        try {
+            writer = new AsyncFileWriter(storedFile, asyncContext, response);
+        } catch (IOException e) {
+            log.warn("Не удалось начать асинхронную передачу файла {}: {}", storedFile.getKey(), e.getMessage());
+            closeQuietly(storedFile);
+            asyncContext.complete();
+            return;
+        }
+        ResponseListener listener = writer.new ResponseListener();
+        asyncContext.addListener(listener);
+        writer.out.setWriteListener(listener);
+        storedFile.takePublisher().subscribe(writer);
+    }
+
+    @Override
+    public void onSubscribe(Subscription subscription) {
+        boolean cancel;
+        synchronized (this) {
+            this.subscription = subscription;
+            cancel = finished;
+        }
+        if (cancel) {
+            subscription.cancel();
+            return;
+        }
+        drain();
+    }
+
+    @Override
+    public void onNext(ByteBuffer buffer) {
+        synchronized (this) {
+            pending = buffer;
+            requested = false;
+        }
+        drain();
+    }
+
+    @Override
+    public void onError(Throwable error) {
+        log.warn("Ошибка при чтении файла {} из хранилища: {}", storedFile.getKey(), error.getMessage());
+        finish(error, true);
+    }
+
+    @Override
+    public void onComplete() {
+        synchronized (this) {
+            upstreamComplete = true;
+        }
+        drain();
+    }
+
+    /**
+     * Записывает в ответ полученные буферы, пока контейнер принимает их без блокировки,
+     * и запрашивает у хранилища следующие. Повторный вызов из того же потока
+     * (хранилище может отдать буфер прямо в {@code request}) лишь оставляет буфер для текущего цикла.
+     */
+    private synchronized void drain() {
+        if (draining || finished || !writable) {
+            return;
+        }
+        draining = true;
+        try {
+            while (!finished) {
+                if (pending != null) {
+                    if (!out.isReady()) {
+                        return;
+                    }
+                    write(pending);
+                    pending = null;
+                } else if (upstreamComplete) {
+                    // Завершаем ответ, когда контейнер отправит всё записанное
+                    if (out.isReady()) {
+                        finish(null, true);
+                    }
+                    return;
+                } else if (!requested && subscription != null) {
+                    requested = true;
+                    subscription.request(1);
+                } else {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            log.debug("Клиент прервал скачивание файла {}: {}", storedFile.getKey(), e.getMessage());
+            finish(e, true);
+        } finally {
+            draining = false;
+        }
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        if (buffer.hasArray()) {
+            out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        } else {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Завершает передачу: при ошибке отменяет чтение из хранилища, затем закрывает файл и асинхронный запрос
+     *
+     * @param error причина прерывания или null, если файл передан целиком
+     * @param completeRequest false, если контейнер уже завершил асинхронный запрос
+     */
+    private void finish(Throwable error, boolean completeRequest) {
+        boolean first;
+        Subscription toCancel = null;
+        synchronized (this) {
+            first = !finished;
+            finished = true;
+            if (first) {
+                toCancel = error != null ? subscription : null;
+                pending = null;
+            }
+        }
+        if (first) {
+            if (toCancel != null) {
+                toCancel.cancel();
+            }
+            closeQuietly(storedFile);
+        }
+        if (!completeRequest) {
+            return;
+        }
+        if (first && error != null && !response.isCommitted()) {
+            response.reset();
+            response.setStatus(HttpStatus.BAD_GATEWAY.value());
+        }
+        // При ошибке запрос завершается и из AsyncListener#onError: иначе контейнер перенаправит его на страницу ошибки
+        try {
+            asyncContext.complete();
+        } catch (IllegalStateException e) {
+            log.debug("Асинхронный запрос для файла {} уже завершён", storedFile.getKey());
+        }
+    }
+
+    private static void closeQuietly(StoredFile storedFile) {
+        try {
+            storedFile.close();
+        } catch (IOException e) {
+            log.debug("Ошибка при закрытии файла {}: {}", storedFile.getKey(), e.getMessage());
+        }
+    }
+
+    /**
+     * События контейнера: готовность к записи, ошибки записи и завершение асинхронного запроса
+     */
+    private final class ResponseListener implements WriteListener, AsyncListener {
+
+        @Override
+        public void onWritePossible() {
+            synchronized (AsyncFileWriter.this) {
+                writable = true;
+            }
+            drain();
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            log.debug("Ошибка записи файла {} в ответ: {}", storedFile.getKey(), error.getMessage());
+            finish(error, true);
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            // Если контейнер завершил запрос раньше, чем файл передан, чтение из хранилища отменяется
+            finish(new IOException("Запрос завершён до окончания передачи"), false);
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            log.warn("Истекло время передачи файла {}", storedFile.getKey());
+            finish(new TimeoutException("Истекло время передачи файла"), true);
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            finish(event.getThrowable() != null ? event.getThrowable() : new IOException("Ошибка асинхронного запроса"),
+                    true);
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+    }
+}
@@ -69,11 +69,7 @@ public class BookController {
     @GetMapping("/popular")
     public ResponseEntity<List<BookDTO>> getPopularBooks(
             @RequestParam(defaultValue = "10") int limit) {
-        List<Book> popularBooks = bookService.getPopularBooks(limit);
-        List<BookDTO> bookDTOs = popularBooks.stream()
-                .map(BookDTO::fromEntity)
-                .collect(Collectors.toList());
-        return ResponseEntity.ok(bookDTOs);
+        return ResponseEntity.ok(bookService.getPopularBooks(limit));
     }
     
     @GetMapping("/search")
@@ -81,7 +77,7 @@ public class BookController {
             @RequestParam String query,
             @RequestParam(defaultValue = "0") int page,
             @RequestParam(defaultValue = "10") int size,
-            @RequestParam(defaultValue = "title") String sortBy,
+            @RequestParam(defaultValue = "relevance") String sortBy,
             @RequestParam(defaultValue = "asc") String direction,
             @RequestParam(required = false) Integer yearFrom,
             @RequestParam(required = false) Integer yearTo,
@@ -2,8 +2,11 @@ package ru.arseniy.library.controller;
 
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.io.IOUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.CacheControl;
+import org.springframework.http.ContentDisposition;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
@@ -11,21 +14,29 @@ import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import ru.arseniy.library.dto.MessageResponse;
 import ru.arseniy.library.exception.ResourceNotFoundException;
 import ru.arseniy.library.model.Book;
+import ru.arseniy.library.model.BookFile;
+import ru.arseniy.library.model.BookFileKind;
 import ru.arseniy.library.service.BookService;
+import ru.arseniy.library.service.CoverImage;
+import ru.arseniy.library.service.FileStorageService;
+import ru.arseniy.library.service.StoredFile;
 
 import java.io.IOException;
-import java.io.InputStream;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Контроллер для работы с файлами книг
  */
 @CrossOrigin(origins = "http://localhost:5173", allowCredentials = "true", 
-             allowedHeaders = {"Authorization", "Content-Type", "Accept", "Origin", "X-Requested-With"}, 
-             exposedHeaders = {"Access-Control-Allow-Origin", "Access-Control-Allow-Credentials", "Access-Control-Allow-Methods"},
+             allowedHeaders = {"Authorization", "Content-Type", "Accept", "Origin", "X-Requested-With", "Range", "If-Range", "If-None-Match"}, 
+             exposedHeaders = {"Access-Control-Allow-Origin", "Access-Control-Allow-Credentials", "Access-Control-Allow-Methods",
+                               "Accept-Ranges", "Content-Range", "Content-Length", "ETag", "Cache-Control"},
              methods = {RequestMethod.GET, RequestMethod.POST, RequestMethod.OPTIONS, RequestMethod.HEAD, RequestMethod.PUT, RequestMethod.DELETE})
 @RestController
 @RequestMapping("/api/books")
@@ -34,6 +45,20 @@ import java.util.Optional;
 public class BookFileController {
 
     private final BookService bookService;
+    private final FileStorageService fileStorageService;
+
+    /**
+     * Способ отдачи файлов: proxy — содержимое передаётся через приложение,
+     * redirect — клиент перенаправляется на временную подписанную ссылку хранилища
+     */
+    @Value("${app.files.delivery-mode:proxy}")
+    private String deliveryMode;
+
+    /**
+     * Сколько секунд браузер может показывать обложку без повторной проверки по ETag
+     */
+    @Value("${app.files.cover-cache.max-age-seconds:3600}")
+    private long coverMaxAgeSeconds;
 
     /**
      * Загружает файл книги
@@ -88,76 +113,86 @@ public class BookFileController {
      *
      * @param id идентификатор книги
      * @param ext расширение файла (pdf, epub, fb2 и т.д.)
-     * @return файл книги
+     * @param rangeHeader заголовок Range с запрошенными диапазонами байтов
+     * @param ifRange заголовок If-Range с ETag или датой изменения файла
+     * @return файл книги целиком или запрошенные диапазоны (206)
      */
     @GetMapping("/{id}/file")
-    public ResponseEntity<?> getBookFile(@PathVariable Integer id, @RequestParam(required = false) String ext) {
-        try {
-            // Сначала получаем информацию о книге для определения прямого URL
-            Book book = bookService.getBookById(id);
+    public ResponseEntity<StreamingResponseBody> getBookFile(@PathVariable Integer id, @RequestParam(required = false) String ext,
+                                                             @RequestHeader(value = HttpHeaders.RANGE, required = false) String rangeHeader,
+                                                             @RequestHeader(value = HttpHeaders.IF_RANGE, required = false) String ifRange) {
+        // Сначала получаем информацию о книге для определения прямого URL
+        Book book = bookService.getBookById(id);
+        
+        // Проверяем, есть ли прямой URL в книге
+        if (book.getFileUrl() != null && !book.getFileUrl().isEmpty() && 
+            (book.getFileUrl().startsWith("http://") || book.getFileUrl().startsWith("https://"))) {
             
-            // Проверяем, есть ли прямой URL в книге
-            if (book.getFileUrl() != null && !book.getFileUrl().isEmpty() && 
-                (book.getFileUrl().startsWith("http://") || book.getFileUrl().startsWith("https://"))) {
-                
-                log.info("Книга с ID {} имеет прямой URL к файлу: {}", id, book.getFileUrl());
-                
-                // Если URL уже полный и внешний, выполняем редирект на него
+            log.info("Книга с ID {} имеет прямой URL к файлу: {}", id, book.getFileUrl());
+            
+            // Если URL уже полный и внешний, выполняем редирект на него
+            return ResponseEntity.status(HttpStatus.FOUND)
+                    .header(HttpHeaders.LOCATION, book.getFileUrl())
+                    .build();
+        }
+        
+        // В режиме redirect клиент скачивает файл напрямую из хранилища по подписанной ссылке
+        if (isRedirectDelivery()) {
+            Optional<BookFile> bookFile = bookService.getBookFileInfo(id, BookFileKind.FILE);
+            if (bookFile.isPresent()) {
+                String contentType = ext != null && !ext.isEmpty()
+                        ? determineContentTypeByExtension(ext)
+                        : bookFile.get().getContentType();
+                String contentDisposition = contentType != null && isViewable(contentType)
+                        ? null
+                        : ContentDisposition.attachment().filename(getFileName(bookFile.get().getStorageKey())).build().toString();
+                Optional<String> presignedUrl = fileStorageService.getPresignedUrl(
+                        bookFile.get().getStorageKey(), contentType, contentDisposition);
+                if (presignedUrl.isPresent()) {
+                    return redirectTo(presignedUrl.get());
+                }
+            }
+        }
+        
+        // Иначе пытаемся получить файл через сервис; из хранилища читается только первый запрошенный диапазон
+        List<HttpRange> ranges = FileResponses.parseRanges(rangeHeader);
+        Optional<StoredFile> storedFile = bookService.getBookFile(id, ranges.isEmpty() ? null : ranges.get(0));
+        if (storedFile.isPresent()) {
+            log.info("Файл для книги с ID {} успешно найден", id);
+            
+            // Определяем Content-Type на основе расширения файла, метаданных объекта или URL
+            String contentType;
+            if (ext != null && !ext.isEmpty()) {
+                contentType = determineContentTypeByExtension(ext);
+            } else if (storedFile.get().getContentType() != null) {
+                contentType = storedFile.get().getContentType();
+            } else {
+                contentType = determineContentType(book.getFileUrl());
+            }
+            
+            // Подготавливаем заголовки ответа
+            HttpHeaders headers = new HttpHeaders();
+            headers.setContentType(MediaType.parseMediaType(contentType));
+            
+            // Определяем, должен ли файл скачиваться или просматриваться в браузере
+            if (!isViewable(contentType)) {
+                headers.setContentDispositionFormData("attachment", getFileName(book.getFileUrl()));
+            }
+            
+            // Передаём файл или запрошенные диапазоны потоком, не загружая их целиком в память
+            return FileResponses.ranged(storedFile.get(), ranges, ifRange, headers, fileStorageService);
+        } else {
+            log.warn("Файл для книги с ID {} не найден в локальном хранилище", id);
+            
+            // Проверяем, можно ли использовать внешний URL
+            if (book.getFileUrl() != null && !book.getFileUrl().isEmpty()) {
+                log.info("Пытаемся выполнить редирект на внешний URL: {}", book.getFileUrl());
                 return ResponseEntity.status(HttpStatus.FOUND)
                         .header(HttpHeaders.LOCATION, book.getFileUrl())
                         .build();
             }
             
-            // Иначе пытаемся получить файл через сервис
-            Optional<InputStream> fileStream = bookService.getBookFile(id);
-            if (fileStream.isPresent()) {
-                log.info("Файл для книги с ID {} успешно найден", id);
-                
-                // Определяем Content-Type на основе расширения файла или URL
-                String contentType;
-                if (ext != null && !ext.isEmpty()) {
-                    contentType = determineContentTypeByExtension(ext);
-                } else {
-                    contentType = determineContentType(book.getFileUrl());
-                }
-                
-                // Подготавливаем заголовки ответа
-                HttpHeaders headers = new HttpHeaders();
-                headers.setContentType(MediaType.parseMediaType(contentType));
-                
-                // Определяем, должен ли файл скачиваться или просматриваться в браузере
-                boolean isViewable = contentType.equals("application/pdf") || 
-                                     contentType.equals("application/epub+zip") ||
-                                     contentType.startsWith("image/");
-                
-                if (!isViewable) {
-                    headers.setContentDispositionFormData("attachment", getFileName(book.getFileUrl()));
-                }
-                
-                // Возвращаем файл
-                byte[] fileBytes = IOUtils.toByteArray(fileStream.get());
-                return new ResponseEntity<>(fileBytes, headers, HttpStatus.OK);
-            } else {
-                log.warn("Файл для книги с ID {} не найден в локальном хранилище", id);
-                
-                // Проверяем, можно ли использовать внешний URL
-                if (book.getFileUrl() != null && !book.getFileUrl().isEmpty()) {
-                    log.info("Пытаемся выполнить редирект на внешний URL: {}", book.getFileUrl());
-                    return ResponseEntity.status(HttpStatus.FOUND)
-                            .header(HttpHeaders.LOCATION, book.getFileUrl())
-                            .build();
-                }
-                
-                return ResponseEntity.status(HttpStatus.NOT_FOUND)
-                        .body(new MessageResponse("Файл книги не найден"));
-            }
-        } catch (ResourceNotFoundException e) {
-            log.error("Книга с ID {} не найдена: {}", id, e.getMessage());
-            return ResponseEntity.status(HttpStatus.NOT_FOUND).body(new MessageResponse(e.getMessage()));
-        } catch (IOException e) {
-            log.error("Ошибка при получении файла книги с ID {}: {}", id, e.getMessage(), e);
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
-                    .body(new MessageResponse("Ошибка при получении файла книги: " + e.getMessage()));
+            throw new ResourceNotFoundException("Файл книги не найден");
         }
     }
 
@@ -165,35 +200,48 @@ public class BookFileController {
      * Получает обложку книги
      *
      * @param id идентификатор книги
-     * @return файл обложки
+     * @param size ширина обложки в пикселях, нужная клиенту; если указана, отдаётся миниатюра не меньше этой ширины
+     * @param ifNoneMatch заголовок If-None-Match с ETag обложки, сохранённой в браузере
+     * @return файл обложки или ответ 304, если обложка не изменилась
      */
     @GetMapping("/{id}/cover")
-    public ResponseEntity<?> getBookCover(@PathVariable Integer id) {
-        try {
-            Optional<InputStream> fileStream = bookService.getBookCover(id);
-            if (fileStream.isPresent()) {
-                // Получаем информацию о книге для определения типа контента
-                Book book = bookService.getBookById(id);
-                String contentType = determineContentType(book.getCoverImageUrl());
-                
-                // Подготавливаем заголовки ответа
-                HttpHeaders headers = new HttpHeaders();
-                headers.setContentType(MediaType.parseMediaType(contentType));
-                
-                // Возвращаем файл
-                byte[] fileBytes = IOUtils.toByteArray(fileStream.get());
-                return new ResponseEntity<>(fileBytes, headers, HttpStatus.OK);
-            } else {
-                return ResponseEntity.status(HttpStatus.NOT_FOUND)
-                        .body(new MessageResponse("Обложка книги не найдена"));
+    public ResponseEntity<StreamingResponseBody> getBookCover(@PathVariable Integer id,
+                                                              @RequestParam(required = false) Integer size,
+                                                              @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        // В режиме redirect клиент скачивает обложку напрямую из хранилища по подписанной ссылке
+        if (isRedirectDelivery()) {
+            Optional<String> presignedUrl = bookService.getCoverThumbnailInfo(id, size)
+                    .flatMap(thumbnail -> fileStorageService.getPresignedUrl(thumbnail.getStorageKey(), thumbnail.getContentType(), null))
+                    .or(() -> bookService.getBookFileInfo(id, BookFileKind.COVER)
+                            .flatMap(cover -> fileStorageService.getPresignedUrl(cover.getStorageKey(), cover.getContentType(), null)));
+            if (presignedUrl.isPresent()) {
+                return redirectTo(presignedUrl.get());
             }
-        } catch (ResourceNotFoundException e) {
-            return ResponseEntity.status(HttpStatus.NOT_FOUND).body(new MessageResponse(e.getMessage()));
-        } catch (IOException e) {
-            log.error("Ошибка при получении обложки книги: {}", e.getMessage(), e);
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
-                    .body(new MessageResponse("Ошибка при получении обложки книги: " + e.getMessage()));
         }
+        
+        // Обложка берётся из кэша в памяти; в хранилище запрос уходит только при промахе
+        CoverImage cover = bookService.getBookCoverImage(id, size)
+                .orElseThrow(() -> new ResourceNotFoundException("Обложка книги не найдена"));
+        
+        // Подготавливаем заголовки ответа
+        HttpHeaders headers = new HttpHeaders();
+        headers.setETag(cover.getETag());
+        headers.setCacheControl(CacheControl.maxAge(coverMaxAgeSeconds, TimeUnit.SECONDS).cachePublic());
+        if (FileResponses.matchesIfNoneMatch(ifNoneMatch, cover.getETag())) {
+            return new ResponseEntity<>(headers, HttpStatus.NOT_MODIFIED);
+        }
+        
+        // Тип контента берём из метаданных объекта, а если их нет — по URL обложки
+        String contentType = cover.getContentType();
+        if (contentType == null) {
+            Book book = bookService.getBookById(id);
+            contentType = determineContentType(book.getCoverImageUrl());
+        }
+        headers.setContentType(MediaType.parseMediaType(contentType));
+        headers.setContentLength(cover.getContentLength());
+        
+        StreamingResponseBody body = cover::writeTo;
+        return new ResponseEntity<>(body, headers, HttpStatus.OK);
     }
 
     /**
@@ -239,6 +287,37 @@ public class BookFileController {
         }
     }
 
+    /**
+     * Возвращает true, если файлы отдаются перенаправлением на подписанные ссылки хранилища
+     */
+    private boolean isRedirectDelivery() {
+        return "redirect".equalsIgnoreCase(deliveryMode);
+    }
+
+    /**
+     * Формирует ответ с перенаправлением на подписанную ссылку
+     *
+     * @param url подписанная ссылка
+     * @return ответ 302
+     */
+    private ResponseEntity<StreamingResponseBody> redirectTo(String url) {
+        return ResponseEntity.status(HttpStatus.FOUND)
+                .header(HttpHeaders.LOCATION, url)
+                .build();
+    }
+
+    /**
+     * Определяет, может ли браузер показать файл, или его нужно скачивать
+     *
+     * @param contentType тип контента
+     * @return true, если файл можно просматривать в браузере
+     */
+    private boolean isViewable(String contentType) {
+        return contentType.equals("application/pdf") ||
+               contentType.equals("application/epub+zip") ||
+               contentType.startsWith("image/");
+    }
+
     /**
      * Определяет тип контента по расширению файла
      *
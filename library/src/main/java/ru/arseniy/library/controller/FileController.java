@@ -2,19 +2,24 @@ package ru.arseniy.library.controller;
 
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.core.io.InputStreamResource;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import ru.arseniy.library.service.CoverImageCache;
 import ru.arseniy.library.service.FileStorageService;
+import ru.arseniy.library.service.StoredFile;
+import ru.arseniy.library.service.impl.DiskFileCache;
+import ru.arseniy.library.service.impl.S3StreamingUploader;
 import org.springframework.web.bind.annotation.CrossOrigin;
 
-import java.io.InputStream;
 import java.util.Optional;
 
 /**
@@ -28,44 +33,88 @@ import java.util.Optional;
 public class FileController {
 
     private final FileStorageService fileStorageService;
+    private final DiskFileCache diskFileCache;
+    private final CoverImageCache coverImageCache;
+    /** Есть только при хранении файлов в S3 */
+    private final Optional<S3StreamingUploader> uploader;
+
+    @Value("${app.files.delivery-mode:proxy}")
+    private String deliveryMode;
+
+    /**
+     * Возвращает статистику локального дискового кэша файлов
+     *
+     * @return статистика кэша
+     */
+    @GetMapping("/cache/stats")
+    @PreAuthorize("hasRole('ROLE_ADMIN') or hasRole('ROLE_SUPERADMIN')")
+    public ResponseEntity<DiskFileCache.Statistics> getCacheStatistics() {
+        return ResponseEntity.ok(diskFileCache.getStatistics());
+    }
+
+    /**
+     * Возвращает статистику кэша обложек в памяти
+     *
+     * @return статистика кэша
+     */
+    @GetMapping("/cover-cache/stats")
+    @PreAuthorize("hasRole('ROLE_ADMIN') or hasRole('ROLE_SUPERADMIN')")
+    public ResponseEntity<CoverImageCache.Statistics> getCoverCacheStatistics() {
+        return ResponseEntity.ok(coverImageCache.getStatistics());
+    }
 
     /**
-     * Получает файл по ключу
+     * Возвращает статистику загрузок файлов в S3
      *
-     * @param key ключ файла
+     * @return статистика загрузок или 404, если файлы хранятся локально
+     */
+    @GetMapping("/uploads/stats")
+    @PreAuthorize("hasRole('ROLE_ADMIN') or hasRole('ROLE_SUPERADMIN')")
+    public ResponseEntity<S3StreamingUploader.Statistics> getUploadStatistics() {
+        return uploader.map(S3StreamingUploader::getStatistics)
+                .map(ResponseEntity::ok)
+                .orElseGet(() -> ResponseEntity.notFound().build());
+    }
+
+    /**
+     * Получает файл по ключу. Ключ может содержать «/» (например, books/&lt;книга&gt;/book_1.pdf)
+     *
+     * @param path ключ файла с ведущим «/»
      * @return файл, если найден
      */
-    @GetMapping("/{key:.+}")
-    public ResponseEntity<?> getFile(@PathVariable String key) {
+    @GetMapping("/{*path}")
+    public ResponseEntity<StreamingResponseBody> getFile(@PathVariable String path) {
+        String key = path.startsWith("/") ? path.substring(1) : path;
         log.info("Запрос на получение файла с ключом: {}", key);
         
-        try {
-            Optional<InputStream> fileStream = fileStorageService.getFile(key);
-            
-            if (fileStream.isEmpty()) {
-                log.warn("Файл не найден: {}", key);
-                return ResponseEntity.notFound().build();
+        // В режиме redirect клиент скачивает файл напрямую из хранилища по подписанной ссылке
+        if ("redirect".equalsIgnoreCase(deliveryMode)) {
+            Optional<String> presignedUrl = fileStorageService.getPresignedUrl(key, null, null);
+            if (presignedUrl.isPresent()) {
+                return ResponseEntity.status(HttpStatus.FOUND)
+                        .header(HttpHeaders.LOCATION, presignedUrl.get())
+                        .build();
             }
-            
-            // Определяем тип контента
-            String contentType = determineContentType(key);
-            
-            // Подготавливаем заголовки ответа
-            HttpHeaders headers = new HttpHeaders();
-            headers.setContentType(MediaType.parseMediaType(contentType));
-            
-            // Считываем файл в ресурс
-            InputStreamResource resource = new InputStreamResource(fileStream.get());
-            
-            return ResponseEntity.ok()
-                    .headers(headers)
-                    .body(resource);
-            
-        } catch (Exception e) {
-            log.error("Ошибка при получении файла: {}", e.getMessage(), e);
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
-                    .body("Ошибка при получении файла: " + e.getMessage());
         }
+        
+        Optional<StoredFile> storedFile = fileStorageService.getFile(key);
+        
+        if (storedFile.isEmpty()) {
+            log.warn("Файл не найден: {}", key);
+            return ResponseEntity.notFound().build();
+        }
+        
+        // Определяем тип контента
+        String contentType = storedFile.get().getContentType() != null
+                ? storedFile.get().getContentType()
+                : determineContentType(key);
+        
+        // Подготавливаем заголовки ответа
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.parseMediaType(contentType));
+        
+        // Передаём файл потоком, не загружая его целиком в память
+        return FileResponses.full(storedFile.get(), headers);
     }
     
     /**
@@ -0,0 +1,290 @@
+package ru.arseniy.library.controller;
+
+import jakarta.servlet.DispatcherType;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.util.MimeTypeUtils;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import ru.arseniy.library.exception.ResourceNotFoundException;
+import ru.arseniy.library.service.FileStorageService;
+import ru.arseniy.library.service.StoredFile;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Формирование потоковых ответов с содержимым файлов из хранилища,
+ * в том числе частичных ответов (206) на запросы с заголовком Range.
+ * <p>
+ * Запрошенные диапазоны передаются в хранилище, поэтому из него читаются только нужные байты.
+ * Несколько диапазонов отдаются как multipart/byteranges, каждый диапазон читается
+ * отдельным запросом к хранилищу по мере записи ответа.
+ * <p>
+ * Файлы из локального дискового кэша и локального хранилища передаются из открытого канала,
+ * поэтому файл может быть вытеснен или заменён во время передачи. Передача идёт через буфер
+ * выходного потока сервлета, а не через sendfile: открытый канал нельзя передать Tomcat.
+ * Файлы, которые хранилище отдаёт асинхронно, записываются в ответ без блокировки ({@link AsyncFileWriter}).
+ */
+@Slf4j
+final class FileResponses {
+
+    /**
+     * Максимальное количество диапазонов в одном запросе; при большем количестве файл отдаётся целиком
+     */
+    private static final int MAX_RANGES = 16;
+
+    private FileResponses() {
+    }
+
+    /**
+     * Разбирает заголовок Range. Некорректный заголовок игнорируется, как того требует RFC 9110.
+     *
+     * @param rangeHeader значение заголовка Range (может быть null)
+     * @return список диапазонов, пустой, если файл нужно отдать целиком
+     */
+    static List<HttpRange> parseRanges(String rangeHeader) {
+        if (rangeHeader == null || rangeHeader.isBlank()) {
+            return List.of();
+        }
+        try {
+            List<HttpRange> ranges = HttpRange.parseRanges(rangeHeader);
+            return ranges.size() <= MAX_RANGES ? ranges : List.of();
+        } catch (IllegalArgumentException e) {
+            log.warn("Некорректный заголовок Range '{}': {}", rangeHeader, e.getMessage());
+            return List.of();
+        }
+    }
+
+    /**
+     * Проверяет условие If-None-Match: ETag сравниваются без учёта признака слабого ETag, как того требует RFC 9110
+     *
+     * @param ifNoneMatch значение заголовка If-None-Match (может быть null)
+     * @param eTag текущий ETag ресурса
+     * @return true, если у клиента уже есть текущая версия ресурса
+     */
+    static boolean matchesIfNoneMatch(String ifNoneMatch, String eTag) {
+        if (ifNoneMatch == null || eTag == null) {
+            return false;
+        }
+        String current = stripWeakPrefix(eTag);
+        for (String candidate : ifNoneMatch.split(",")) {
+            String value = candidate.trim();
+            if ("*".equals(value) || stripWeakPrefix(value).equals(current)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Формирует ответ с файлом целиком
+     *
+     * @param storedFile файл из хранилища
+     * @param headers заголовки ответа
+     * @return ответ с содержимым файла
+     */
+    static ResponseEntity<StreamingResponseBody> full(StoredFile storedFile, HttpHeaders headers) {
+        addValidators(storedFile, headers);
+        if (storedFile.getContentLength() >= 0) {
+            headers.setContentLength(storedFile.getContentLength());
+        }
+        return respond(storedFile, headers, HttpStatus.OK);
+    }
+
+    /**
+     * Формирует ответ на запрос с диапазонами байтов.
+     * Если диапазонов нет, If-Range не совпадает с текущей версией файла или хранилище вернуло
+     * файл целиком, файл отдаётся целиком со статусом 200.
+     *
+     * @param storedFile файл, полученный из хранилища по первому диапазону
+     * @param ranges запрошенные диапазоны
+     * @param ifRange значение заголовка If-Range (может быть null)
+     * @param headers заголовки ответа
+     * @param fileStorageService хранилище для чтения остальных диапазонов
+     * @return ответ с содержимым файла или его частей
+     */
+    static ResponseEntity<StreamingResponseBody> ranged(StoredFile storedFile, List<HttpRange> ranges, String ifRange,
+                                                        HttpHeaders headers, FileStorageService fileStorageService) {
+        headers.set(HttpHeaders.ACCEPT_RANGES, "bytes");
+        if (ranges.isEmpty() || !storedFile.isPartial()) {
+            return full(storedFile, headers);
+        }
+        if (ifRange != null && !ifRangeMatches(ifRange, storedFile)) {
+            log.info("Файл {} изменился (If-Range: {}), отдаём его целиком", storedFile.getKey(), ifRange);
+            return full(refetchWhole(storedFile, fileStorageService), headers);
+        }
+
+        addValidators(storedFile, headers);
+        if (ranges.size() == 1) {
+            headers.set(HttpHeaders.CONTENT_RANGE, contentRange(storedFile.getRangeStart(),
+                    storedFile.getRangeEnd(), storedFile.getTotalLength()));
+            headers.setContentLength(storedFile.getContentLength());
+            return respond(storedFile, headers, HttpStatus.PARTIAL_CONTENT);
+        }
+        return multipart(storedFile, ranges, headers, fileStorageService);
+    }
+
+    private static ResponseEntity<StreamingResponseBody> multipart(StoredFile first, List<HttpRange> ranges,
+                                                                   HttpHeaders headers,
+                                                                   FileStorageService fileStorageService) {
+        long totalLength = first.getTotalLength();
+        List<HttpRange> parts = new ArrayList<>();
+        parts.add(HttpRange.createByteRange(first.getRangeStart(), first.getRangeEnd()));
+        long requestedLength = first.getContentLength();
+        for (HttpRange range : ranges.subList(1, ranges.size())) {
+            long start = range.getRangeStart(totalLength);
+            long end = range.getRangeEnd(totalLength);
+            // Диапазоны за пределами файла пропускаются, если хотя бы один диапазон выполним
+            if (start < totalLength && start <= end) {
+                parts.add(HttpRange.createByteRange(start, end));
+                requestedLength += end - start + 1;
+            }
+        }
+        // Перекрывающиеся диапазоны суммарно длиннее файла выгоднее отдать одним файлом
+        if (requestedLength > totalLength) {
+            log.info("Диапазоны для файла {} длиннее самого файла, отдаём его целиком", first.getKey());
+            return full(refetchWhole(first, fileStorageService), headers);
+        }
+
+        String boundary = MimeTypeUtils.generateMultipartBoundaryString();
+        MediaType partType = headers.getContentType() != null
+                ? headers.getContentType()
+                : MediaType.APPLICATION_OCTET_STREAM;
+        List<byte[]> partHeaders = new ArrayList<>(parts.size());
+        long contentLength = 0;
+        for (HttpRange part : parts) {
+            long start = part.getRangeStart(totalLength);
+            long end = part.getRangeEnd(totalLength);
+            byte[] partHeader = ("\r\n--" + boundary + "\r\n"
+                    + HttpHeaders.CONTENT_TYPE + ": " + partType + "\r\n"
+                    + HttpHeaders.CONTENT_RANGE + ": " + contentRange(start, end, totalLength) + "\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII);
+            partHeaders.add(partHeader);
+            contentLength += partHeader.length + end - start + 1;
+        }
+        byte[] closingBoundary = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+        contentLength += closingBoundary.length;
+
+        headers.setContentType(MediaType.parseMediaType("multipart/byteranges; boundary=" + boundary));
+        headers.setContentLength(contentLength);
+        StreamingResponseBody body = out -> {
+            try (first) {
+                for (int i = 0; i < parts.size(); i++) {
+                    out.write(partHeaders.get(i));
+                    if (i == 0) {
+                        first.transferTo(out);
+                        continue;
+                    }
+                    HttpRange range = parts.get(i);
+                    long expectedLength = range.getRangeEnd(totalLength) - range.getRangeStart(totalLength) + 1;
+                    StoredFile part = fileStorageService.getFile(first.getKey(), range)
+                            .orElseThrow(() -> new IOException("Файл " + first.getKey() + " больше не доступен"));
+                    if (part.getContentLength() != expectedLength || part.getTotalLength() != totalLength) {
+                        part.close();
+                        throw new IOException("Файл " + first.getKey() + " изменился во время передачи");
+                    }
+                    part.transferTo(out);
+                }
+                out.write(closingBoundary);
+            }
+        };
+        return new ResponseEntity<>(body, headers, HttpStatus.PARTIAL_CONTENT);
+    }
+
+    /**
+     * Формирует ответ с содержимым одного файла или диапазона.
+     * Если содержимое уже передаётся асинхронно, возвращает null: ответ сформирован без участия Spring MVC.
+     */
+    private static ResponseEntity<StreamingResponseBody> respond(StoredFile storedFile, HttpHeaders headers,
+                                                                 HttpStatus status) {
+        if (storedFile.hasPublisher() && startAsyncWrite(storedFile, headers, status)) {
+            return null;
+        }
+        StreamingResponseBody body = storedFile::transferTo;
+        return new ResponseEntity<>(body, headers, status);
+    }
+
+    /**
+     * Записывает статус и заголовки в ответ и начинает неблокирующую передачу файла
+     *
+     * @return false, если асинхронная передача невозможна для текущего запроса
+     */
+    private static boolean startAsyncWrite(StoredFile storedFile, HttpHeaders headers, HttpStatus status) {
+        if (!(RequestContextHolder.getRequestAttributes() instanceof ServletRequestAttributes attributes)
+                || attributes.getResponse() == null) {
+            return false;
+        }
+        HttpServletRequest request = attributes.getRequest();
+        HttpServletResponse response = attributes.getResponse();
+        if (!"GET".equals(request.getMethod()) || request.getDispatcherType() != DispatcherType.REQUEST
+                || !request.isAsyncSupported() || request.isAsyncStarted() || response.isCommitted()) {
+            return false;
+        }
+        response.setStatus(status.value());
+        headers.forEach((name, values) -> values.forEach(value -> response.addHeader(name, value)));
+        AsyncFileWriter.start(storedFile, request, response);
+        return true;
+    }
+
+    /**
+     * Проверяет условие If-Range: ETag сравнивается строго, дата — с точностью до секунды
+     */
+    private static boolean ifRangeMatches(String ifRange, StoredFile storedFile) {
+        String value = ifRange.trim();
+        if (value.startsWith("\"")) {
+            return value.equals(storedFile.getETag());
+        }
+        if (value.startsWith("W/") || storedFile.getLastModified() == null) {
+            return false;
+        }
+        try {
+            long date = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond();
+            return date == storedFile.getLastModified().getEpochSecond();
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Закрывает полученный диапазон и заново читает из хранилища файл целиком
+     */
+    private static StoredFile refetchWhole(StoredFile storedFile, FileStorageService fileStorageService) {
+        try {
+            storedFile.close();
+        } catch (IOException e) {
+            log.debug("Ошибка при закрытии файла {}: {}", storedFile.getKey(), e.getMessage());
+        }
+        return fileStorageService.getFile(storedFile.getKey())
+                .orElseThrow(() -> new ResourceNotFoundException("Файл не найден: " + storedFile.getKey()));
+    }
+
+    private static String stripWeakPrefix(String eTag) {
+        return eTag.startsWith("W/") ? eTag.substring(2) : eTag;
+    }
+
+    private static void addValidators(StoredFile storedFile, HttpHeaders headers) {
+        if (storedFile.getETag() != null) {
+            headers.set(HttpHeaders.ETAG, storedFile.getETag());
+        }
+        if (storedFile.getLastModified() != null) {
+            headers.setLastModified(storedFile.getLastModified());
+        }
+    }
+
+    private static String contentRange(long start, long end, long totalLength) {
+        return "bytes " + start + "-" + end + "/" + (totalLength >= 0 ? totalLength : "*");
+    }
+}
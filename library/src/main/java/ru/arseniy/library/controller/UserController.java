@@ -18,6 +18,7 @@ import ru.arseniy.library.model.Book;
 import ru.arseniy.library.model.ReadingHistory;
 import ru.arseniy.library.model.User;
 import ru.arseniy.library.security.services.UserDetailsImpl;
+import ru.arseniy.library.security.services.UserPrincipalCache;
 import ru.arseniy.library.service.UserService;
 
 import java.util.Set;
@@ -29,6 +30,9 @@ public class UserController {
     
     @Autowired
     private UserService userService;
+
+    @Autowired
+    private UserPrincipalCache userPrincipalCache;
     
     @GetMapping("/me")
     @PreAuthorize("hasRole('ROLE_USER') or hasRole('ROLE_ADMIN') or hasRole('ROLE_SUPERADMIN')")
@@ -222,6 +226,15 @@ public class UserController {
         }
     }
 
+    /**
+     * Получение статистики кэша пользователей для аутентификации по JWT (для администраторов)
+     */
+    @GetMapping("/admin/principal-cache/stats")
+    @PreAuthorize("hasRole('ROLE_ADMIN') or hasRole('ROLE_SUPERADMIN')")
+    public ResponseEntity<UserPrincipalCache.Statistics> getPrincipalCacheStatistics() {
+        return ResponseEntity.ok(userPrincipalCache.getStatistics());
+    }
+
     // DTO классы для статистики
     public static class UserStatistics {
         public final long totalUsers;
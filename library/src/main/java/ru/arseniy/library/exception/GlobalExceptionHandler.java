@@ -2,6 +2,7 @@ package ru.arseniy.library.exception;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.AccessDeniedException;
@@ -67,6 +68,17 @@ public class GlobalExceptionHandler {
         return new ResponseEntity<>(errors, HttpStatus.BAD_REQUEST);
     }
     
+    @ExceptionHandler(RangeNotSatisfiableException.class)
+    public ResponseEntity<?> rangeNotSatisfiableException(RangeNotSatisfiableException ex) {
+        logger.warn("Запрошенный диапазон недоступен: {}", ex.getMessage());
+        ResponseEntity.BodyBuilder response = ResponseEntity.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+                .header(HttpHeaders.ACCEPT_RANGES, "bytes");
+        if (ex.getTotalLength() >= 0) {
+            response.header(HttpHeaders.CONTENT_RANGE, "bytes */" + ex.getTotalLength());
+        }
+        return response.build();
+    }
+    
     @ExceptionHandler(Exception.class)
     public ResponseEntity<?> globalExceptionHandler(Exception ex, WebRequest request) {
         logger.error("Необработанное исключение: ", ex);
@@ -0,0 +1,22 @@
+package ru.arseniy.library.exception;
+
+import lombok.Getter;
+
+/**
+ * Запрошенный диапазон байтов не пересекается с содержимым файла
+ */
+@Getter
+public class RangeNotSatisfiableException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Полный размер файла в байтах или -1, если он неизвестен
+     */
+    private final long totalLength;
+
+    public RangeNotSatisfiableException(String message, long totalLength) {
+        super(message);
+        this.totalLength = totalLength;
+    }
+}
@@ -19,8 +19,13 @@ import lombok.EqualsAndHashCode;
 @EqualsAndHashCode(exclude = {"categories", "favoritedBy", "readingHistory"})
 public class Book {
 
+    /**
+     * ID выделяются из последовательности блоками по 50 (оптимизатор pooled), поэтому Hibernate
+     * может объединять вставки книг в JDBC-пакеты. Шаг последовательности задан в миграции V16.
+     */
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "books_id_seq")
+    @SequenceGenerator(name = "books_id_seq", sequenceName = "books_id_seq", allocationSize = 50)
     private Integer id;
 
     @Column(nullable = false)
@@ -0,0 +1,15 @@
+package ru.arseniy.library.model;
+
+/**
+ * Вид файла книги в хранилище
+ */
+public enum BookFileKind {
+    /**
+     * Файл с текстом книги
+     */
+    FILE,
+    /**
+     * Изображение обложки
+     */
+    COVER
+}
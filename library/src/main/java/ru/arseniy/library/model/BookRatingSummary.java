@@ -0,0 +1,33 @@
+package ru.arseniy.library.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import jakarta.persistence.*;
+
+/**
+ * Агрегированная информация о рейтингах книги (сумма, количество и среднее значение оценок).
+ * Поддерживается в актуальном состоянии сервисом рейтингов в той же транзакции,
+ * что и изменение самой оценки.
+ */
+@Entity
+@Table(name = "book_rating_summaries")
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class BookRatingSummary {
+
+    @Id
+    @Column(name = "book_id")
+    private Integer bookId;
+
+    @Column(name = "rating_sum", nullable = false)
+    private Long ratingSum;
+
+    @Column(name = "ratings_count", nullable = false)
+    private Integer ratingsCount;
+
+    @Column(name = "average_rating", nullable = false)
+    private Double averageRating;
+}
@@ -0,0 +1,26 @@
+package ru.arseniy.library.model;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.hibernate.annotations.Immutable;
+
+import jakarta.persistence.*;
+
+/**
+ * Поисковый документ книги — взвешенный tsvector, вычисляемый PostgreSQL.
+ * Отображается на ту же таблицу books только для чтения, чтобы колонка search_vector
+ * участвовала в поисковых запросах, но не загружалась вместе с книгой.
+ */
+@Entity
+@Immutable
+@Table(name = "books")
+@Data
+@NoArgsConstructor
+public class BookSearchDocument {
+
+    @Id
+    private Integer id;
+
+    @Column(name = "search_vector", columnDefinition = "tsvector", insertable = false, updatable = false)
+    private String searchVector;
+}
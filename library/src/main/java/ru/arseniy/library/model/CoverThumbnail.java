@@ -0,0 +1,50 @@
+package ru.arseniy.library.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import jakarta.persistence.*;
+import java.time.LocalDateTime;
+
+/**
+ * Миниатюра обложки книги фиксированной ширины
+ */
+@Entity
+@Table(name = "cover_thumbnails")
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class CoverThumbnail {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Integer id;
+
+    @Column(name = "book_id", nullable = false)
+    private Integer bookId;
+
+    /**
+     * Ширина миниатюры в пикселях
+     */
+    @Column(nullable = false)
+    private Integer width;
+
+    @Column(name = "storage_key", nullable = false, length = 1024)
+    private String storageKey;
+
+    @Column(name = "content_type", nullable = false)
+    private String contentType;
+
+    @Column(name = "size_bytes", nullable = false)
+    private Long sizeBytes;
+
+    /**
+     * ETag обложки, из которой получена миниатюра
+     */
+    @Column(name = "source_etag")
+    private String sourceETag;
+
+    @Column(name = "created_at", nullable = false)
+    private LocalDateTime createdAt;
+}
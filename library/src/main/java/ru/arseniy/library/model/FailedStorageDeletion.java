@@ -0,0 +1,41 @@
+package ru.arseniy.library.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import jakarta.persistence.*;
+import java.time.LocalDateTime;
+
+/**
+ * Объект хранилища, который не удалось удалить за все попытки
+ */
+@Entity
+@Table(name = "failed_storage_deletions")
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class FailedStorageDeletion {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(name = "storage_key", nullable = false, length = 1024)
+    private String storageKey;
+
+    @Column(nullable = false)
+    private Integer attempts;
+
+    @Column(name = "last_error", length = 1024)
+    private String lastError;
+
+    /**
+     * Время постановки объекта в очередь на удаление
+     */
+    @Column(name = "created_at", nullable = false)
+    private LocalDateTime createdAt;
+
+    @Column(name = "failed_at", nullable = false)
+    private LocalDateTime failedAt;
+}
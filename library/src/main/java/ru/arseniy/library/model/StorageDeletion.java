@@ -0,0 +1,44 @@
+package ru.arseniy.library.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import jakarta.persistence.*;
+import java.time.LocalDateTime;
+
+/**
+ * Объект хранилища, ожидающий удаления
+ */
+@Entity
+@Table(name = "storage_deletions")
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class StorageDeletion {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(name = "storage_key", nullable = false, length = 1024)
+    private String storageKey;
+
+    /**
+     * Количество неудачных попыток удаления
+     */
+    @Column(nullable = false)
+    private Integer attempts;
+
+    /**
+     * Время, не раньше которого объект можно удалять (следующая попытка или истечение захвата обработчиком)
+     */
+    @Column(name = "next_attempt_at", nullable = false)
+    private LocalDateTime nextAttemptAt;
+
+    @Column(name = "last_error", length = 1024)
+    private String lastError;
+
+    @Column(name = "created_at", nullable = false)
+    private LocalDateTime createdAt;
+}
@@ -0,0 +1,55 @@
+package ru.arseniy.library.repository;
+
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+import ru.arseniy.library.model.BookFile;
+import ru.arseniy.library.model.BookFileKind;
+
+import java.util.List;
+import java.util.Optional;
+
+@Repository
+public interface BookFileRepository extends JpaRepository<BookFile, Integer> {
+
+    Optional<BookFile> findByBookIdAndKind(Integer bookId, BookFileKind kind);
+
+    List<BookFile> findByBookId(Integer bookId);
+
+    @Modifying
+    @Transactional
+    @Query("DELETE FROM BookFile f WHERE f.bookId = :bookId")
+    int deleteByBookId(@Param("bookId") Integer bookId);
+
+    /**
+     * Находит книги, для которых ещё не сохранено ни одного ключа файла и поиск файлов в хранилище
+     * ещё не выполнялся (постранично, по возрастанию ID)
+     */
+    @Query(value = "SELECT b.id AS id, b.title AS title FROM books b " +
+            "WHERE b.id > :afterId AND NOT EXISTS (SELECT 1 FROM book_files f WHERE f.book_id = b.id) " +
+            "AND NOT EXISTS (SELECT 1 FROM book_file_key_probes p WHERE p.book_id = b.id) " +
+            "ORDER BY b.id", nativeQuery = true)
+    List<BookTitle> findUnprobedBooksWithoutFilesAfter(@Param("afterId") Integer afterId, Pageable pageable);
+
+    /**
+     * Отмечает, что поиск файлов книги в хранилище выполнен
+     */
+    @Modifying
+    @Transactional
+    @Query(value = "INSERT INTO book_file_key_probes (book_id, probed_at) VALUES (:bookId, CURRENT_TIMESTAMP) " +
+            "ON CONFLICT (book_id) DO NOTHING", nativeQuery = true)
+    int markKeysProbed(@Param("bookId") Integer bookId);
+
+    /**
+     * ID и название книги
+     */
+    interface BookTitle {
+        Integer getId();
+
+        String getTitle();
+    }
+}
@@ -0,0 +1,55 @@
+package ru.arseniy.library.repository;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.Collection;
+
+/**
+ * Условия выборки книг, которые переводятся в SQL-предикаты
+ * (поиск, категории, год издания, язык и минимальный рейтинг)
+ */
+@Data
+@Builder(toBuilder = true)
+@NoArgsConstructor
+@AllArgsConstructor
+public class BookFilter {
+
+    /**
+     * Имя свойства сортировки, означающее сортировку по среднему рейтингу
+     * (при равенстве — по количеству оценок)
+     */
+    public static final String RATING_SORT_PROPERTY = "rating";
+
+    /**
+     * Имя свойства сортировки, означающее сортировку по релевантности поисковому запросу
+     */
+    public static final String RELEVANCE_SORT_PROPERTY = "relevance";
+
+    private String query;
+    private Collection<Integer> categoryIds;
+    /**
+     * Ограничение выборки заданными книгами (например, найденными поисковым индексом)
+     */
+    private Collection<Integer> bookIds;
+    private Integer yearFrom;
+    private Integer yearTo;
+    private String language;
+    private double minRating;
+
+    /**
+     * Возвращает true, если задан фильтр по языку
+     */
+    public boolean hasLanguage() {
+        return language != null && !language.trim().isEmpty();
+    }
+
+    /**
+     * Возвращает true, если задан поисковый запрос
+     */
+    public boolean hasQuery() {
+        return query != null && !query.isEmpty();
+    }
+}
@@ -0,0 +1,39 @@
+package ru.arseniy.library.repository;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import ru.arseniy.library.model.BookRatingSummary;
+
+import java.util.Collection;
+import java.util.List;
+
+@Repository
+public interface BookRatingSummaryRepository extends JpaRepository<BookRatingSummary, Integer> {
+
+    /**
+     * Находит агрегированные рейтинги сразу для нескольких книг одним запросом
+     */
+    List<BookRatingSummary> findByBookIdIn(Collection<Integer> bookIds);
+
+    /**
+     * Атомарно изменяет сумму и количество оценок книги, создавая запись при её отсутствии.
+     * Среднее значение пересчитывается в том же выражении, поэтому параллельные изменения не теряются.
+     */
+    @Modifying
+    @Query(value = "INSERT INTO book_rating_summaries (book_id, rating_sum, ratings_count, average_rating) " +
+            "VALUES (:bookId, :sumDelta, :countDelta, " +
+            "CASE WHEN :countDelta > 0 THEN CAST(:sumDelta AS DOUBLE PRECISION) / :countDelta ELSE 0 END) " +
+            "ON CONFLICT (book_id) DO UPDATE SET " +
+            "rating_sum = book_rating_summaries.rating_sum + EXCLUDED.rating_sum, " +
+            "ratings_count = book_rating_summaries.ratings_count + EXCLUDED.ratings_count, " +
+            "average_rating = CASE WHEN book_rating_summaries.ratings_count + EXCLUDED.ratings_count > 0 " +
+            "THEN CAST(book_rating_summaries.rating_sum + EXCLUDED.rating_sum AS DOUBLE PRECISION) " +
+            "/ (book_rating_summaries.ratings_count + EXCLUDED.ratings_count) ELSE 0 END",
+            nativeQuery = true)
+    void applyDelta(@Param("bookId") Integer bookId,
+                    @Param("sumDelta") long sumDelta,
+                    @Param("countDelta") int countDelta);
+}
@@ -8,10 +8,11 @@ import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 import ru.arseniy.library.model.Book;
 
+import java.util.Collection;
 import java.util.List;
 
 @Repository
-public interface BookRepository extends JpaRepository<Book, Integer> {
+public interface BookRepository extends JpaRepository<Book, Integer>, BookRepositoryCustom {
     
     Page<Book> findByTitleContainingIgnoreCase(String title, Pageable pageable);
     
@@ -45,48 +46,68 @@ public interface BookRepository extends JpaRepository<Book, Integer> {
     @Query("SELECT DISTINCT b FROM Book b JOIN b.categories c WHERE c.id = :categoryId")
     Page<Book> findByExactCategoryId(@Param("categoryId") Integer categoryId, Pageable pageable);
     
-    @Query("SELECT b FROM Book b WHERE " +
-           "LOWER(b.title) LIKE LOWER(CONCAT('%', :query, '%')) OR " +
-           "LOWER(b.author) LIKE LOWER(CONCAT('%', :query, '%')) OR " +
-           "LOWER(b.description) LIKE LOWER(CONCAT('%', :query, '%'))")
-    Page<Book> searchBooks(@Param("query") String query, Pageable pageable);
-    
     /**
-     * Находит книги, принадлежащие к любой из указанных категорий (возвращает список)
-     * Используется для сортировки по рейтингу
+     * Находит уникальные книги по нескольким категориям с пагинацией
      */
     @Query("SELECT DISTINCT b FROM Book b JOIN b.categories c WHERE c.id IN :categoryIds")
-    List<Book> findByCategoryIdInAsList(@Param("categoryIds") List<Integer> categoryIds);
+    Page<Book> findBooksByMultipleCategories(@Param("categoryIds") List<Integer> categoryIds, Pageable pageable);
     
     /**
-     * Находит книги только из указанной категории, без подкатегорий (возвращает список)
-     * Используется для сортировки по рейтингу
+     * Находит книги по списку ID вместе с категориями (для кэширования вне сессии)
      */
-    @Query("SELECT DISTINCT b FROM Book b JOIN b.categories c WHERE c.id = :categoryId")
-    List<Book> findByExactCategoryIdAsList(@Param("categoryId") Integer categoryId);
+    @Query("SELECT DISTINCT b FROM Book b LEFT JOIN FETCH b.categories WHERE b.id IN :ids")
+    List<Book> findAllWithCategoriesByIdIn(@Param("ids") Collection<Integer> ids);
     
-    boolean existsByTitle(String title);
+    /**
+     * Возвращает сумму и количество оценок для всех книг, включая книги без оценок
+     */
+    @Query("SELECT b.id AS bookId, COALESCE(s.ratingSum, 0L) AS ratingSum, COALESCE(s.ratingsCount, 0) AS ratingsCount " +
+           "FROM Book b LEFT JOIN BookRatingSummary s ON s.bookId = b.id")
+    List<BookRatingStats> findAllRatingStats();
     
     /**
-     * Поиск книг без пагинации (возвращает список)
-     * Используется для сортировки по рейтингу
+     * Возвращает тексты книг с ID больше заданного (по возрастанию ID) для построения поискового индекса
      */
-    @Query("SELECT b FROM Book b WHERE " +
-           "LOWER(b.title) LIKE LOWER(CONCAT('%', :query, '%')) OR " +
-           "LOWER(b.author) LIKE LOWER(CONCAT('%', :query, '%')) OR " +
-           "LOWER(b.description) LIKE LOWER(CONCAT('%', :query, '%'))")
-    List<Book> searchBooksAsList(@Param("query") String query);
+    @Query("SELECT b.id AS id, b.title AS title, b.author AS author, b.description AS description " +
+           "FROM Book b WHERE b.id > :afterId ORDER BY b.id")
+    List<BookSearchText> findSearchTextsAfter(@Param("afterId") Integer afterId, Pageable pageable);
     
     /**
-     * Находит уникальные книги по нескольким категориям с пагинацией
+     * Возвращает названия и авторов всех книг, не загружая сущности (для проверки дубликатов при импорте)
      */
-    @Query("SELECT DISTINCT b FROM Book b JOIN b.categories c WHERE c.id IN :categoryIds")
-    Page<Book> findBooksByMultipleCategories(@Param("categoryIds") List<Integer> categoryIds, Pageable pageable);
+    @Query("SELECT b.title AS title, b.author AS author FROM Book b")
+    List<BookTitleAuthor> findAllTitlesAndAuthors();
     
     /**
-     * Находит уникальные книги по нескольким категориям без пагинации (возвращает список)
-     * Используется для сортировки по рейтингу
+     * Проекция с названием и автором книги
      */
-    @Query("SELECT DISTINCT b FROM Book b JOIN b.categories c WHERE c.id IN :categoryIds")
-    List<Book> findBooksByMultipleCategoriesAsList(@Param("categoryIds") List<Integer> categoryIds);
+    interface BookTitleAuthor {
+        String getTitle();
+        
+        String getAuthor();
+    }
+    
+    /**
+     * Проекция с текстовыми полями книги, которые попадают в поисковый индекс
+     */
+    interface BookSearchText {
+        Integer getId();
+        
+        String getTitle();
+        
+        String getAuthor();
+        
+        String getDescription();
+    }
+    
+    /**
+     * Проекция с агрегированным рейтингом книги
+     */
+    interface BookRatingStats {
+        Integer getBookId();
+        
+        Long getRatingSum();
+        
+        Integer getRatingsCount();
+    }
 }
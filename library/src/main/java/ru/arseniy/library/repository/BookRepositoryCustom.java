@@ -0,0 +1,41 @@
+package ru.arseniy.library.repository;
+
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import ru.arseniy.library.model.Book;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Дополнительные методы репозитория книг, формирующие запрос динамически или выполняющие его пакетом
+ */
+public interface BookRepositoryCustom {
+
+    /**
+     * Находит страницу книг, удовлетворяющих фильтру.
+     * Фильтрация, сортировка (в том числе по рейтингу) и пагинация выполняются на стороне БД.
+     *
+     * @param filter условия выборки
+     * @param pageable параметры пагинации и сортировки
+     * @return страница книг
+     */
+    Page<Book> findByFilter(BookFilter filter, Pageable pageable);
+
+    /**
+     * Находит ID всех книг, удовлетворяющих фильтру, без сортировки и пагинации.
+     * Поисковый запрос, если задан, обрабатывается полнотекстовым поиском без нечёткого поиска.
+     *
+     * @param filter условия выборки
+     * @return ID книг
+     */
+    List<Integer> findIdsByFilter(BookFilter filter);
+
+    /**
+     * Сохраняет URL файла и обложки книг одним JDBC-пакетом UPDATE, не загружая сущности.
+     * Должен вызываться в транзакции.
+     *
+     * @param books книги с ID и новыми URL
+     */
+    void updateFileUrls(Collection<Book> books);
+}
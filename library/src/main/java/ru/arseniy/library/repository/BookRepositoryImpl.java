@@ -0,0 +1,285 @@
+package ru.arseniy.library.repository;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+import jakarta.persistence.TypedQuery;
+import jakarta.persistence.metamodel.Attribute;
+import org.hibernate.Session;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.support.PageableExecutionUtils;
+import ru.arseniy.library.model.Book;
+
+import java.sql.PreparedStatement;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
+
+/**
+ * Реализация {@link BookRepositoryCustom} на JPQL.
+ * Рейтинг берётся из таблицы агрегированных рейтингов через LEFT JOIN,
+ * поэтому книги без оценок имеют рейтинг 0.
+ * <p>
+ * Поисковый запрос обрабатывается полнотекстовым поиском PostgreSQL по колонке search_vector
+ * (см. {@link BookSearchFunctionContributor}). Если он ничего не нашёл, например из-за опечатки,
+ * выполняется нечёткий поиск по триграммам названия и автора. При {@code app.search.engine=like}
+ * используется прежний поиск подстроки. При {@code app.search.engine=index} запрос обрабатывается
+ * встроенным индексом на уровне сервиса, а сюда передаются ID найденных книг.
+ * <p>
+ * URL файлов книг при импорте обновляются пакетным запросом JDBC в обход контекста персистентности.
+ */
+public class BookRepositoryImpl implements BookRepositoryCustom {
+
+    private static final String RATING_JOIN = " LEFT JOIN BookRatingSummary s ON s.bookId = b.id";
+    private static final String RATING_EXPRESSION = "COALESCE(s.averageRating, 0)";
+    private static final String RATINGS_COUNT_EXPRESSION = "COALESCE(s.ratingsCount, 0)";
+    private static final String SEARCH_JOIN = " JOIN BookSearchDocument d ON d.id = b.id";
+    private static final String UPDATE_FILE_URLS = "UPDATE books SET file_url = ?, cover_image_url = ? WHERE id = ?";
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Value("${app.search.engine:fulltext}")
+    private String searchEngine;
+
+    @Value("${app.search.fuzzy-fallback:true}")
+    private boolean fuzzyFallback;
+
+    @Override
+    public Page<Book> findByFilter(BookFilter filter, Pageable pageable) {
+        if (!filter.hasQuery()) {
+            return findByFilter(filter, SearchMode.NONE, pageable);
+        }
+        if ("like".equalsIgnoreCase(searchEngine)) {
+            return findByFilter(filter, SearchMode.LIKE, pageable);
+        }
+
+        Page<Book> page = toTsQuery(filter.getQuery()) != null
+                ? findByFilter(filter, SearchMode.FULL_TEXT, pageable)
+                : Page.empty(pageable);
+        if (page.getTotalElements() == 0 && fuzzyFallback) {
+            return findByFilter(filter, SearchMode.FUZZY, pageable);
+        }
+        return page;
+    }
+
+    private Page<Book> findByFilter(BookFilter filter, SearchMode searchMode, Pageable pageable) {
+        Map<String, Object> parameters = new HashMap<>();
+        String whereClause = buildWhereClause(filter, searchMode, parameters);
+        boolean sortByRating = isSortedByRating(pageable.getSort());
+        boolean joinRatings = sortByRating || filter.getMinRating() > 0;
+
+        String jpql = "SELECT b FROM Book b" + searchMode.join + (joinRatings ? RATING_JOIN : "")
+                + whereClause + buildOrderByClause(pageable.getSort(), searchMode);
+
+        TypedQuery<Book> query = entityManager.createQuery(jpql, Book.class);
+        parameters.forEach(query::setParameter);
+        if (pageable.isPaged()) {
+            query.setFirstResult((int) pageable.getOffset());
+            query.setMaxResults(pageable.getPageSize());
+        }
+        List<Book> books = query.getResultList();
+
+        return PageableExecutionUtils.getPage(books, pageable,
+                () -> count(whereClause, parameters, searchMode, filter.getMinRating() > 0));
+    }
+
+    @Override
+    public List<Integer> findIdsByFilter(BookFilter filter) {
+        SearchMode searchMode = !filter.hasQuery() ? SearchMode.NONE
+                : "like".equalsIgnoreCase(searchEngine) ? SearchMode.LIKE : SearchMode.FULL_TEXT;
+        Map<String, Object> parameters = new HashMap<>();
+        String whereClause = buildWhereClause(filter, searchMode, parameters);
+
+        String jpql = "SELECT b.id FROM Book b" + searchMode.join
+                + (filter.getMinRating() > 0 ? RATING_JOIN : "") + whereClause;
+        TypedQuery<Integer> query = entityManager.createQuery(jpql, Integer.class);
+        parameters.forEach(query::setParameter);
+        return query.getResultList();
+    }
+
+    @Override
+    public void updateFileUrls(Collection<Book> books) {
+        if (books.isEmpty()) {
+            return;
+        }
+        entityManager.unwrap(Session.class).doWork(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(UPDATE_FILE_URLS)) {
+                for (Book book : books) {
+                    statement.setString(1, book.getFileUrl());
+                    statement.setString(2, book.getCoverImageUrl());
+                    statement.setInt(3, book.getId());
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            }
+        });
+    }
+
+    /**
+     * Подсчитывает общее количество книг, удовлетворяющих фильтру
+     */
+    private long count(String whereClause, Map<String, Object> parameters, SearchMode searchMode, boolean joinRatings) {
+        String jpql = "SELECT COUNT(b) FROM Book b" + searchMode.join + (joinRatings ? RATING_JOIN : "") + whereClause;
+        TypedQuery<Long> query = entityManager.createQuery(jpql, Long.class);
+        parameters.forEach(query::setParameter);
+        return query.getSingleResult();
+    }
+
+    /**
+     * Формирует условие WHERE по фильтру и заполняет параметры запроса
+     */
+    private String buildWhereClause(BookFilter filter, SearchMode searchMode, Map<String, Object> parameters) {
+        StringBuilder where = new StringBuilder();
+
+        switch (searchMode) {
+            case LIKE -> parameters.put("pattern", "%" + filter.getQuery().toLowerCase() + "%");
+            case FULL_TEXT -> parameters.put("tsQuery", toTsQuery(filter.getQuery()));
+            case FUZZY -> parameters.put("query", filter.getQuery().trim());
+            default -> {
+            }
+        }
+        if (searchMode.condition != null) {
+            appendCondition(where, searchMode.condition);
+        }
+
+        if (filter.getBookIds() != null) {
+            appendCondition(where, "b.id IN :bookIds");
+            parameters.put("bookIds", filter.getBookIds());
+        }
+
+        if (filter.getCategoryIds() != null) {
+            appendCondition(where, "EXISTS (SELECT 1 FROM Book cb JOIN cb.categories c "
+                    + "WHERE cb.id = b.id AND c.id IN :categoryIds)");
+            parameters.put("categoryIds", filter.getCategoryIds());
+        }
+
+        // Книги без года издания не отсекаются фильтром по году
+        if (filter.getYearFrom() != null) {
+            appendCondition(where, "(b.publicationYear IS NULL OR b.publicationYear >= :yearFrom)");
+            parameters.put("yearFrom", filter.getYearFrom());
+        }
+        if (filter.getYearTo() != null) {
+            appendCondition(where, "(b.publicationYear IS NULL OR b.publicationYear <= :yearTo)");
+            parameters.put("yearTo", filter.getYearTo());
+        }
+
+        if (filter.hasLanguage()) {
+            appendCondition(where, "LOWER(b.language) = :language");
+            parameters.put("language", filter.getLanguage().trim().toLowerCase());
+        }
+
+        if (filter.getMinRating() > 0) {
+            appendCondition(where, RATING_EXPRESSION + " >= :minRating");
+            parameters.put("minRating", filter.getMinRating());
+        }
+
+        return where.toString();
+    }
+
+    private void appendCondition(StringBuilder where, String condition) {
+        where.append(where.length() == 0 ? " WHERE " : " AND ").append(condition);
+    }
+
+    /**
+     * Формирует ORDER BY по параметрам сортировки.
+     * Сортировка по релевантности всегда идёт от наиболее подходящих книг и учитывается только при поиске.
+     * Идентификатор книги добавляется последним, чтобы порядок страниц был стабильным.
+     */
+    private String buildOrderByClause(Sort sort, SearchMode searchMode) {
+        StringBuilder orderBy = new StringBuilder();
+        boolean sortedById = false;
+
+        for (Sort.Order order : sort) {
+            String direction = order.isAscending() ? " ASC" : " DESC";
+            if (BookFilter.RELEVANCE_SORT_PROPERTY.equals(order.getProperty())) {
+                if (searchMode.rank != null) {
+                    appendOrder(orderBy, searchMode.rank + " DESC");
+                }
+            } else if (BookFilter.RATING_SORT_PROPERTY.equals(order.getProperty())) {
+                appendOrder(orderBy, RATING_EXPRESSION + direction);
+                appendOrder(orderBy, RATINGS_COUNT_EXPRESSION + direction);
+            } else {
+                String property = resolveSortProperty(order.getProperty());
+                appendOrder(orderBy, "b." + property + direction);
+                sortedById |= "id".equals(property);
+            }
+        }
+
+        if (!sortedById) {
+            appendOrder(orderBy, "b.id ASC");
+        }
+        return orderBy.toString();
+    }
+
+    private void appendOrder(StringBuilder orderBy, String expression) {
+        orderBy.append(orderBy.length() == 0 ? " ORDER BY " : ", ").append(expression);
+    }
+
+    /**
+     * Проверяет, что сортировка выполняется по простому полю книги,
+     * чтобы в запрос не попало произвольное выражение
+     */
+    private String resolveSortProperty(String property) {
+        Attribute<? super Book, ?> attribute;
+        try {
+            attribute = entityManager.getMetamodel().entity(Book.class).getAttribute(property);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Сортировка по полю " + property + " не поддерживается", e);
+        }
+        if (attribute.isCollection() || attribute.isAssociation()) {
+            throw new IllegalArgumentException("Сортировка по полю " + property + " не поддерживается");
+        }
+        return attribute.getName();
+    }
+
+    private boolean isSortedByRating(Sort sort) {
+        return sort.stream().anyMatch(order -> BookFilter.RATING_SORT_PROPERTY.equals(order.getProperty()));
+    }
+
+    /**
+     * Преобразует пользовательский запрос в tsquery: слова объединяются через AND,
+     * последнее слово ищется по префиксу, чтобы поиск работал по мере ввода.
+     * Все символы, кроме букв и цифр, отбрасываются, поэтому синтаксис tsquery
+     * не может быть нарушен пользовательским вводом.
+     *
+     * @return tsquery или null, если в запросе нет ни одного слова
+     */
+    static String toTsQuery(String query) {
+        StringJoiner terms = new StringJoiner(" & ");
+        for (String term : query.split("[^\\p{L}\\p{N}]+")) {
+            if (!term.isEmpty()) {
+                terms.add(term);
+            }
+        }
+        return terms.length() > 0 ? terms + ":*" : null;
+    }
+
+    /**
+     * Способ обработки поискового запроса: дополнительное соединение,
+     * условие отбора и выражение релевантности
+     */
+    private enum SearchMode {
+        NONE("", null, null),
+        LIKE("", "(LOWER(b.title) LIKE :pattern OR LOWER(b.author) LIKE :pattern "
+                + "OR LOWER(b.description) LIKE :pattern)", null),
+        FULL_TEXT(SEARCH_JOIN, "book_search_matches(d.searchVector, :tsQuery)",
+                "book_search_rank(d.searchVector, :tsQuery)"),
+        FUZZY("", "(book_fuzzy_matches(b.title, :query) OR book_fuzzy_matches(b.author, :query))",
+                "GREATEST(book_fuzzy_similarity(b.title, :query), book_fuzzy_similarity(b.author, :query))");
+
+        private final String join;
+        private final String condition;
+        private final String rank;
+
+        SearchMode(String join, String condition, String rank) {
+            this.join = join;
+            this.condition = condition;
+            this.rank = rank;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package ru.arseniy.library.repository;
+
+import org.hibernate.boot.model.FunctionContributions;
+import org.hibernate.boot.model.FunctionContributor;
+import org.hibernate.query.sqm.function.SqmFunctionRegistry;
+import org.hibernate.type.BasicType;
+import org.hibernate.type.StandardBasicTypes;
+
+/**
+ * Регистрирует в Hibernate функции полнотекстового и нечёткого поиска PostgreSQL,
+ * чтобы их можно было использовать в JPQL-запросах {@link BookRepositoryImpl}:
+ * <ul>
+ *     <li>{@code book_search_matches(vector, tsquery)} — документ соответствует запросу;</li>
+ *     <li>{@code book_search_rank(vector, tsquery)} — релевантность документа с учётом весов;</li>
+ *     <li>{@code book_fuzzy_matches(text, query)} — текст похож на запрос (pg_trgm);</li>
+ *     <li>{@code book_fuzzy_similarity(text, query)} — степень сходства текста с запросом.</li>
+ * </ul>
+ * Подключается через META-INF/services.
+ */
+public class BookSearchFunctionContributor implements FunctionContributor {
+
+    /**
+     * Конфигурация полнотекстового поиска, совпадающая с используемой в колонке books.search_vector
+     */
+    public static final String TEXT_SEARCH_CONFIG = "russian";
+
+    @Override
+    public void contributeFunctions(FunctionContributions functionContributions) {
+        SqmFunctionRegistry registry = functionContributions.getFunctionRegistry();
+        BasicType<Boolean> booleanType = functionContributions.getTypeConfiguration()
+                .getBasicTypeRegistry().resolve(StandardBasicTypes.BOOLEAN);
+        BasicType<Double> doubleType = functionContributions.getTypeConfiguration()
+                .getBasicTypeRegistry().resolve(StandardBasicTypes.DOUBLE);
+
+        registry.patternDescriptorBuilder("book_search_matches",
+                        "(?1 @@ to_tsquery('" + TEXT_SEARCH_CONFIG + "', ?2))")
+                .setExactArgumentCount(2)
+                .setInvariantType(booleanType)
+                .register();
+        registry.patternDescriptorBuilder("book_search_rank",
+                        "ts_rank(?1, to_tsquery('" + TEXT_SEARCH_CONFIG + "', ?2))")
+                .setExactArgumentCount(2)
+                .setInvariantType(doubleType)
+                .register();
+        registry.patternDescriptorBuilder("book_fuzzy_matches", "(?2 <% ?1)")
+                .setExactArgumentCount(2)
+                .setInvariantType(booleanType)
+                .register();
+        registry.patternDescriptorBuilder("book_fuzzy_similarity", "word_similarity(?2, ?1)")
+                .setExactArgumentCount(2)
+                .setInvariantType(doubleType)
+                .register();
+    }
+}
@@ -1,6 +1,7 @@
 package ru.arseniy.library.repository;
 
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.stereotype.Repository;
 import ru.arseniy.library.model.Category;
 
@@ -17,4 +18,52 @@ public interface CategoryRepository extends JpaRepository<Category, Integer> {
     List<Category> findByParentCategoryId(Integer parentCategoryId);
     
     List<Category> findByParentCategoryIsNotNull();
+    
+    /**
+     * Возвращает транзитивное замыкание иерархии категорий одним рекурсивным запросом:
+     * для каждой категории — все её потомки (включая её саму с глубиной 0)
+     */
+    @Query(value = "WITH RECURSIVE category_tree (ancestor_id, descendant_id, depth) AS (" +
+            "SELECT id, id, 0 FROM categories " +
+            "UNION ALL " +
+            "SELECT t.ancestor_id, c.id, t.depth + 1 FROM category_tree t " +
+            "JOIN categories c ON c.parent_category_id = t.descendant_id) " +
+            "SELECT ancestor_id AS ancestorId, descendant_id AS descendantId, depth FROM category_tree",
+            nativeQuery = true)
+    List<CategoryClosure> findCategoryClosure();
+    
+    /**
+     * Подсчитывает количество уникальных книг в каждой категории вместе со всеми её подкатегориями
+     * одним агрегирующим запросом по замыканию иерархии. Категории без книг в результат не попадают.
+     */
+    @Query(value = "WITH RECURSIVE category_tree (ancestor_id, descendant_id) AS (" +
+            "SELECT id, id FROM categories " +
+            "UNION ALL " +
+            "SELECT t.ancestor_id, c.id FROM category_tree t " +
+            "JOIN categories c ON c.parent_category_id = t.descendant_id) " +
+            "SELECT t.ancestor_id AS categoryId, COUNT(DISTINCT bc.book_id) AS bookCount " +
+            "FROM category_tree t JOIN book_categories bc ON bc.category_id = t.descendant_id " +
+            "GROUP BY t.ancestor_id",
+            nativeQuery = true)
+    List<CategoryBookCount> countBooksInCategoryTrees();
+    
+    /**
+     * Количество книг в категории с учётом подкатегорий
+     */
+    interface CategoryBookCount {
+        Integer getCategoryId();
+        
+        Long getBookCount();
+    }
+    
+    /**
+     * Пара "предок — потомок" в иерархии категорий
+     */
+    interface CategoryClosure {
+        Integer getAncestorId();
+        
+        Integer getDescendantId();
+        
+        Integer getDepth();
+    }
 }
@@ -0,0 +1,41 @@
+package ru.arseniy.library.repository;
+
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+import ru.arseniy.library.model.BookFile;
+import ru.arseniy.library.model.BookFileKind;
+import ru.arseniy.library.model.CoverThumbnail;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
+@Repository
+public interface CoverThumbnailRepository extends JpaRepository<CoverThumbnail, Integer> {
+
+    Optional<CoverThumbnail> findByBookIdAndWidth(Integer bookId, Integer width);
+
+    List<CoverThumbnail> findByBookId(Integer bookId);
+
+    @Modifying
+    @Transactional
+    @Query("DELETE FROM CoverThumbnail t WHERE t.bookId = :bookId")
+    int deleteByBookId(@Param("bookId") Integer bookId);
+
+    /**
+     * Находит обложки, для которых есть не все миниатюры заданных ширин (постранично, по возрастанию ID книги)
+     */
+    @Query("SELECT f FROM BookFile f WHERE f.kind = :kind AND f.bookId > :afterId " +
+            "AND (SELECT COUNT(t) FROM CoverThumbnail t WHERE t.bookId = f.bookId AND t.width IN :widths) < :widthCount " +
+            "ORDER BY f.bookId")
+    List<BookFile> findCoversWithoutThumbnailsAfter(@Param("kind") BookFileKind kind,
+                                                    @Param("afterId") Integer afterId,
+                                                    @Param("widths") Collection<Integer> widths,
+                                                    @Param("widthCount") long widthCount,
+                                                    Pageable pageable);
+}
@@ -0,0 +1,9 @@
+package ru.arseniy.library.repository;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+import ru.arseniy.library.model.FailedStorageDeletion;
+
+@Repository
+public interface FailedStorageDeletionRepository extends JpaRepository<FailedStorageDeletion, Long> {
+}
@@ -0,0 +1,42 @@
+package ru.arseniy.library.repository;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+import ru.arseniy.library.model.StorageDeletion;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+
+@Repository
+public interface StorageDeletionRepository extends JpaRepository<StorageDeletion, Long> {
+
+    /**
+     * Находит объекты, которые пора удалять, и блокирует их строки до конца транзакции.
+     * Строки, заблокированные другим обработчиком, пропускаются.
+     */
+    @Query(value = "SELECT * FROM storage_deletions WHERE next_attempt_at <= :now " +
+            "ORDER BY next_attempt_at, id LIMIT :limit FOR UPDATE SKIP LOCKED",
+            nativeQuery = true)
+    List<StorageDeletion> lockDue(@Param("now") LocalDateTime now, @Param("limit") int limit);
+
+    /**
+     * Возвращает ключи из переданных, на которые снова ссылаются сведения о файлах книг или миниатюрах
+     */
+    @Query(value = "SELECT storage_key FROM book_files WHERE storage_key IN (:keys) " +
+            "UNION SELECT storage_key FROM cover_thumbnails WHERE storage_key IN (:keys)",
+            nativeQuery = true)
+    List<String> findReferencedKeys(@Param("keys") Collection<String> keys);
+
+    /**
+     * Отменяет ожидающие удаления объекта с указанным ключом
+     */
+    @Modifying
+    @Transactional
+    @Query("DELETE FROM StorageDeletion d WHERE d.storageKey = :storageKey")
+    int deleteByStorageKey(@Param("storageKey") String storageKey);
+}
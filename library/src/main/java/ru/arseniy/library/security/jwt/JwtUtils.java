@@ -3,6 +3,7 @@ package ru.arseniy.library.security.jwt;
 import io.jsonwebtoken.*;
 import io.jsonwebtoken.security.Keys;
 import io.jsonwebtoken.security.SignatureException;
+import jakarta.annotation.PostConstruct;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
@@ -12,7 +13,12 @@ import ru.arseniy.library.security.services.UserDetailsImpl;
 
 import javax.crypto.SecretKey;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
 import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 @Component
 public class JwtUtils {
@@ -24,11 +30,31 @@ public class JwtUtils {
     @Value("${app.jwt.expirationMs}")
     private int jwtExpirationMs;
 
+    @Value("${app.jwt.verified-cache-size:10000}")
+    private int verifiedCacheSize;
+
+    private SecretKey key;
+
+    private JwtParser parser;
+
+    /**
+     * Уже проверенные токены (по SHA-256 токена) до истечения их срока действия,
+     * чтобы не проверять подпись и не разбирать JSON при каждом запросе
+     */
+    private final Map<String, VerifiedJwt> verifiedTokens = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        // Ключ и парсер неизменяемы и потокобезопасны, поэтому создаются один раз
+        key = Keys.hmacShaKeyFor(jwtSecret.getBytes(StandardCharsets.UTF_8));
+        parser = Jwts.parserBuilder()
+                .setSigningKey(key)
+                .build();
+    }
+
     public String generateJwtToken(Authentication authentication) {
         UserDetailsImpl userPrincipal = (UserDetailsImpl) authentication.getPrincipal();
 
-        SecretKey key = Keys.hmacShaKeyFor(jwtSecret.getBytes(StandardCharsets.UTF_8));
-
         return Jwts.builder()
                 .setSubject((userPrincipal.getEmail()))
                 .setIssuedAt(new Date())
@@ -37,26 +63,42 @@ public class JwtUtils {
                 .compact();
     }
 
-    public String getEmailFromJwtToken(String token) {
-        SecretKey key = Keys.hmacShaKeyFor(jwtSecret.getBytes(StandardCharsets.UTF_8));
-        
-        return Jwts.parserBuilder()
-                .setSigningKey(key)
-                .build()
-                .parseClaimsJws(token)
-                .getBody()
-                .getSubject();
+    /**
+     * Проверяет токен и возвращает данные из него, разбирая токен не более одного раза
+     *
+     * @param authToken JWT
+     * @return данные проверенного токена или null, если токен недействителен
+     */
+    public VerifiedJwt verifyJwtToken(String authToken) {
+        String tokenHash = hash(authToken);
+        long now = System.currentTimeMillis();
+
+        VerifiedJwt cached = verifiedTokens.get(tokenHash);
+        if (cached != null) {
+            if (cached.expiresAt() > now) {
+                return cached;
+            }
+            verifiedTokens.remove(tokenHash);
+        }
+
+        Claims claims = parseClaims(authToken);
+        if (claims == null) {
+            return null;
+        }
+        VerifiedJwt verified = new VerifiedJwt(claims.getSubject(),
+                claims.getExpiration() != null ? claims.getExpiration().getTime() : Long.MAX_VALUE);
+        if (verifiedTokens.size() >= verifiedCacheSize) {
+            evictExpired(now);
+        }
+        if (verifiedTokens.size() < verifiedCacheSize) {
+            verifiedTokens.put(tokenHash, verified);
+        }
+        return verified;
     }
 
-    public boolean validateJwtToken(String authToken) {
+    private Claims parseClaims(String authToken) {
         try {
-            SecretKey key = Keys.hmacShaKeyFor(jwtSecret.getBytes(StandardCharsets.UTF_8));
-            
-            Jwts.parserBuilder()
-                    .setSigningKey(key)
-                    .build()
-                    .parseClaimsJws(authToken);
-            return true;
+            return parser.parseClaimsJws(authToken).getBody();
         } catch (SignatureException e) {
             logger.error("Invalid JWT signature: {}", e.getMessage());
         } catch (MalformedJwtException e) {
@@ -69,6 +111,32 @@ public class JwtUtils {
             logger.error("JWT claims string is empty: {}", e.getMessage());
         }
 
-        return false;
+        return null;
+    }
+
+    private void evictExpired(long now) {
+        verifiedTokens.values().removeIf(verified -> verified.expiresAt() <= now);
+        // Если все токены ещё действительны, кэш просто очищается и заполняется заново
+        if (verifiedTokens.size() >= verifiedCacheSize) {
+            verifiedTokens.clear();
+        }
+    }
+
+    private static String hash(String token) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.UTF_8));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Данные проверенного JWT
+     *
+     * @param email email пользователя (subject токена)
+     * @param expiresAt момент истечения срока действия токена (мс)
+     */
+    public record VerifiedJwt(String email, long expiresAt) {
     }
 }
@@ -0,0 +1,149 @@
+package ru.arseniy.library.security.services;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.stereotype.Component;
+import ru.arseniy.library.util.TransactionUtils;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Кэш данных пользователя для аутентификации по JWT.
+ * <p>
+ * JWT уже подтверждает личность пользователя, поэтому фильтр аутентификации не обращается к БД
+ * на каждый запрос, а берёт {@link UserDetails} из кэша. Записи живут не дольше
+ * {@code app.auth.principal-cache.ttl-ms}, размер кэша ограничен {@code app.auth.principal-cache.max-size}:
+ * при переполнении удаляются истёкшие записи, а затем давно не использованные. Чтение из кэша
+ * не берёт блокировок. При изменении ролей, пароля или профиля запись сбрасывается после фиксации транзакции.
+ */
+@Component
+@Slf4j
+public class UserPrincipalCache {
+
+    private final UserDetailsServiceImpl userDetailsService;
+    private final long ttlMs;
+    private final int maxSize;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Object evictionLock = new Object();
+    private final AtomicLong generation = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public UserPrincipalCache(UserDetailsServiceImpl userDetailsService,
+                              @Value("${app.auth.principal-cache.ttl-ms:60000}") long ttlMs,
+                              @Value("${app.auth.principal-cache.max-size:10000}") int maxSize) {
+        this.userDetailsService = userDetailsService;
+        this.ttlMs = ttlMs;
+        this.maxSize = Math.max(1, maxSize);
+    }
+
+    /**
+     * Возвращает данные пользователя из кэша или загружает их из БД
+     *
+     * @param email email пользователя
+     * @return данные пользователя
+     */
+    public UserDetails getUser(String email) {
+        long now = System.currentTimeMillis();
+        Entry entry = entries.get(email);
+        if (entry != null && entry.expiresAt > now) {
+            entry.lastAccessedAt = now;
+            hits.increment();
+            return entry.user;
+        }
+
+        misses.increment();
+        // Если запись сбросили во время загрузки, загруженные данные могут быть устаревшими
+        long loadGeneration = generation.get();
+        UserDetails user = userDetailsService.loadUserByUsername(email);
+        Entry loaded = new Entry(user, now + ttlMs, now);
+        entries.put(email, loaded);
+        if (generation.get() != loadGeneration) {
+            entries.remove(email, loaded);
+        } else if (entries.size() > maxSize) {
+            evict(now);
+        }
+        return user;
+    }
+
+    /**
+     * Сбрасывает данные пользователя после фиксации текущей транзакции
+     *
+     * @param email email пользователя
+     */
+    public void invalidate(String email) {
+        TransactionUtils.runAfterCommit(() -> {
+            generation.incrementAndGet();
+            entries.remove(email);
+        });
+    }
+
+    /**
+     * Возвращает текущую статистику кэша
+     */
+    public Statistics getStatistics() {
+        return new Statistics(hits.sum(), misses.sum(), evictions.sum(), entries.size(), maxSize);
+    }
+
+    /**
+     * Удаляет истёкшие записи, а если их не хватило — давно не использованные,
+     * оставляя запас в десятую часть размера, чтобы вытеснение не запускалось на каждый промах
+     */
+    private void evict(long now) {
+        synchronized (evictionLock) {
+            if (entries.size() <= maxSize) {
+                return;
+            }
+            int before = entries.size();
+            entries.values().removeIf(entry -> entry.expiresAt <= now);
+            int target = maxSize - maxSize / 10;
+            if (entries.size() > target) {
+                // Время доступа фиксируется до сортировки: читатели продолжают его обновлять
+                entries.entrySet().stream()
+                        .map(item -> new Candidate(item.getKey(), item.getValue(), item.getValue().lastAccessedAt))
+                        .sorted(Comparator.comparingLong(Candidate::lastAccessedAt))
+                        .limit(entries.size() - target)
+                        .toList()
+                        .forEach(candidate -> entries.remove(candidate.email(), candidate.entry()));
+            }
+            evictions.add(before - entries.size());
+            log.debug("Кэш пользователей: вытеснено {} записей", before - entries.size());
+        }
+    }
+
+    /**
+     * Статистика кэша пользователей
+     *
+     * @param evictions записи, удалённые при переполнении (истёкшие и давно не использованные)
+     */
+    public record Statistics(long hits, long misses, long evictions, int size, int maxSize) {
+
+        public double getHitRatio() {
+            long total = hits + misses;
+            return total == 0 ? 0 : (double) hits / total;
+        }
+    }
+
+    private record Candidate(String email, Entry entry, long lastAccessedAt) {
+    }
+
+    private static final class Entry {
+
+        private final UserDetails user;
+        private final long expiresAt;
+        private volatile long lastAccessedAt;
+
+        Entry(UserDetails user, long expiresAt, long lastAccessedAt) {
+            this.user = user;
+            this.expiresAt = expiresAt;
+            this.lastAccessedAt = lastAccessedAt;
+        }
+    }
+}
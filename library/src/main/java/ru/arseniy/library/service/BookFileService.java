@@ -1,9 +1,12 @@
 package ru.arseniy.library.service;
 
+import org.springframework.http.HttpRange;
 import org.springframework.web.multipart.MultipartFile;
+import ru.arseniy.library.model.BookFile;
+import ru.arseniy.library.model.BookFileKind;
+import ru.arseniy.library.model.CoverThumbnail;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.Optional;
 
 /**
@@ -37,31 +40,77 @@ public interface BookFileService {
      * Получает файл книги из хранилища
      *
      * @param bookId идентификатор книги
-     * @return поток данных файла книги, если файл найден
+     * @return файл книги, если файл найден
      */
-    Optional<InputStream> getBookFile(Integer bookId);
+    Optional<StoredFile> getBookFile(Integer bookId);
+
+    /**
+     * Получает диапазон байтов файла книги из хранилища
+     *
+     * @param bookId идентификатор книги
+     * @param range диапазон байтов или null, чтобы получить файл целиком
+     * @return содержимое диапазона вместе с метаданными файла, если файл найден
+     */
+    Optional<StoredFile> getBookFile(Integer bookId, HttpRange range);
+
+    /**
+     * Получает сведения о файле книги в хранилище без обращения к самому хранилищу
+     *
+     * @param bookId идентификатор книги
+     * @param kind вид файла
+     * @return ключ и метаданные файла, если файл был загружен
+     */
+    Optional<BookFile> getBookFileInfo(Integer bookId, BookFileKind kind);
 
     /**
      * Получает обложку книги из хранилища
      *
      * @param bookId идентификатор книги
-     * @return поток данных обложки книги, если файл найден
+     * @return файл обложки книги, если файл найден
+     */
+    Optional<StoredFile> getBookCover(Integer bookId);
+
+    /**
+     * Выбирает ширину миниатюры обложки для запрошенного размера
+     *
+     * @param requestedSize запрошенная ширина в пикселях (может быть null)
+     * @return ширина миниатюры или пустое значение, если нужна исходная обложка
+     */
+    Optional<Integer> selectCoverThumbnailWidth(Integer requestedSize);
+
+    /**
+     * Получает миниатюру обложки книги из хранилища
+     *
+     * @param bookId идентификатор книги
+     * @param width ширина миниатюры
+     * @return файл миниатюры, если она уже создана
+     */
+    Optional<StoredFile> getBookCoverThumbnail(Integer bookId, int width);
+
+    /**
+     * Получает сведения о миниатюре обложки без обращения к хранилищу
+     *
+     * @param bookId идентификатор книги
+     * @param width ширина миниатюры
+     * @return сведения о миниатюре, если она уже создана
      */
-    Optional<InputStream> getBookCover(Integer bookId);
+    Optional<CoverThumbnail> getCoverThumbnailInfo(Integer bookId, int width);
 
     /**
-     * Удаляет файл книги из хранилища
+     * Удаляет сведения о файле, обложке и миниатюрах книги и ставит их объекты в очередь на удаление
+     * из хранилища. Объекты удаляются в фоне после фиксации текущей транзакции.
      *
      * @param bookId идентификатор книги
-     * @return true, если файл успешно удален
      */
-    boolean deleteBookFile(Integer bookId);
+    void deleteBookFiles(Integer bookId);
 
     /**
-     * Удаляет обложку книги из хранилища
+     * Ищет в хранилище файлы книги, загруженные до появления сохранённых ключей,
+     * и сохраняет найденные ключи
      *
      * @param bookId идентификатор книги
-     * @return true, если файл успешно удален
+     * @param bookTitle название книги
+     * @return true, если найден хотя бы один файл
      */
-    boolean deleteBookCover(Integer bookId);
+    boolean backfillStorageKeys(Integer bookId, String bookTitle);
 }
@@ -0,0 +1,501 @@
+package ru.arseniy.library.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Component;
+import ru.arseniy.library.model.Book;
+import ru.arseniy.library.repository.BookRepository;
+import ru.arseniy.library.util.TransactionUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Встроенный инвертированный индекс книг для поиска без обращения к БД
+ * (включается настройкой {@code app.search.engine=index}).
+ * <p>
+ * Индексируются название, автор и описание книги (см. {@link SearchTokenizer}).
+ * Списки вхождений хранятся в массивах int, поэтому время поиска и расходуемая память зависят
+ * от количества совпадений, а не от объёма описаний и размера каталога. Результаты ранжируются по BM25,
+ * вхождения в название и автора весят больше, чем вхождения в описание.
+ * Книга подходит, если содержит все слова запроса; последнее слово ищется по префиксу.
+ * <p>
+ * Индекс строится при старте приложения и обновляется инкрементально после фиксации
+ * транзакций, изменяющих книги. Изменения, зафиксированные во время перестроения,
+ * повторяются на новом индексе перед его публикацией. Удалённые книги помечаются
+ * и вычищаются из списков вхождений, когда их становится больше, чем живых.
+ */
+@Component
+@Slf4j
+public class BookSearchIndex {
+
+    private static final int TITLE_WEIGHT = 3;
+    private static final int AUTHOR_WEIGHT = 2;
+    private static final int DESCRIPTION_WEIGHT = 1;
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+    private static final int MIN_PREFIX_LENGTH = 3;
+    private static final int LOAD_BATCH_SIZE = 500;
+    /** Во сколько раз число вхождений префикса может быть меньше числа документов, чтобы собирать оценки в массив */
+    private static final int DENSE_PREFIX_RATIO = 4;
+
+    private final BookRepository bookRepository;
+    private final boolean enabled;
+    private final int maxResults;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private Index index = new Index();
+    /** Изменения, зафиксированные во время перестроения индекса; null, если перестроение не идёт */
+    private List<Consumer<Index>> pendingUpdates;
+
+    public BookSearchIndex(BookRepository bookRepository,
+                           @Value("${app.search.engine:fulltext}") String searchEngine,
+                           @Value("${app.search.index.max-results:1000}") int maxResults) {
+        this.bookRepository = bookRepository;
+        this.enabled = "index".equalsIgnoreCase(searchEngine);
+        this.maxResults = maxResults;
+    }
+
+    /**
+     * Возвращает true, если поиск выполняется встроенным индексом
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Ищет книги по запросу
+     *
+     * @param query поисковый запрос
+     * @return ID найденных книг в порядке убывания релевантности (не больше {@code app.search.index.max-results})
+     */
+    public List<Integer> search(String query) {
+        List<String> terms = SearchTokenizer.tokenize(query);
+        if (terms.isEmpty()) {
+            return List.of();
+        }
+        lock.readLock().lock();
+        try {
+            return index.search(terms, maxResults);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Полностью перестраивает индекс по данным из БД
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public synchronized void rebuild() {
+        if (!enabled) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            pendingUpdates = new ArrayList<>();
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        Index rebuilt = new Index();
+        int lastId = 0;
+        List<BookRepository.BookSearchText> batch;
+        do {
+            batch = bookRepository.findSearchTextsAfter(lastId, PageRequest.of(0, LOAD_BATCH_SIZE));
+            for (BookRepository.BookSearchText book : batch) {
+                rebuilt.add(book.getId(), book.getTitle(), book.getAuthor(), book.getDescription());
+                lastId = book.getId();
+            }
+        } while (batch.size() == LOAD_BATCH_SIZE);
+
+        lock.writeLock().lock();
+        try {
+            // Изменения могли зафиксироваться уже после чтения соответствующих книг
+            for (Consumer<Index> update : pendingUpdates) {
+                update.accept(rebuilt);
+            }
+            rebuilt.compactIfNeeded();
+            index = rebuilt;
+        } finally {
+            pendingUpdates = null;
+            lock.writeLock().unlock();
+        }
+        log.info("Поисковый индекс построен: {} книг, {} термов", rebuilt.liveCount, rebuilt.dictionary.size());
+    }
+
+    /**
+     * Добавляет или переиндексирует книгу после фиксации текущей транзакции
+     *
+     * @param book сохранённая книга
+     */
+    public void onBookSaved(Book book) {
+        if (!enabled) {
+            return;
+        }
+        Integer bookId = book.getId();
+        String title = book.getTitle();
+        String author = book.getAuthor();
+        String description = book.getDescription();
+        TransactionUtils.runAfterCommit(() -> apply(target -> {
+            target.remove(bookId);
+            target.add(bookId, title, author, description);
+        }));
+    }
+
+    /**
+     * Удаляет книгу из индекса после фиксации текущей транзакции
+     *
+     * @param bookId ID книги
+     */
+    public void onBookDeleted(Integer bookId) {
+        if (!enabled) {
+            return;
+        }
+        TransactionUtils.runAfterCommit(() -> apply(target -> target.remove(bookId)));
+    }
+
+    /**
+     * Применяет изменение к текущему индексу и запоминает его, если индекс перестраивается
+     */
+    private void apply(Consumer<Index> update) {
+        lock.writeLock().lock();
+        try {
+            update.accept(index);
+            index.compactIfNeeded();
+            if (pendingUpdates != null) {
+                pendingUpdates.add(update);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Данные индекса. Документы нумеруются последовательно в порядке добавления,
+     * поэтому списки вхождений всегда отсортированы по номеру документа.
+     */
+    private static final class Index {
+
+        private final NavigableMap<String, Integer> dictionary = new TreeMap<>();
+        private final List<Postings> postings = new ArrayList<>();
+        private final Map<Integer, Integer> docByBookId = new HashMap<>();
+        private final BitSet live = new BitSet();
+
+        private int[] bookIds = new int[16];
+        private int[] docLengths = new int[16];
+        private int[][] docTerms = new int[16][];
+        private int docCount;
+        private int liveCount;
+        private long totalLength;
+
+        void add(int bookId, String title, String author, String description) {
+            Map<Integer, Integer> frequencies = new HashMap<>();
+            int length = addTerms(frequencies, title, TITLE_WEIGHT)
+                    + addTerms(frequencies, author, AUTHOR_WEIGHT)
+                    + addTerms(frequencies, description, DESCRIPTION_WEIGHT);
+
+            int doc = docCount++;
+            if (doc == bookIds.length) {
+                bookIds = Arrays.copyOf(bookIds, doc * 2);
+                docLengths = Arrays.copyOf(docLengths, doc * 2);
+                docTerms = Arrays.copyOf(docTerms, doc * 2);
+            }
+            int[] terms = new int[frequencies.size()];
+            int i = 0;
+            for (Map.Entry<Integer, Integer> entry : frequencies.entrySet()) {
+                postings.get(entry.getKey()).add(doc, entry.getValue());
+                terms[i++] = entry.getKey();
+            }
+            bookIds[doc] = bookId;
+            docLengths[doc] = length;
+            docTerms[doc] = terms;
+            docByBookId.put(bookId, doc);
+            live.set(doc);
+            liveCount++;
+            totalLength += length;
+        }
+
+        private int addTerms(Map<Integer, Integer> frequencies, String text, int weight) {
+            List<String> terms = SearchTokenizer.tokenize(text);
+            for (String term : terms) {
+                Integer termId = dictionary.get(term);
+                if (termId == null) {
+                    termId = postings.size();
+                    dictionary.put(term, termId);
+                    postings.add(new Postings());
+                }
+                frequencies.merge(termId, weight, Integer::sum);
+            }
+            return terms.size() * weight;
+        }
+
+        void remove(int bookId) {
+            Integer doc = docByBookId.remove(bookId);
+            if (doc == null) {
+                return;
+            }
+            for (int termId : docTerms[doc]) {
+                postings.get(termId).liveDocs--;
+            }
+            live.clear(doc);
+            liveCount--;
+            totalLength -= docLengths[doc];
+            docTerms[doc] = null;
+        }
+
+        /**
+         * Удаляет из списков вхождений помеченные документы и перенумеровывает оставшиеся
+         */
+        void compactIfNeeded() {
+            if (docCount - liveCount <= Math.max(liveCount, 1000)) {
+                return;
+            }
+            int[] newNumbers = new int[docCount];
+            int next = 0;
+            for (int doc = live.nextSetBit(0); doc >= 0; doc = live.nextSetBit(doc + 1)) {
+                newNumbers[doc] = next;
+                bookIds[next] = bookIds[doc];
+                docLengths[next] = docLengths[doc];
+                docTerms[next] = docTerms[doc];
+                docByBookId.put(bookIds[next], next);
+                next++;
+            }
+            for (Postings list : postings) {
+                list.retain(live, newNumbers);
+            }
+            Arrays.fill(docTerms, next, docCount, null);
+            live.clear();
+            live.set(0, next);
+            docCount = next;
+        }
+
+        List<Integer> search(List<String> terms, int maxResults) {
+            double averageLength = liveCount > 0 ? (double) totalLength / liveCount : 0;
+            List<Hits> termHits = new ArrayList<>(terms.size());
+            for (int i = 0; i < terms.size(); i++) {
+                Hits hits = hits(expand(terms.get(i), i == terms.size() - 1), averageLength);
+                if (hits.size == 0) {
+                    return List.of();
+                }
+                termHits.add(hits);
+            }
+
+            // Пересечение начинается с самого короткого списка, чтобы промежуточные результаты были минимальны
+            termHits.sort(Comparator.comparingInt(hits -> hits.size));
+            Hits found = termHits.get(0);
+            for (int i = 1; i < termHits.size() && found.size > 0; i++) {
+                found = found.intersect(termHits.get(i));
+            }
+
+            Hits matched = found;
+            Integer[] order = new Integer[matched.size];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> matched.scores[a] != matched.scores[b]
+                    ? Float.compare(matched.scores[b], matched.scores[a])
+                    : Integer.compare(bookIds[matched.docs[a]], bookIds[matched.docs[b]]));
+
+            List<Integer> result = new ArrayList<>(Math.min(order.length, maxResults));
+            for (int i = 0; i < order.length && i < maxResults; i++) {
+                result.add(bookIds[matched.docs[order[i]]]);
+            }
+            return result;
+        }
+
+        /**
+         * Вычисляет оценки BM25 живых документов, содержащих слово запроса
+         */
+        private Hits hits(List<Postings> expansions, double averageLength) {
+            if (expansions.size() == 1) {
+                Postings list = expansions.get(0);
+                Hits hits = new Hits(list.liveDocs);
+                double idf = idf(list);
+                for (int j = 0; j < list.size; j++) {
+                    int doc = list.docs[j];
+                    if (live.get(doc)) {
+                        hits.add(doc, score(list.frequencies[j], docLengths[doc], idf, averageLength));
+                    }
+                }
+                return hits;
+            }
+
+            // Для слова, раскрытого по префиксу, учитывается лучший вариант
+            int total = 0;
+            for (Postings list : expansions) {
+                total += list.liveDocs;
+            }
+            if (total >= docCount / DENSE_PREFIX_RATIO) {
+                return denseHits(expansions, averageLength);
+            }
+            // Пары (документ, оценка) упаковываются в long: оценки неотрицательны, поэтому
+            // после сортировки последняя пара каждого документа содержит его лучшую оценку
+            long[] pairs = new long[total];
+            int count = 0;
+            for (Postings list : expansions) {
+                double idf = idf(list);
+                for (int j = 0; j < list.size; j++) {
+                    int doc = list.docs[j];
+                    if (live.get(doc)) {
+                        float score = score(list.frequencies[j], docLengths[doc], idf, averageLength);
+                        pairs[count++] = (long) doc << 32 | Float.floatToIntBits(score) & 0xFFFFFFFFL;
+                    }
+                }
+            }
+            Arrays.sort(pairs, 0, count);
+            Hits hits = new Hits(count);
+            for (int i = 0; i < count; i++) {
+                if (i + 1 == count || pairs[i] >>> 32 != pairs[i + 1] >>> 32) {
+                    hits.add((int) (pairs[i] >>> 32), Float.intBitsToFloat((int) pairs[i]));
+                }
+            }
+            return hits;
+        }
+
+        /**
+         * Вариант для коротких префиксов, под которые подходит значительная часть каталога:
+         * оценки собираются в массив по всем документам, его размер сопоставим с числом вхождений
+         */
+        private Hits denseHits(List<Postings> expansions, double averageLength) {
+            float[] best = new float[docCount];
+            int count = 0;
+            for (Postings list : expansions) {
+                double idf = idf(list);
+                for (int j = 0; j < list.size; j++) {
+                    int doc = list.docs[j];
+                    if (live.get(doc)) {
+                        float score = score(list.frequencies[j], docLengths[doc], idf, averageLength);
+                        if (best[doc] == 0) {
+                            count++;
+                        }
+                        best[doc] = Math.max(best[doc], score);
+                    }
+                }
+            }
+            Hits hits = new Hits(count);
+            for (int doc = 0; doc < docCount && hits.size < count; doc++) {
+                if (best[doc] != 0) {
+                    hits.add(doc, best[doc]);
+                }
+            }
+            return hits;
+        }
+
+        private double idf(Postings list) {
+            return Math.log(1 + (liveCount - list.liveDocs + 0.5) / (list.liveDocs + 0.5));
+        }
+
+        private static float score(double tf, int docLength, double idf, double averageLength) {
+            double norm = K1 * (1 - B + B * docLength / averageLength);
+            return (float) (idf * tf * (K1 + 1) / (tf + norm));
+        }
+
+        /**
+         * Возвращает списки вхождений терма, а для последнего слова запроса —
+         * всех термов, начинающихся с него
+         */
+        private List<Postings> expand(String term, boolean prefix) {
+            List<Postings> result = new ArrayList<>();
+            if (prefix && term.length() >= MIN_PREFIX_LENGTH) {
+                for (Integer termId : dictionary.subMap(term, true, term + Character.MAX_VALUE, false).values()) {
+                    result.add(postings.get(termId));
+                }
+            } else {
+                Integer termId = dictionary.get(term);
+                if (termId != null) {
+                    result.add(postings.get(termId));
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Документы, подходящие под часть запроса, по возрастанию номера, и их суммарные оценки
+     */
+    private static final class Hits {
+
+        private final int[] docs;
+        private final float[] scores;
+        private int size;
+
+        Hits(int capacity) {
+            docs = new int[capacity];
+            scores = new float[capacity];
+        }
+
+        void add(int doc, float score) {
+            docs[size] = doc;
+            scores[size] = score;
+            size++;
+        }
+
+        /**
+         * Оставляет документы, которые есть в обоих списках, складывая их оценки
+         */
+        Hits intersect(Hits other) {
+            Hits result = new Hits(Math.min(size, other.size));
+            int i = 0;
+            int j = 0;
+            while (i < size && j < other.size) {
+                if (docs[i] < other.docs[j]) {
+                    i++;
+                } else if (docs[i] > other.docs[j]) {
+                    j++;
+                } else {
+                    result.add(docs[i], scores[i] + other.scores[j]);
+                    i++;
+                    j++;
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Список вхождений терма: номера документов и взвешенная частота терма в каждом из них
+     */
+    private static final class Postings {
+
+        private int[] docs = new int[4];
+        private int[] frequencies = new int[4];
+        private int size;
+        private int liveDocs;
+
+        void add(int doc, int frequency) {
+            if (size == docs.length) {
+                docs = Arrays.copyOf(docs, size * 2);
+                frequencies = Arrays.copyOf(frequencies, size * 2);
+            }
+            docs[size] = doc;
+            frequencies[size] = frequency;
+            size++;
+            liveDocs++;
+        }
+
+        void retain(BitSet live, int[] newNumbers) {
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                if (live.get(docs[i])) {
+                    docs[kept] = newNumbers[docs[i]];
+                    frequencies[kept] = frequencies[i];
+                    kept++;
+                }
+            }
+            size = kept;
+        }
+    }
+}
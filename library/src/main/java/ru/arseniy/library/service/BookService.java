@@ -5,22 +5,28 @@ import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageImpl;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.http.HttpRange;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.web.multipart.MultipartFile;
+import ru.arseniy.library.dto.BookDTO;
 import ru.arseniy.library.exception.ResourceNotFoundException;
 import ru.arseniy.library.model.Book;
+import ru.arseniy.library.model.BookFile;
+import ru.arseniy.library.model.BookFileKind;
+import ru.arseniy.library.model.BookRatingSummary;
 import ru.arseniy.library.model.Category;
+import ru.arseniy.library.model.CoverThumbnail;
+import ru.arseniy.library.repository.BookFilter;
+import ru.arseniy.library.repository.BookRatingSummaryRepository;
 import ru.arseniy.library.repository.BookRepository;
 import ru.arseniy.library.repository.CategoryRepository;
-import ru.arseniy.library.repository.RatingRepository;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.time.LocalDateTime;
 import java.util.*;
 import java.util.stream.Collectors;
-import java.util.Comparator;
 
 @Service
 @RequiredArgsConstructor
@@ -29,7 +35,12 @@ public class BookService {
     private final BookRepository bookRepository;
     private final CategoryRepository categoryRepository;
     private final BookFileService bookFileService;
-    private final RatingRepository ratingRepository;
+    private final BookRatingSummaryRepository bookRatingSummaryRepository;
+    private final PopularBooksRanking popularBooksRanking;
+    private final BookSearchIndex bookSearchIndex;
+    private final CategoryTreeCache categoryTreeCache;
+    private final CategoryBookCountCache categoryBookCountCache;
+    private final CoverImageCache coverImageCache;
     
     public Page<Book> getAllBooks(Pageable pageable) {
         return bookRepository.findAll(pageable);
@@ -40,64 +51,23 @@ public class BookService {
                 .orElseThrow(() -> new ResourceNotFoundException("Книга с ID " + id + " не найдена"));
         
         // Обогащаем книгу информацией о рейтинге
-        Double averageRating = ratingRepository.getAverageRatingByBookId(book.getId());
-        Long ratingCount = ratingRepository.countRatingsByBookId(book.getId());
-        
-        if (averageRating != null) {
-            book.setRating(averageRating);
-        } else {
-            book.setRating(0.0);
-        }
-        
-        if (ratingCount != null) {
-            book.setRatingsCount(ratingCount.intValue());
-        } else {
-            book.setRatingsCount(0);
-        }
+        applyRatingSummary(book, bookRatingSummaryRepository.findById(book.getId()).orElse(null));
         
         return book;
     }
     
     public Page<Book> searchBooks(String query, Pageable pageable) {
-        return bookRepository.searchBooks(query, pageable);
+        return findBooks(BookFilter.builder().query(query).build(), pageable);
     }
     
     /**
-     * Получает популярные книги, отсортированные по рейтингу
+     * Получает популярные книги из рейтинга, поддерживаемого в памяти
      *
      * @param limit максимальное количество книг для возврата
      * @return список популярных книг
      */
-    public List<Book> getPopularBooks(int limit) {
-        // Получаем все книги
-        List<Book> allBooks = bookRepository.findAll();
-        
-        // Обогащаем книги информацией о рейтинге
-        for (Book book : allBooks) {
-            Double averageRating = ratingRepository.getAverageRatingByBookId(book.getId());
-            Long ratingCount = ratingRepository.countRatingsByBookId(book.getId());
-            
-            if (averageRating != null) {
-                book.setRating(averageRating);
-            } else {
-                book.setRating(0.0);
-            }
-            
-            if (ratingCount != null) {
-                book.setRatingsCount(ratingCount.intValue());
-            } else {
-                book.setRatingsCount(0);
-            }
-        }
-        
-        // Сортируем книги по рейтингу (от высокого к низкому)
-        List<Book> sortedBooks = allBooks.stream()
-                .sorted(Comparator.comparing(Book::getRating, Comparator.reverseOrder())
-                        .thenComparing(book -> book.getRatingsCount() != null ? book.getRatingsCount() : 0, Comparator.reverseOrder()))
-                .limit(limit)
-                .collect(Collectors.toList());
-        
-        return sortedBooks;
+    public List<BookDTO> getPopularBooks(int limit) {
+        return popularBooksRanking.getTopBooks(limit);
     }
     
     /**
@@ -115,21 +85,20 @@ public class BookService {
     
     /**
      * Получает книги по категории с учетом всей иерархии подкатегорий (для глубокой иерархии)
-     * Примечание: Использует рекурсию для получения всех подкатегорий любой глубины
+     * Примечание: подкатегории любой глубины берутся из кэша дерева категорий
      *
      * @param categoryId ID категории
      * @param pageable объект пагинации
      * @return страницу книг
      */
     public Page<Book> getBooksByCategoryWithHierarchy(Integer categoryId, Pageable pageable) {
-        // Получаем категорию
-        Category category = categoryRepository.findById(categoryId)
-                .orElseThrow(() -> new ResourceNotFoundException("Категория с ID " + categoryId + " не найдена"));
+        CategoryTree tree = categoryTreeCache.getTree();
+        if (!tree.contains(categoryId)) {
+            throw new ResourceNotFoundException("Категория с ID " + categoryId + " не найдена");
+        }
         
         // Получаем все ID категорий (включая саму категорию и все подкатегории любой глубины)
-        Set<Integer> allCategoryIds = new HashSet<>();
-        allCategoryIds.add(categoryId);
-        getAllSubcategoryIds(category, allCategoryIds);
+        Set<Integer> allCategoryIds = tree.getDescendantIds(categoryId);
         
         // Используем специальный запрос, который исключает дубликаты на уровне SQL
         Page<Book> page = bookRepository.findDistinctByCategoryIdIn(new ArrayList<>(allCategoryIds), pageable);
@@ -137,22 +106,6 @@ public class BookService {
         return page;
     }
     
-    /**
-     * Рекурсивно собирает ID всех подкатегорий
-     *
-     * @param category родительская категория
-     * @param result множество для накопления ID категорий
-     */
-    private void getAllSubcategoryIds(Category category, Set<Integer> result) {
-        // Загружаем подкатегории текущей категории
-        List<Category> subcategories = categoryRepository.findByParentCategoryId(category.getId());
-        
-        for (Category subcategory : subcategories) {
-            result.add(subcategory.getId());
-            getAllSubcategoryIds(subcategory, result);
-        }
-    }
-    
     @Transactional
     public Book createBook(Book book, List<Integer> categoryIds) {
         book.setUploadDate(LocalDateTime.now());
@@ -167,7 +120,11 @@ public class BookService {
             book.setCategories(categories);
         }
         
-        return bookRepository.save(book);
+        Book savedBook = bookRepository.save(book);
+        popularBooksRanking.onBookSaved(savedBook.getId());
+        bookSearchIndex.onBookSaved(savedBook);
+        categoryBookCountCache.invalidate();
+        return savedBook;
     }
     
     @Transactional
@@ -196,7 +153,11 @@ public class BookService {
             book.setCategories(categories);
         }
         
-        return bookRepository.save(book);
+        Book savedBook = bookRepository.save(book);
+        popularBooksRanking.onBookSaved(savedBook.getId());
+        bookSearchIndex.onBookSaved(savedBook);
+        categoryBookCountCache.invalidate();
+        return savedBook;
     }
     
     @Transactional
@@ -204,11 +165,14 @@ public class BookService {
         Book book = bookRepository.findById(id)
                 .orElseThrow(() -> new ResourceNotFoundException("Книга с ID " + id + " не найдена"));
         
-        // Удаляем файлы книги из хранилища
-        bookFileService.deleteBookFile(id);
-        bookFileService.deleteBookCover(id);
+        // Файлы книги удаляются из хранилища в фоне после фиксации транзакции
+        bookFileService.deleteBookFiles(id);
         
         bookRepository.delete(book);
+        popularBooksRanking.onBookDeleted(id);
+        bookSearchIndex.onBookDeleted(id);
+        categoryBookCountCache.invalidate();
+        coverImageCache.invalidate(id);
     }
     
     /**
@@ -226,7 +190,9 @@ public class BookService {
         String fileUrl = bookFileService.uploadBookFile(file, id);
         book.setFileUrl(fileUrl);
         
-        return bookRepository.save(book);
+        Book savedBook = bookRepository.save(book);
+        popularBooksRanking.onBookSaved(id);
+        return savedBook;
     }
     
     /**
@@ -244,35 +210,110 @@ public class BookService {
         String coverUrl = bookFileService.uploadBookCover(file, id);
         book.setCoverImageUrl(coverUrl);
         
-        return bookRepository.save(book);
+        Book savedBook = bookRepository.save(book);
+        popularBooksRanking.onBookSaved(id);
+        coverImageCache.invalidate(id);
+        return savedBook;
     }
     
     /**
      * Получает файл книги из хранилища
      *
      * @param id идентификатор книги
-     * @return поток данных файла книги, если файл найден
+     * @return файл книги, если файл найден
      */
-    public Optional<InputStream> getBookFile(Integer id) {
+    public Optional<StoredFile> getBookFile(Integer id) {
+        return getBookFile(id, null);
+    }
+    
+    /**
+     * Получает диапазон байтов файла книги из хранилища
+     *
+     * @param id идентификатор книги
+     * @param range диапазон байтов или null, чтобы получить файл целиком
+     * @return содержимое диапазона вместе с метаданными файла, если файл найден
+     */
+    public Optional<StoredFile> getBookFile(Integer id, HttpRange range) {
         // Проверяем, существует ли книга
         getBookById(id);
         
-        return bookFileService.getBookFile(id);
+        return bookFileService.getBookFile(id, range);
+    }
+    
+    /**
+     * Получает сведения о файле книги в хранилище (ключ и метаданные) без обращения к самому хранилищу
+     *
+     * @param id идентификатор книги
+     * @param kind вид файла
+     * @return сведения о файле, если файл был загружен
+     */
+    public Optional<BookFile> getBookFileInfo(Integer id, BookFileKind kind) {
+        return bookFileService.getBookFileInfo(id, kind);
     }
     
     /**
      * Получает обложку книги из хранилища
      *
      * @param id идентификатор книги
-     * @return поток данных обложки книги, если файл найден
+     * @return файл обложки книги, если файл найден
      */
-    public Optional<InputStream> getBookCover(Integer id) {
+    public Optional<StoredFile> getBookCover(Integer id) {
         // Проверяем, существует ли книга
         getBookById(id);
         
         return bookFileService.getBookCover(id);
     }
     
+    /**
+     * Получает обложку книги из кэша в памяти или загружает её из хранилища
+     *
+     * @param id идентификатор книги
+     * @return обложка книги, если она найдена
+     * @throws ResourceNotFoundException если книга не найдена
+     */
+    public Optional<CoverImage> getBookCoverImage(Integer id) {
+        return getBookCoverImage(id, null);
+    }
+    
+    /**
+     * Получает обложку книги или её миниатюру подходящего размера из кэша в памяти или из хранилища.
+     * Если миниатюры ещё нет, возвращается исходная обложка.
+     *
+     * @param id идентификатор книги
+     * @param size запрошенная ширина в пикселях или null, чтобы получить исходную обложку
+     * @return обложка книги, если она найдена
+     * @throws ResourceNotFoundException если книга не найдена
+     */
+    public Optional<CoverImage> getBookCoverImage(Integer id, Integer size) {
+        Optional<Integer> width = bookFileService.selectCoverThumbnailWidth(size);
+        if (width.isPresent()) {
+            Optional<CoverImage> thumbnail = coverImageCache.getCover(id, width.get(),
+                    bookId -> bookFileService.getBookCoverThumbnail(bookId, width.get()));
+            if (thumbnail.isPresent()) {
+                return thumbnail;
+            }
+        }
+        
+        Optional<CoverImage> cover = coverImageCache.getCover(id, bookFileService::getBookCover);
+        if (cover.isEmpty()) {
+            // Проверяем, существует ли книга, только если обложки нет
+            getBookById(id);
+        }
+        return cover;
+    }
+    
+    /**
+     * Получает сведения о миниатюре обложки подходящего размера без обращения к хранилищу
+     *
+     * @param id идентификатор книги
+     * @param size запрошенная ширина в пикселях (может быть null)
+     * @return сведения о миниатюре, если она уже создана
+     */
+    public Optional<CoverThumbnail> getCoverThumbnailInfo(Integer id, Integer size) {
+        return bookFileService.selectCoverThumbnailWidth(size)
+                .flatMap(width -> bookFileService.getCoverThumbnailInfo(id, width));
+    }
+    
     /**
      * Получает книги по категории с сортировкой по рейтингу
      *
@@ -284,74 +325,45 @@ public class BookService {
      * @return страницу книг, отсортированных по рейтингу
      */
     public Page<Book> getBooksByCategoryWithRatingSort(Integer categoryId, int page, int size, String direction, boolean includeSubcategories) {
-        List<Book> allBooks;
-        
-        if (includeSubcategories) {
-            // Получаем все книги категории с подкатегориями без пагинации
-            Category category = categoryRepository.findById(categoryId)
-                    .orElseThrow(() -> new ResourceNotFoundException("Категория с ID " + categoryId + " не найдена"));
-            
-            Set<Integer> allCategoryIds = new HashSet<>();
-            allCategoryIds.add(categoryId);
-            getAllSubcategoryIds(category, allCategoryIds);
-            
-            allBooks = bookRepository.findByCategoryIdInAsList(new ArrayList<>(allCategoryIds));
-        } else {
-            // Получаем книги только из указанной категории
-            allBooks = bookRepository.findByExactCategoryIdAsList(categoryId);
-        }
-        
-        // Обогащаем книги информацией о рейтинге
-        enrichBooksWithRatings(allBooks);
-        
-        // Сортируем книги по рейтингу
-        Comparator<Book> ratingComparator;
-        if ("desc".equalsIgnoreCase(direction)) {
-            // Сортировка по убыванию: высокие рейтинги первыми
-            ratingComparator = Comparator.comparing(Book::getRating, Comparator.reverseOrder())
-                    .thenComparing(book -> book.getRatingsCount() != null ? book.getRatingsCount() : 0, Comparator.reverseOrder());
-        } else {
-            // Сортировка по возрастанию: низкие рейтинги первыми
-            ratingComparator = Comparator.comparing(Book::getRating)
-                    .thenComparing(book -> book.getRatingsCount() != null ? book.getRatingsCount() : 0);
+        return getBooksByCategoryWithRatingSortAndFilters(categoryId, page, size, direction, includeSubcategories, null, null, null, 0);
+    }
+    
+    /**
+     * Обогащает книги информацией о рейтингах.
+     * Агрегаты для всех книг списка загружаются одним запросом.
+     *
+     * @param books список книг для обогащения
+     */
+    private void enrichBooksWithRatings(List<Book> books) {
+        if (books.isEmpty()) {
+            return;
         }
         
-        List<Book> sortedBooks = allBooks.stream()
-                .sorted(ratingComparator)
-                .collect(Collectors.toList());
-        
-        // Применяем пагинацию вручную
-        int totalElements = sortedBooks.size();
-        int startIndex = page * size;
-        int endIndex = Math.min(startIndex + size, totalElements);
+        Set<Integer> bookIds = books.stream()
+                .map(Book::getId)
+                .collect(Collectors.toSet());
         
-        List<Book> paginatedBooks = sortedBooks.subList(startIndex, endIndex);
+        Map<Integer, BookRatingSummary> summaries = bookRatingSummaryRepository.findByBookIdIn(bookIds).stream()
+                .collect(Collectors.toMap(BookRatingSummary::getBookId, summary -> summary));
         
-        Pageable pageable = PageRequest.of(page, size);
-        return new PageImpl<>(paginatedBooks, pageable, totalElements);
+        for (Book book : books) {
+            applyRatingSummary(book, summaries.get(book.getId()));
+        }
     }
     
     /**
-     * Обогащает книги информацией о рейтингах
+     * Переносит агрегированный рейтинг в книгу
      *
-     * @param books список книг для обогащения
+     * @param book книга
+     * @param summary агрегированный рейтинг или null, если у книги нет оценок
      */
-    private void enrichBooksWithRatings(List<Book> books) {
-        for (Book book : books) {
-            Double averageRating = ratingRepository.getAverageRatingByBookId(book.getId());
-            Long ratingCount = ratingRepository.countRatingsByBookId(book.getId());
-            
-            if (averageRating != null) {
-                book.setRating(averageRating);
-            } else {
-                book.setRating(0.0);
-            }
-            
-            if (ratingCount != null) {
-                book.setRatingsCount(ratingCount.intValue());
-            } else {
-                book.setRatingsCount(0);
-            }
+    private void applyRatingSummary(Book book, BookRatingSummary summary) {
+        if (summary != null) {
+            book.setRating(summary.getAverageRating());
+            book.setRatingsCount(summary.getRatingsCount());
+        } else {
+            book.setRating(0.0);
+            book.setRatingsCount(0);
         }
     }
     
@@ -365,37 +377,7 @@ public class BookService {
      * @return страница книг, отсортированных по рейтингу
      */
     public Page<Book> searchBooksWithRatingSort(String query, int page, int size, String direction) {
-        // Получаем все книги по поисковому запросу без пагинации
-        List<Book> allBooks = bookRepository.searchBooksAsList(query);
-        
-        // Обогащаем книги информацией о рейтинге
-        enrichBooksWithRatings(allBooks);
-        
-        // Сортируем книги по рейтингу
-        Comparator<Book> ratingComparator;
-        if ("desc".equalsIgnoreCase(direction)) {
-            // Сортировка по убыванию: высокие рейтинги первыми
-            ratingComparator = Comparator.comparing(Book::getRating, Comparator.reverseOrder())
-                    .thenComparing(book -> book.getRatingsCount() != null ? book.getRatingsCount() : 0, Comparator.reverseOrder());
-        } else {
-            // Сортировка по возрастанию: низкие рейтинги первыми
-            ratingComparator = Comparator.comparing(Book::getRating)
-                    .thenComparing(book -> book.getRatingsCount() != null ? book.getRatingsCount() : 0);
-        }
-        
-        List<Book> sortedBooks = allBooks.stream()
-                .sorted(ratingComparator)
-                .collect(Collectors.toList());
-        
-        // Применяем пагинацию вручную
-        int totalElements = sortedBooks.size();
-        int startIndex = page * size;
-        int endIndex = Math.min(startIndex + size, totalElements);
-        
-        List<Book> paginatedBooks = sortedBooks.subList(startIndex, endIndex);
-        
-        Pageable pageable = PageRequest.of(page, size);
-        return new PageImpl<>(paginatedBooks, pageable, totalElements);
+        return searchBooksWithRatingSortAndFilters(query, page, size, direction, null, null, null, 0);
     }
     
     /**
@@ -405,29 +387,7 @@ public class BookService {
      * @return список всех ID (родительская + все подкатегории)
      */
     private List<Integer> getAllCategoryIds(Integer categoryId) {
-        List<Integer> allIds = new ArrayList<>();
-        allIds.add(categoryId);
-        
-        // Получаем все подкатегории рекурсивно
-        collectSubcategoryIds(categoryId, allIds);
-        
-        return allIds;
-    }
-    
-    /**
-     * Рекурсивно собирает ID всех подкатегорий
-     *
-     * @param parentCategoryId ID родительской категории
-     * @param allIds список для накопления ID
-     */
-    private void collectSubcategoryIds(Integer parentCategoryId, List<Integer> allIds) {
-        List<Category> subcategories = categoryRepository.findByParentCategoryId(parentCategoryId);
-        
-        for (Category subcategory : subcategories) {
-            allIds.add(subcategory.getId());
-            // Рекурсивно обрабатываем вложенные подкатегории
-            collectSubcategoryIds(subcategory.getId(), allIds);
-        }
+        return new ArrayList<>(categoryTreeCache.getTree().getDescendantIds(categoryId));
     }
     
     /**
@@ -443,19 +403,10 @@ public class BookService {
             return Page.empty(pageable);
         }
         
-        List<Integer> allCategoryIds = new ArrayList<>();
-        
-        if (includeSubcategories) {
-            // Для каждой родительской категории получаем все подкатегории
-            for (Integer categoryId : categoryIds) {
-                allCategoryIds.addAll(getAllCategoryIds(categoryId));
-            }
-        } else {
-            // Используем только родительские категории
-            allCategoryIds = categoryIds;
-        }
+        List<Integer> allCategoryIds = resolveCategoryIds(categoryIds, includeSubcategories);
         
         Page<Book> result = bookRepository.findBooksByMultipleCategories(allCategoryIds, pageable);
+        enrichBooksWithRatings(result.getContent());
         
         return result;
     }
@@ -471,319 +422,177 @@ public class BookService {
      * @return страница книг
      */
     public Page<Book> getBooksByMultipleCategoriesWithRatingSort(List<Integer> categoryIds, int page, int size, String direction, boolean includeSubcategories) {
-        if (categoryIds == null || categoryIds.isEmpty()) {
-            return Page.empty(PageRequest.of(page, size));
-        }
-        
-        List<Integer> allCategoryIds = new ArrayList<>();
-        
-        if (includeSubcategories) {
-            // Для каждой родительской категории получаем все подкатегории
-            for (Integer categoryId : categoryIds) {
-                allCategoryIds.addAll(getAllCategoryIds(categoryId));
-            }
-        } else {
-            // Используем только родительские категории
-            allCategoryIds = categoryIds;
+        return getBooksByMultipleCategoriesWithRatingSortAndFilters(categoryIds, page, size, direction, includeSubcategories, null, null, null, 0);
+    }
+    
+    /**
+     * Выполняет выборку книг по фильтру на стороне БД и обогащает полученную страницу рейтингами.
+     * Если включён встроенный поисковый индекс, поисковый запрос обрабатывается им.
+     */
+    private Page<Book> findBooks(BookFilter filter, Pageable pageable) {
+        Page<Book> page = filter.hasQuery() && bookSearchIndex.isEnabled()
+                ? findBooksInSearchIndex(filter, pageable)
+                : bookRepository.findByFilter(filter, pageable);
+        enrichBooksWithRatings(page.getContent());
+        return page;
+    }
+    
+    /**
+     * Ищет книги встроенным индексом, а остальные условия фильтра применяет в БД.
+     * При сортировке по релевантности порядок и пагинация берутся из результатов индекса,
+     * при любой другой сортировке найденные книги сортируются и разбиваются на страницы в БД.
+     */
+    private Page<Book> findBooksInSearchIndex(BookFilter filter, Pageable pageable) {
+        List<Integer> foundIds = bookSearchIndex.search(filter.getQuery());
+        if (foundIds.isEmpty()) {
+            return Page.empty(pageable);
         }
         
-        // Получаем все книги по категориям без пагинации
-        List<Book> allBooks = bookRepository.findBooksByMultipleCategoriesAsList(allCategoryIds);
-        
-        // Обогащаем книги информацией о рейтинге
-        enrichBooksWithRatings(allBooks);
-        
-        // Сортируем книги по рейтингу
-        Comparator<Book> ratingComparator;
-        if ("desc".equalsIgnoreCase(direction)) {
-            // Сортировка по убыванию: высокие рейтинги первыми
-            ratingComparator = Comparator.comparing(Book::getRating, Comparator.reverseOrder())
-                    .thenComparing(book -> book.getRatingsCount() != null ? book.getRatingsCount() : 0, Comparator.reverseOrder());
-        } else {
-            // Сортировка по возрастанию: низкие рейтинги первыми
-            ratingComparator = Comparator.comparing(Book::getRating)
-                    .thenComparing(book -> book.getRatingsCount() != null ? book.getRatingsCount() : 0);
+        BookFilter restrictedFilter = filter.toBuilder()
+                .query(null)
+                .bookIds(foundIds)
+                .build();
+        Sort.Order firstOrder = pageable.getSort().stream().findFirst().orElse(null);
+        if (firstOrder == null || !BookFilter.RELEVANCE_SORT_PROPERTY.equals(firstOrder.getProperty())) {
+            return bookRepository.findByFilter(restrictedFilter, pageable);
         }
         
-        List<Book> sortedBooks = allBooks.stream()
-                .sorted(ratingComparator)
+        Set<Integer> matchingIds = new HashSet<>(bookRepository.findIdsByFilter(restrictedFilter));
+        List<Integer> orderedIds = foundIds.stream()
+                .filter(matchingIds::contains)
                 .collect(Collectors.toList());
         
-        // Применяем пагинацию вручную
-        int totalElements = sortedBooks.size();
-        int startIndex = page * size;
-        int endIndex = Math.min(startIndex + size, totalElements);
-        
-        List<Book> paginatedBooks = sortedBooks.subList(startIndex, endIndex);
+        int from = (int) Math.min(pageable.getOffset(), orderedIds.size());
+        int to = Math.min(from + pageable.getPageSize(), orderedIds.size());
+        List<Integer> pageIds = orderedIds.subList(from, to);
         
-        Pageable pageable = PageRequest.of(page, size);
-        return new PageImpl<>(paginatedBooks, pageable, totalElements);
-    }
-    
-    /**
-     * Применяет фильтры к списку книг
-     */
-    private List<Book> applyFilters(List<Book> books, Integer yearFrom, Integer yearTo, String language, double minRating) {
-        return books.stream()
-                .filter(book -> {
-                    // Фильтр по году издания
-                    if (yearFrom != null && book.getPublicationYear() != null && book.getPublicationYear() < yearFrom) {
-                        return false;
-                    }
-                    if (yearTo != null && book.getPublicationYear() != null && book.getPublicationYear() > yearTo) {
-                        return false;
-                    }
-                    
-                    // Фильтр по языку
-                    if (language != null && !language.trim().isEmpty()) {
-                        String bookLanguage = book.getLanguage();
-                        if (bookLanguage == null) {
-                            return false;
-                        }
-                        if (!bookLanguage.equalsIgnoreCase(language.trim())) {
-                            return false;
-                        }
-                    }
-                    
-                    // Фильтр по минимальному рейтингу
-                    if (minRating > 0) {
-                        Double bookRating = book.getRating();
-                        if (bookRating == null || bookRating < minRating) {
-                            return false;
-                        }
-                    }
-                    
-                    return true;
-                })
+        Map<Integer, Book> booksById = bookRepository.findAllById(pageIds).stream()
+                .collect(Collectors.toMap(Book::getId, book -> book));
+        List<Book> books = pageIds.stream()
+                .map(booksById::get)
+                .filter(Objects::nonNull)
                 .collect(Collectors.toList());
+        return new PageImpl<>(books, pageable, orderedIds.size());
     }
     
     /**
-     * Получает все книги с фильтрами
+     * Создает параметры пагинации с сортировкой по рейтингу
      */
-    public Page<Book> getAllBooksWithFilters(Pageable pageable, Integer yearFrom, Integer yearTo, String language, double minRating) {
-        // Если нет активных фильтров, используем стандартный метод
-        if (yearFrom == null && yearTo == null && (language == null || language.trim().isEmpty()) && minRating <= 0) {
-            Page<Book> page = bookRepository.findAll(pageable);
-            enrichBooksWithRatings(page.getContent());
-            return page;
+    private Pageable ratingPageable(int page, int size, String direction) {
+        Sort.Direction sortDirection = "desc".equalsIgnoreCase(direction) ? Sort.Direction.DESC : Sort.Direction.ASC;
+        return PageRequest.of(page, size, Sort.by(sortDirection, BookFilter.RATING_SORT_PROPERTY));
+    }
+    
+    /**
+     * Получает ID категорий для выборки: сами категории и, при необходимости, все их подкатегории
+     */
+    private List<Integer> resolveCategoryIds(List<Integer> categoryIds, boolean includeSubcategories) {
+        if (!includeSubcategories) {
+            return categoryIds;
         }
         
-        // Получаем все книги и применяем фильтры
-        List<Book> allBooks = bookRepository.findAll();
-        enrichBooksWithRatings(allBooks);
-        
-        List<Book> filteredBooks = applyFilters(allBooks, yearFrom, yearTo, language, minRating);
-        
-        // Применяем пагинацию вручную
-        int totalElements = filteredBooks.size();
-        int startIndex = (int) pageable.getOffset();
-        int endIndex = Math.min(startIndex + pageable.getPageSize(), totalElements);
-        
-        List<Book> paginatedBooks = filteredBooks.subList(startIndex, endIndex);
-        
-        return new PageImpl<>(paginatedBooks, pageable, totalElements);
+        return new ArrayList<>(categoryTreeCache.getTree().getDescendantIds(categoryIds));
+    }
+    
+    /**
+     * Получает все книги с фильтрами
+     */
+    public Page<Book> getAllBooksWithFilters(Pageable pageable, Integer yearFrom, Integer yearTo, String language, double minRating) {
+        BookFilter filter = BookFilter.builder()
+                .yearFrom(yearFrom)
+                .yearTo(yearTo)
+                .language(language)
+                .minRating(minRating)
+                .build();
+        return findBooks(filter, pageable);
     }
     
     /**
      * Поиск книг с фильтрами
      */
     public Page<Book> searchBooksWithFilters(String query, Pageable pageable, Integer yearFrom, Integer yearTo, String language, double minRating) {
-        // Если нет активных фильтров, используем стандартный метод
-        if (yearFrom == null && yearTo == null && (language == null || language.trim().isEmpty()) && minRating <= 0) {
-            return searchBooks(query, pageable);
-        }
-        
-        // Получаем все результаты поиска и применяем фильтры
-        List<Book> allBooks = bookRepository.searchBooksAsList(query);
-        enrichBooksWithRatings(allBooks);
-        
-        List<Book> filteredBooks = applyFilters(allBooks, yearFrom, yearTo, language, minRating);
-        
-        // Применяем пагинацию вручную
-        int totalElements = filteredBooks.size();
-        int startIndex = (int) pageable.getOffset();
-        int endIndex = Math.min(startIndex + pageable.getPageSize(), totalElements);
-        
-        List<Book> paginatedBooks = filteredBooks.subList(startIndex, endIndex);
-        
-        return new PageImpl<>(paginatedBooks, pageable, totalElements);
+        BookFilter filter = BookFilter.builder()
+                .query(query)
+                .yearFrom(yearFrom)
+                .yearTo(yearTo)
+                .language(language)
+                .minRating(minRating)
+                .build();
+        return findBooks(filter, pageable);
     }
     
     /**
      * Поиск книг с сортировкой по рейтингу и фильтрами
      */
     public Page<Book> searchBooksWithRatingSortAndFilters(String query, int page, int size, String direction, Integer yearFrom, Integer yearTo, String language, double minRating) {
-        // Получаем все книги по поисковому запросу без пагинации
-        List<Book> allBooks = bookRepository.searchBooksAsList(query);
-        
-        // Обогащаем книги информацией о рейтинге
-        enrichBooksWithRatings(allBooks);
-        
-        // Применяем фильтры
-        List<Book> filteredBooks = applyFilters(allBooks, yearFrom, yearTo, language, minRating);
-        
-        // Сортируем книги по рейтингу
-        Comparator<Book> ratingComparator;
-        if ("desc".equalsIgnoreCase(direction)) {
-            ratingComparator = Comparator.comparing(Book::getRating, Comparator.reverseOrder())
-                    .thenComparing(book -> book.getRatingsCount() != null ? book.getRatingsCount() : 0, Comparator.reverseOrder());
-        } else {
-            ratingComparator = Comparator.comparing(Book::getRating)
-                    .thenComparing(book -> book.getRatingsCount() != null ? book.getRatingsCount() : 0);
-        }
-        
-        List<Book> sortedBooks = filteredBooks.stream()
-                .sorted(ratingComparator)
-                .collect(Collectors.toList());
-        
-        // Применяем пагинацию вручную
-        int totalElements = sortedBooks.size();
-        int startIndex = page * size;
-        int endIndex = Math.min(startIndex + size, totalElements);
-        
-        List<Book> paginatedBooks = sortedBooks.subList(startIndex, endIndex);
-        
-        Pageable pageable = PageRequest.of(page, size);
-        return new PageImpl<>(paginatedBooks, pageable, totalElements);
+        BookFilter filter = BookFilter.builder()
+                .query(query)
+                .yearFrom(yearFrom)
+                .yearTo(yearTo)
+                .language(language)
+                .minRating(minRating)
+                .build();
+        return findBooks(filter, ratingPageable(page, size, direction));
     }
     
     /**
      * Получает книги по категории с фильтрами
      */
     public Page<Book> getBooksByCategoryWithFilters(Integer categoryId, Pageable pageable, Integer yearFrom, Integer yearTo, String language, double minRating) {
-        // Если нет активных фильтров, используем стандартный метод
-        if (yearFrom == null && yearTo == null && (language == null || language.trim().isEmpty()) && minRating <= 0) {
-            return getBooksByCategory(categoryId, pageable);
-        }
-        
-        // Получаем все книги категории и применяем фильтры
-        List<Book> allBooks = bookRepository.findByExactCategoryIdAsList(categoryId);
-        enrichBooksWithRatings(allBooks);
-        
-        List<Book> filteredBooks = applyFilters(allBooks, yearFrom, yearTo, language, minRating);
-        
-        // Применяем пагинацию вручную
-        int totalElements = filteredBooks.size();
-        int startIndex = (int) pageable.getOffset();
-        int endIndex = Math.min(startIndex + pageable.getPageSize(), totalElements);
-        
-        List<Book> paginatedBooks = filteredBooks.subList(startIndex, endIndex);
-        
-        return new PageImpl<>(paginatedBooks, pageable, totalElements);
+        BookFilter filter = BookFilter.builder()
+                .categoryIds(List.of(categoryId))
+                .yearFrom(yearFrom)
+                .yearTo(yearTo)
+                .language(language)
+                .minRating(minRating)
+                .build();
+        return findBooks(filter, pageable);
     }
     
     /**
      * Получает книги по категории с иерархией и фильтрами
      */
     public Page<Book> getBooksByCategoryWithHierarchyAndFilters(Integer categoryId, Pageable pageable, Integer yearFrom, Integer yearTo, String language, double minRating) {
-        // Если нет активных фильтров, используем стандартный метод
-        if (yearFrom == null && yearTo == null && (language == null || language.trim().isEmpty()) && minRating <= 0) {
-            return getBooksByCategoryWithHierarchy(categoryId, pageable);
-        }
-        
-        // Получаем все ID категорий (включая подкатегории)
-        List<Integer> allCategoryIds = getAllCategoryIds(categoryId);
-        
-        // Получаем все книги и применяем фильтры
-        List<Book> allBooks = bookRepository.findByCategoryIdInAsList(allCategoryIds);
-        enrichBooksWithRatings(allBooks);
-        
-        List<Book> filteredBooks = applyFilters(allBooks, yearFrom, yearTo, language, minRating);
-        
-        // Применяем пагинацию вручную
-        int totalElements = filteredBooks.size();
-        int startIndex = (int) pageable.getOffset();
-        int endIndex = Math.min(startIndex + pageable.getPageSize(), totalElements);
-        
-        List<Book> paginatedBooks = filteredBooks.subList(startIndex, endIndex);
-        
-        return new PageImpl<>(paginatedBooks, pageable, totalElements);
+        BookFilter filter = BookFilter.builder()
+                .categoryIds(getAllCategoryIds(categoryId))
+                .yearFrom(yearFrom)
+                .yearTo(yearTo)
+                .language(language)
+                .minRating(minRating)
+                .build();
+        return findBooks(filter, pageable);
     }
     
     /**
      * Получает книги по категории с сортировкой по рейтингу и фильтрами
      */
     public Page<Book> getBooksByCategoryWithRatingSortAndFilters(Integer categoryId, int page, int size, String direction, boolean includeSubcategories, Integer yearFrom, Integer yearTo, String language, double minRating) {
-        List<Book> allBooks;
-        
-        if (includeSubcategories) {
-            List<Integer> allCategoryIds = getAllCategoryIds(categoryId);
-            allBooks = bookRepository.findByCategoryIdInAsList(allCategoryIds);
-        } else {
-            allBooks = bookRepository.findByExactCategoryIdAsList(categoryId);
-        }
-        
-        // Обогащаем книги информацией о рейтинге
-        enrichBooksWithRatings(allBooks);
-        
-        // Применяем фильтры
-        List<Book> filteredBooks = applyFilters(allBooks, yearFrom, yearTo, language, minRating);
-        
-        // Сортируем книги по рейтингу
-        Comparator<Book> ratingComparator;
-        if ("desc".equalsIgnoreCase(direction)) {
-            ratingComparator = Comparator.comparing(Book::getRating, Comparator.reverseOrder())
-                    .thenComparing(book -> book.getRatingsCount() != null ? book.getRatingsCount() : 0, Comparator.reverseOrder());
-        } else {
-            ratingComparator = Comparator.comparing(Book::getRating)
-                    .thenComparing(book -> book.getRatingsCount() != null ? book.getRatingsCount() : 0);
-        }
-        
-        List<Book> sortedBooks = filteredBooks.stream()
-                .sorted(ratingComparator)
-                .collect(Collectors.toList());
-        
-        // Применяем пагинацию вручную
-        int totalElements = sortedBooks.size();
-        int startIndex = page * size;
-        int endIndex = Math.min(startIndex + size, totalElements);
-        
-        List<Book> paginatedBooks = sortedBooks.subList(startIndex, endIndex);
-        
-        Pageable pageable = PageRequest.of(page, size);
-        return new PageImpl<>(paginatedBooks, pageable, totalElements);
+        BookFilter filter = BookFilter.builder()
+                .categoryIds(resolveCategoryIds(List.of(categoryId), includeSubcategories))
+                .yearFrom(yearFrom)
+                .yearTo(yearTo)
+                .language(language)
+                .minRating(minRating)
+                .build();
+        return findBooks(filter, ratingPageable(page, size, direction));
     }
     
     /**
      * Получает книги по нескольким категориям с фильтрами
      */
     public Page<Book> getBooksByMultipleCategoriesWithFilters(List<Integer> categoryIds, Pageable pageable, boolean includeSubcategories, Integer yearFrom, Integer yearTo, String language, double minRating) {
-        // Если нет активных фильтров, используем стандартный метод
-        if (yearFrom == null && yearTo == null && (language == null || language.trim().isEmpty()) && minRating <= 0) {
-            return getBooksByMultipleCategories(categoryIds, pageable, includeSubcategories);
-        }
-        
         if (categoryIds == null || categoryIds.isEmpty()) {
             return Page.empty(pageable);
         }
         
-        List<Integer> allCategoryIds = new ArrayList<>();
-        
-        if (includeSubcategories) {
-            // Для каждой родительской категории получаем все подкатегории
-            for (Integer categoryId : categoryIds) {
-                allCategoryIds.addAll(getAllCategoryIds(categoryId));
-            }
-        } else {
-            // Используем только родительские категории
-            allCategoryIds = categoryIds;
-        }
-        
-        // Получаем все книги и применяем фильтры
-        List<Book> allBooks = bookRepository.findBooksByMultipleCategoriesAsList(allCategoryIds);
-        enrichBooksWithRatings(allBooks);
-        
-        List<Book> filteredBooks = applyFilters(allBooks, yearFrom, yearTo, language, minRating);
-        
-        // Применяем пагинацию вручную
-        int totalElements = filteredBooks.size();
-        int startIndex = (int) pageable.getOffset();
-        int endIndex = Math.min(startIndex + pageable.getPageSize(), totalElements);
-        
-        List<Book> paginatedBooks = filteredBooks.subList(startIndex, endIndex);
-        
-        return new PageImpl<>(paginatedBooks, pageable, totalElements);
+        BookFilter filter = BookFilter.builder()
+                .categoryIds(resolveCategoryIds(categoryIds, includeSubcategories))
+                .yearFrom(yearFrom)
+                .yearTo(yearTo)
+                .language(language)
+                .minRating(minRating)
+                .build();
+        return findBooks(filter, pageable);
     }
     
     /**
@@ -794,87 +603,26 @@ public class BookService {
             return Page.empty(PageRequest.of(page, size));
         }
         
-        List<Integer> allCategoryIds = new ArrayList<>();
-        
-        if (includeSubcategories) {
-            // Для каждой родительской категории получаем все подкатегории
-            for (Integer categoryId : categoryIds) {
-                allCategoryIds.addAll(getAllCategoryIds(categoryId));
-            }
-        } else {
-            // Используем только родительские категории
-            allCategoryIds = categoryIds;
-        }
-        
-        // Получаем все книги без пагинации
-        List<Book> allBooks = bookRepository.findBooksByMultipleCategoriesAsList(allCategoryIds);
-        
-        // Обогащаем книги информацией о рейтинге
-        enrichBooksWithRatings(allBooks);
-        
-        // Применяем фильтры
-        List<Book> filteredBooks = applyFilters(allBooks, yearFrom, yearTo, language, minRating);
-        
-        // Сортируем книги по рейтингу
-        Comparator<Book> ratingComparator;
-        if ("desc".equalsIgnoreCase(direction)) {
-            ratingComparator = Comparator.comparing(Book::getRating, Comparator.reverseOrder())
-                    .thenComparing(book -> book.getRatingsCount() != null ? book.getRatingsCount() : 0, Comparator.reverseOrder());
-        } else {
-            ratingComparator = Comparator.comparing(Book::getRating)
-                    .thenComparing(book -> book.getRatingsCount() != null ? book.getRatingsCount() : 0);
-        }
-        
-        List<Book> sortedBooks = filteredBooks.stream()
-                .sorted(ratingComparator)
-                .collect(Collectors.toList());
-        
-        // Применяем пагинацию вручную
-        int totalElements = sortedBooks.size();
-        int startIndex = page * size;
-        int endIndex = Math.min(startIndex + size, totalElements);
-        
-        List<Book> paginatedBooks = sortedBooks.subList(startIndex, endIndex);
-        
-        Pageable pageable = PageRequest.of(page, size);
-        return new PageImpl<>(paginatedBooks, pageable, totalElements);
+        BookFilter filter = BookFilter.builder()
+                .categoryIds(resolveCategoryIds(categoryIds, includeSubcategories))
+                .yearFrom(yearFrom)
+                .yearTo(yearTo)
+                .language(language)
+                .minRating(minRating)
+                .build();
+        return findBooks(filter, ratingPageable(page, size, direction));
     }
     
     /**
      * Получает все книги с сортировкой по рейтингу и фильтрами
      */
     public Page<Book> getAllBooksWithRatingSortAndFilters(int page, int size, String direction, Integer yearFrom, Integer yearTo, String language, double minRating) {
-        // Получаем все книги без пагинации
-        List<Book> allBooks = bookRepository.findAll();
-        
-        // Обогащаем книги информацией о рейтинге
-        enrichBooksWithRatings(allBooks);
-        
-        // Применяем фильтры
-        List<Book> filteredBooks = applyFilters(allBooks, yearFrom, yearTo, language, minRating);
-        
-        // Сортируем книги по рейтингу
-        Comparator<Book> ratingComparator;
-        if ("desc".equalsIgnoreCase(direction)) {
-            ratingComparator = Comparator.comparing(Book::getRating, Comparator.reverseOrder())
-                    .thenComparing(book -> book.getRatingsCount() != null ? book.getRatingsCount() : 0, Comparator.reverseOrder());
-        } else {
-            ratingComparator = Comparator.comparing(Book::getRating)
-                    .thenComparing(book -> book.getRatingsCount() != null ? book.getRatingsCount() : 0);
-        }
-        
-        List<Book> sortedBooks = filteredBooks.stream()
-                .sorted(ratingComparator)
-                .collect(Collectors.toList());
-        
-        // Применяем пагинацию вручную
-        int totalElements = sortedBooks.size();
-        int startIndex = page * size;
-        int endIndex = Math.min(startIndex + size, totalElements);
-        
-        List<Book> paginatedBooks = sortedBooks.subList(startIndex, endIndex);
-        
-        Pageable pageable = PageRequest.of(page, size);
-        return new PageImpl<>(paginatedBooks, pageable, totalElements);
+        BookFilter filter = BookFilter.builder()
+                .yearFrom(yearFrom)
+                .yearTo(yearTo)
+                .language(language)
+                .minRating(minRating)
+                .build();
+        return findBooks(filter, ratingPageable(page, size, direction));
     }
 }
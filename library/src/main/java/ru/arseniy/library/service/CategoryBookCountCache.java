@@ -0,0 +1,60 @@
+package ru.arseniy.library.service;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Component;
+import ru.arseniy.library.repository.CategoryRepository;
+import ru.arseniy.library.util.TransactionUtils;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Кэш количества книг в категориях с учётом всех подкатегорий.
+ * Значения вычисляются одним агрегирующим запросом при первом обращении
+ * и сбрасываются после изменения книг или категорий.
+ */
+@Component
+@RequiredArgsConstructor
+public class CategoryBookCountCache {
+
+    private final CategoryRepository categoryRepository;
+
+    private volatile Map<Integer, Integer> counts;
+
+    /**
+     * Возвращает неизменяемую карту "ID категории — количество книг".
+     * Категории без книг в карте отсутствуют.
+     */
+    public Map<Integer, Integer> getCounts() {
+        Map<Integer, Integer> current = counts;
+        if (current == null) {
+            synchronized (this) {
+                current = counts;
+                if (current == null) {
+                    current = load();
+                    counts = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Сбрасывает кэш после фиксации текущей транзакции
+     */
+    public void invalidate() {
+        TransactionUtils.runAfterCommit(() -> {
+            synchronized (this) {
+                counts = null;
+            }
+        });
+    }
+
+    private Map<Integer, Integer> load() {
+        Map<Integer, Integer> loaded = new HashMap<>();
+        for (CategoryRepository.CategoryBookCount row : categoryRepository.countBooksInCategoryTrees()) {
+            loaded.put(row.getCategoryId(), row.getBookCount().intValue());
+        }
+        return Map.copyOf(loaded);
+    }
+}
@@ -5,11 +5,8 @@ import org.springframework.stereotype.Service;
 import ru.arseniy.library.model.Category;
 import ru.arseniy.library.repository.CategoryRepository;
 
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 @Service
 public class CategoryService {
@@ -17,6 +14,12 @@ public class CategoryService {
     @Autowired
     private CategoryRepository categoryRepository;
     
+    @Autowired
+    private CategoryTreeCache categoryTreeCache;
+    
+    @Autowired
+    private CategoryBookCountCache categoryBookCountCache;
+    
     public List<Category> getAllCategories() {
         return categoryRepository.findAll();
     }
@@ -51,47 +54,12 @@ public class CategoryService {
     }
     
     /**
-     * Получает карту с id категорий и количеством книг в каждой категории, включая книги из подкатегорий
+     * Получает карту с id категорий и количеством книг в каждой категории, включая книги из подкатегорий.
+     * Категории без книг в карте отсутствуют.
      * @return Карта id категории -> количество книг
      */
     public Map<Integer, Integer> getCategoriesBookCount() {
-        List<Category> categories = categoryRepository.findAll();
-        Map<Integer, Integer> result = new HashMap<>();
-        
-        // Для каждой категории вычисляем общее количество книг, включая все подкатегории
-        for (Category category : categories) {
-            // Получаем все книги категории и её подкатегорий (без дубликатов)
-            Set<Integer> bookIds = new HashSet<>();
-            
-            // Сначала добавляем книги из текущей категории
-            category.getBooks().forEach(book -> bookIds.add(book.getId()));
-            
-            // Затем рекурсивно добавляем книги из всех подкатегорий
-            getAllSubcategoryBooks(category, bookIds);
-            
-            // Сохраняем результат
-            result.put(category.getId(), bookIds.size());
-        }
-        
-        return result;
-    }
-    
-    /**
-     * Рекурсивно собирает ID всех книг из подкатегорий
-     *
-     * @param category родительская категория
-     * @param bookIds множество для накопления ID книг
-     */
-    private void getAllSubcategoryBooks(Category category, Set<Integer> bookIds) {
-        List<Category> subcategories = categoryRepository.findByParentCategoryId(category.getId());
-        
-        for (Category subcategory : subcategories) {
-            // Добавляем книги из текущей подкатегории
-            subcategory.getBooks().forEach(book -> bookIds.add(book.getId()));
-            
-            // Рекурсивно обрабатываем вложенные подкатегории
-            getAllSubcategoryBooks(subcategory, bookIds);
-        }
+        return categoryBookCountCache.getCounts();
     }
     
     public Category createCategory(Category category, Integer parentId) {
@@ -101,7 +69,10 @@ public class CategoryService {
             category.setParentCategory(parentCategory);
         }
         
-        return categoryRepository.save(category);
+        Category savedCategory = categoryRepository.save(category);
+        categoryTreeCache.invalidate();
+        categoryBookCountCache.invalidate();
+        return savedCategory;
     }
     
     public Category updateCategory(Integer id, Category categoryDetails, Integer parentId) {
@@ -111,6 +82,11 @@ public class CategoryService {
         category.setName(categoryDetails.getName());
         
         if (parentId != null) {
+            // Категорию нельзя вложить в саму себя или в собственную подкатегорию
+            if (categoryTreeCache.getTree().getDescendantIds(id).contains(parentId)) {
+                throw new IllegalArgumentException("Категория с ID " + id + " не может быть вложена в категорию с ID " + parentId);
+            }
+            
             Category parentCategory = categoryRepository.findById(parentId)
                     .orElseThrow(() -> new RuntimeException("Родительская категория с ID " + parentId + " не найдена"));
             category.setParentCategory(parentCategory);
@@ -118,7 +94,10 @@ public class CategoryService {
             category.setParentCategory(null);
         }
         
-        return categoryRepository.save(category);
+        Category savedCategory = categoryRepository.save(category);
+        categoryTreeCache.invalidate();
+        categoryBookCountCache.invalidate();
+        return savedCategory;
     }
     
     public void deleteCategory(Integer id) {
@@ -126,5 +105,7 @@ public class CategoryService {
                 .orElseThrow(() -> new RuntimeException("Категория с ID " + id + " не найдена"));
         
         categoryRepository.delete(category);
+        categoryTreeCache.invalidate();
+        categoryBookCountCache.invalidate();
     }
 }
@@ -0,0 +1,105 @@
+package ru.arseniy.library.service;
+
+import ru.arseniy.library.repository.CategoryRepository;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Неизменяемый снимок иерархии категорий с заранее вычисленными множествами потомков
+ */
+public final class CategoryTree {
+
+    private final Map<Integer, Node> nodes;
+
+    private CategoryTree(Map<Integer, Node> nodes) {
+        this.nodes = nodes;
+    }
+
+    /**
+     * Строит дерево по транзитивному замыканию иерархии
+     *
+     * @param closure пары "предок — потомок", включая пары категории с самой собой
+     * @return снимок дерева категорий
+     */
+    public static CategoryTree fromClosure(List<CategoryRepository.CategoryClosure> closure) {
+        Map<Integer, Integer> parents = new HashMap<>();
+        Map<Integer, Set<Integer>> children = new HashMap<>();
+        Map<Integer, Set<Integer>> descendants = new HashMap<>();
+
+        for (CategoryRepository.CategoryClosure row : closure) {
+            descendants.computeIfAbsent(row.getAncestorId(), id -> new HashSet<>()).add(row.getDescendantId());
+            if (row.getDepth() == 1) {
+                parents.put(row.getDescendantId(), row.getAncestorId());
+                children.computeIfAbsent(row.getAncestorId(), id -> new HashSet<>()).add(row.getDescendantId());
+            }
+        }
+
+        Map<Integer, Node> nodes = new HashMap<>();
+        for (Map.Entry<Integer, Set<Integer>> entry : descendants.entrySet()) {
+            Integer id = entry.getKey();
+            nodes.put(id, new Node(id, parents.get(id),
+                    Set.copyOf(children.getOrDefault(id, Set.of())),
+                    Set.copyOf(entry.getValue())));
+        }
+        return new CategoryTree(Map.copyOf(nodes));
+    }
+
+    /**
+     * Проверяет, существует ли категория
+     */
+    public boolean contains(Integer categoryId) {
+        return nodes.containsKey(categoryId);
+    }
+
+    /**
+     * Возвращает ID родительской категории или null для корневой и неизвестной категории
+     */
+    public Integer getParentId(Integer categoryId) {
+        Node node = nodes.get(categoryId);
+        return node != null ? node.parentId() : null;
+    }
+
+    /**
+     * Возвращает ID непосредственных подкатегорий
+     */
+    public Set<Integer> getChildIds(Integer categoryId) {
+        Node node = nodes.get(categoryId);
+        return node != null ? node.childIds() : Set.of();
+    }
+
+    /**
+     * Возвращает ID категории и всех её подкатегорий любой глубины.
+     * Для неизвестной категории возвращается только её ID.
+     */
+    public Set<Integer> getDescendantIds(Integer categoryId) {
+        Node node = nodes.get(categoryId);
+        return node != null ? node.descendantIds() : Set.of(categoryId);
+    }
+
+    /**
+     * Возвращает объединение категорий и всех их подкатегорий
+     */
+    public Set<Integer> getDescendantIds(Collection<Integer> categoryIds) {
+        Set<Integer> result = new LinkedHashSet<>();
+        for (Integer categoryId : categoryIds) {
+            result.addAll(getDescendantIds(categoryId));
+        }
+        return result;
+    }
+
+    /**
+     * Возвращает ID всех категорий
+     */
+    public Set<Integer> getCategoryIds() {
+        return nodes.keySet();
+    }
+
+    private record Node(Integer id, Integer parentId, Set<Integer> childIds, Set<Integer> descendantIds) {
+    }
+}
@@ -0,0 +1,56 @@
+package ru.arseniy.library.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import ru.arseniy.library.repository.CategoryRepository;
+import ru.arseniy.library.util.TransactionUtils;
+
+/**
+ * Кэш снимка иерархии категорий.
+ * Снимок загружается одним рекурсивным запросом при первом обращении и атомарно
+ * заменяется новым после любого изменения категорий.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class CategoryTreeCache {
+
+    private final CategoryRepository categoryRepository;
+
+    private volatile CategoryTree tree;
+
+    /**
+     * Возвращает актуальный снимок дерева категорий
+     */
+    public CategoryTree getTree() {
+        CategoryTree current = tree;
+        if (current == null) {
+            synchronized (this) {
+                current = tree;
+                if (current == null) {
+                    current = load();
+                    tree = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Перестраивает снимок после фиксации текущей транзакции
+     */
+    public void invalidate() {
+        TransactionUtils.runAfterCommit(() -> {
+            synchronized (this) {
+                tree = load();
+            }
+        });
+    }
+
+    private CategoryTree load() {
+        CategoryTree loaded = CategoryTree.fromClosure(categoryRepository.findCategoryClosure());
+        log.debug("Загружено дерево категорий: {} категорий", loaded.getCategoryIds().size());
+        return loaded;
+    }
+}
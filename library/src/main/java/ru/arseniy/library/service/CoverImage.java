@@ -0,0 +1,50 @@
+package ru.arseniy.library.service;
+
+import lombok.Getter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+
+/**
+ * Обложка книги, целиком загруженная в память, вместе с типом содержимого и ETag
+ */
+@Getter
+public class CoverImage {
+
+    /**
+     * Содержимое обложки (буфер только для чтения)
+     */
+    private final ByteBuffer content;
+
+    private final String contentType;
+
+    /**
+     * Сильный ETag, вычисленный по содержимому обложки
+     */
+    private final String eTag;
+
+    public CoverImage(ByteBuffer content, String contentType, String eTag) {
+        this.content = content.asReadOnlyBuffer();
+        this.contentType = contentType;
+        this.eTag = eTag;
+    }
+
+    /**
+     * Возвращает размер обложки в байтах
+     */
+    public int getContentLength() {
+        return content.remaining();
+    }
+
+    /**
+     * Записывает содержимое обложки в выходной поток
+     *
+     * @param out выходной поток
+     * @throws IOException если произошла ошибка записи
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        Channels.newChannel(out).write(content.duplicate());
+    }
+}
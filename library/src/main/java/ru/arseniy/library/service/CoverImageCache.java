@@ -0,0 +1,226 @@
+package ru.arseniy.library.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import ru.arseniy.library.util.TransactionUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Кэш обложек книг и их миниатюр в памяти.
+ * <p>
+ * Обложки хранятся в буферах вне кучи, суммарный размер ограничен {@code app.files.cover-cache.max-size-bytes}
+ * (при переполнении вытесняются давно не использованные обложки, пока не освободится десятая часть лимита);
+ * обложки больше {@code app.files.cover-cache.max-entry-bytes} не кэшируются. Чтение из кэша не берёт блокировок. Для каждой обложки по её содержимому вычисляется сильный ETag.
+ * При загрузке новой обложки или удалении книги запись сбрасывается после фиксации транзакции.
+ */
+@Component
+@Slf4j
+public class CoverImageCache {
+
+    private static final int ETAG_BYTES = 16;
+    private static final int ORIGINAL_WIDTH = 0;
+
+    private final long maxSizeBytes;
+    private final long maxEntryBytes;
+
+    private final Map<CoverKey, Entry> entries = new ConcurrentHashMap<>();
+    private final Object evictionLock = new Object();
+    private final AtomicLong generation = new AtomicLong();
+    private final AtomicLong sizeBytes = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public CoverImageCache(@Value("${app.files.cover-cache.max-size-bytes:67108864}") long maxSizeBytes,
+                           @Value("${app.files.cover-cache.max-entry-bytes:5242880}") long maxEntryBytes) {
+        this.maxSizeBytes = maxSizeBytes;
+        this.maxEntryBytes = Math.min(maxEntryBytes, maxSizeBytes);
+    }
+
+    /**
+     * Возвращает обложку из кэша или загружает её из хранилища
+     *
+     * @param bookId идентификатор книги
+     * @param loader загрузка обложки из хранилища
+     * @return обложка, если она найдена
+     */
+    public Optional<CoverImage> getCover(Integer bookId, Function<Integer, Optional<StoredFile>> loader) {
+        return getCover(bookId, ORIGINAL_WIDTH, loader);
+    }
+
+    /**
+     * Возвращает миниатюру обложки из кэша или загружает её из хранилища
+     *
+     * @param bookId идентификатор книги
+     * @param width ширина миниатюры
+     * @param loader загрузка миниатюры из хранилища
+     * @return миниатюра, если она найдена
+     */
+    public Optional<CoverImage> getCover(Integer bookId, int width, Function<Integer, Optional<StoredFile>> loader) {
+        CoverKey key = new CoverKey(bookId, width);
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            entry.lastAccessedAt = System.currentTimeMillis();
+            hits.increment();
+            return Optional.of(entry.cover);
+        }
+
+        misses.increment();
+        // Если запись сбросили во время загрузки, загруженная обложка может быть устаревшей
+        long loadGeneration = generation.get();
+        Optional<StoredFile> storedFile = loader.apply(bookId);
+        if (storedFile.isEmpty()) {
+            return Optional.empty();
+        }
+        CoverImage cover = read(storedFile.get());
+        if (cover.getContentLength() <= maxEntryBytes) {
+            put(key, cover, loadGeneration);
+        }
+        return Optional.of(cover);
+    }
+
+    /**
+     * Сбрасывает обложку книги и её миниатюры после фиксации текущей транзакции
+     *
+     * @param bookId идентификатор книги
+     */
+    public void invalidate(Integer bookId) {
+        TransactionUtils.runAfterCommit(() -> {
+            generation.incrementAndGet();
+            entries.forEach((key, entry) -> {
+                if (key.bookId().equals(bookId)) {
+                    remove(key, entry);
+                }
+            });
+        });
+    }
+
+    /**
+     * Возвращает текущую статистику кэша
+     */
+    public Statistics getStatistics() {
+        return new Statistics(hits.sum(), misses.sum(), evictions.sum(), entries.size(), sizeBytes.get(), maxSizeBytes);
+    }
+
+    private void put(CoverKey key, CoverImage cover, long loadGeneration) {
+        Entry entry = new Entry(cover, System.currentTimeMillis());
+        Entry previous = entries.put(key, entry);
+        sizeBytes.addAndGet(cover.getContentLength() - (previous != null ? previous.cover.getContentLength() : 0));
+        if (generation.get() != loadGeneration) {
+            remove(key, entry);
+        } else if (sizeBytes.get() > maxSizeBytes) {
+            evict(entry);
+        }
+    }
+
+    private void remove(CoverKey key, Entry entry) {
+        if (entries.remove(key, entry)) {
+            sizeBytes.addAndGet(-entry.cover.getContentLength());
+        }
+    }
+
+    /**
+     * Вытесняет давно не использованные обложки, кроме только что добавленной
+     */
+    private void evict(Entry added) {
+        synchronized (evictionLock) {
+            long target = maxSizeBytes - maxSizeBytes / 10;
+            if (sizeBytes.get() <= maxSizeBytes) {
+                return;
+            }
+            // Время доступа фиксируется до сортировки: читатели продолжают его обновлять
+            List<Candidate> candidates = entries.entrySet().stream()
+                    .filter(item -> item.getValue() != added)
+                    .map(item -> new Candidate(item.getKey(), item.getValue(), item.getValue().lastAccessedAt))
+                    .sorted(Comparator.comparingLong(Candidate::lastAccessedAt))
+                    .toList();
+            int evicted = 0;
+            for (Candidate candidate : candidates) {
+                if (sizeBytes.get() <= target) {
+                    break;
+                }
+                remove(candidate.key(), candidate.entry());
+                evicted++;
+            }
+            evictions.add(evicted);
+            log.debug("Кэш обложек: вытеснено {} обложек, занято {} из {} байт", evicted, sizeBytes.get(), maxSizeBytes);
+        }
+    }
+
+    /**
+     * Читает обложку из хранилища в буфер вне кучи и вычисляет её ETag
+     */
+    private CoverImage read(StoredFile storedFile) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(
+                storedFile.getContentLength() > 0 ? (int) Math.min(storedFile.getContentLength(), maxEntryBytes) : 8192);
+        try {
+            storedFile.transferTo(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Ошибка при чтении обложки " + storedFile.getKey(), e);
+        }
+        byte[] bytes = out.toByteArray();
+        ByteBuffer content = bytes.length <= maxEntryBytes
+                ? ByteBuffer.allocateDirect(bytes.length).put(bytes).flip()
+                : ByteBuffer.wrap(bytes);
+        return new CoverImage(content, storedFile.getContentType(), computeETag(bytes));
+    }
+
+    private static String computeETag(byte[] bytes) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes);
+            return "\"" + HexFormat.of().formatHex(digest, 0, ETAG_BYTES) + "\"";
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Алгоритм SHA-256 недоступен", e);
+        }
+    }
+
+    /**
+     * Ключ записи: книга и ширина миниатюры (0 — исходная обложка)
+     */
+    /**
+     * Статистика кэша обложек
+     *
+     * @param covers количество закэшированных обложек и миниатюр
+     */
+    public record Statistics(long hits, long misses, long evictions, int covers, long sizeBytes, long maxSizeBytes) {
+
+        public double getHitRatio() {
+            long total = hits + misses;
+            return total == 0 ? 0 : (double) hits / total;
+        }
+    }
+
+    private record CoverKey(Integer bookId, int width) {
+    }
+
+    private record Candidate(CoverKey key, Entry entry, long lastAccessedAt) {
+    }
+
+    private static final class Entry {
+
+        private final CoverImage cover;
+        private volatile long lastAccessedAt;
+
+        Entry(CoverImage cover, long lastAccessedAt) {
+            this.cover = cover;
+            this.lastAccessedAt = lastAccessedAt;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package ru.arseniy.library.service;
+
+import lombok.Builder;
+import lombok.Getter;
+
+/**
+ * Метаданные объекта в хранилище
+ */
+@Getter
+@Builder
+public class FileMetadata {
+
+    /**
+     * Ключ объекта в хранилище
+     */
+    private final String key;
+
+    /**
+     * Тип содержимого (может быть null)
+     */
+    private final String contentType;
+
+    /**
+     * Размер объекта в байтах или -1, если он неизвестен
+     */
+    @Builder.Default
+    private final long contentLength = -1;
+
+    /**
+     * ETag объекта (может быть null)
+     */
+    private final String eTag;
+}
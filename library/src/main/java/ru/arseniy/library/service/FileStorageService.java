@@ -1,9 +1,12 @@
 package ru.arseniy.library.service;
 
+import org.springframework.http.HttpRange;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collection;
+import java.util.Map;
 import java.util.Optional;
 
 /**
@@ -32,6 +35,17 @@ public interface FileStorageService {
      */
     String uploadFile(MultipartFile file, String key, String bookTitle) throws IOException;
 
+    /**
+     * Загружает файл в хранилище с указанием названия книги и возвращает метаданные сохранённого объекта
+     *
+     * @param file файл для загрузки
+     * @param key ключ (путь) для сохранения файла
+     * @param bookTitle название книги для создания папки
+     * @return метаданные объекта, в том числе итоговый ключ
+     * @throws IOException если произошла ошибка при загрузке
+     */
+    FileMetadata storeFile(MultipartFile file, String key, String bookTitle) throws IOException;
+
     /**
      * Загружает данные в хранилище
      *
@@ -61,9 +75,37 @@ public interface FileStorageService {
      * Получает файл из хранилища
      *
      * @param key ключ (путь) файла
-     * @return поток данных файла, если файл найден
+     * @return поток данных файла вместе с его размером и типом, если файл найден
      */
-    Optional<InputStream> getFile(String key);
+    Optional<StoredFile> getFile(String key);
+
+    /**
+     * Получает диапазон байтов файла из хранилища. Из хранилища передаются только запрошенные байты.
+     *
+     * @param key ключ (путь) файла
+     * @param range диапазон байтов или null, чтобы получить файл целиком
+     * @return поток данных диапазона вместе с метаданными файла, если файл найден
+     * @throws ru.arseniy.library.exception.RangeNotSatisfiableException если диапазон лежит за пределами файла
+     */
+    Optional<StoredFile> getFile(String key, HttpRange range);
+
+    /**
+     * Получает метаданные файла без загрузки его содержимого
+     *
+     * @param key ключ (путь) файла
+     * @return метаданные файла, если файл найден
+     */
+    Optional<FileMetadata> getFileMetadata(String key);
+
+    /**
+     * Возвращает временную подписанную ссылку для скачивания файла напрямую из хранилища
+     *
+     * @param key ключ (путь) файла
+     * @param contentType тип содержимого, который хранилище должно вернуть при скачивании (может быть null)
+     * @param contentDisposition заголовок Content-Disposition для скачивания (может быть null)
+     * @return ссылка или пустое значение, если хранилище не поддерживает прямые ссылки
+     */
+    Optional<String> getPresignedUrl(String key, String contentType, String contentDisposition);
 
     /**
      * Удаляет файл из хранилища
@@ -73,6 +115,15 @@ public interface FileStorageService {
      */
     boolean deleteFile(String key);
 
+    /**
+     * Удаляет несколько файлов из хранилища, по возможности одним запросом.
+     * Отсутствующие файлы считаются удалёнными.
+     *
+     * @param keys ключи (пути) файлов
+     * @return ключи файлов, которые не удалось удалить, с описанием ошибки
+     */
+    Map<String, String> deleteFiles(Collection<String> keys);
+
     /**
      * Генерирует URL для доступа к файлу
      *
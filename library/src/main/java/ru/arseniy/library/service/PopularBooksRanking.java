@@ -0,0 +1,344 @@
+package ru.arseniy.library.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import ru.arseniy.library.dto.BookDTO;
+import ru.arseniy.library.model.Book;
+import ru.arseniy.library.repository.BookRepository;
+import ru.arseniy.library.util.TransactionUtils;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Рейтинг популярных книг, поддерживаемый в памяти.
+ * <p>
+ * При старте приложения рейтинг строится из БД одним запросом, затем обновляется
+ * инкрементально при изменении оценок и книг (после фиксации транзакции).
+ * Первые {@code capacity} книг хранятся в виде готовых DTO, поэтому запрос
+ * популярных книг не обращается к БД. DTO книг, попавших в рейтинг, загружаются
+ * вне блокировки рейтинга, после чего публикуется новый неизменяемый снимок.
+ * <p>
+ * Поддерживаются две формулы:
+ * <ul>
+ *     <li>{@code average} — средняя оценка, при равенстве — количество оценок;</li>
+ *     <li>{@code bayesian} — байесовское среднее
+ *     {@code (v * R + m * C) / (v + m)}, где v — количество оценок книги, R — её средняя оценка,
+ *     m — минимальное число голосов, C — априорная средняя оценка.</li>
+ * </ul>
+ * Если априорная оценка не задана, она равна средней оценке по каталогу: сумма и количество
+ * всех оценок поддерживаются инкрементально, а оценки книг пересчитываются, когда среднее
+ * по каталогу отклоняется от использованного больше чем на {@value #PRIOR_MEAN_TOLERANCE}.
+ */
+@Component
+@Slf4j
+public class PopularBooksRanking {
+
+    private static final Comparator<Entry> ORDER = Comparator
+            .comparingDouble(Entry::score).reversed()
+            .thenComparing(Comparator.comparingInt(Entry::ratingsCount).reversed())
+            .thenComparingInt(Entry::bookId);
+
+    private static final double PRIOR_MEAN_TOLERANCE = 0.01;
+
+    /** Сколько раз подряд догружать DTO, если рейтинг изменился во время загрузки */
+    private static final int MAX_LOAD_ATTEMPTS = 3;
+
+    private final BookRepository bookRepository;
+
+    private final int capacity;
+    private final boolean bayesian;
+    private final double minVotes;
+    private final double configuredPriorMean;
+
+    private final Map<Integer, Entry> entries = new HashMap<>();
+    private final TreeSet<Entry> ordered = new TreeSet<>(ORDER);
+    private final Map<Integer, BookDTO> cachedBooks = new HashMap<>();
+    /** Номер изменения, после которого DTO книги устарел; загруженные раньше DTO не принимаются */
+    private final Map<Integer, Long> invalidatedAt = new HashMap<>();
+    private long changeCounter;
+    private long totalSum;
+    private long totalCount;
+    private double priorMean;
+
+    private volatile List<BookDTO> topBooks = List.of();
+
+    public PopularBooksRanking(BookRepository bookRepository,
+                               @Value("${app.popular-books.capacity:100}") int capacity,
+                               @Value("${app.popular-books.formula:average}") String formula,
+                               @Value("${app.popular-books.bayesian.min-votes:5}") double minVotes,
+                               @Value("${app.popular-books.bayesian.prior-mean:-1}") double priorMean) {
+        this.bookRepository = bookRepository;
+        this.capacity = capacity;
+        this.bayesian = "bayesian".equalsIgnoreCase(formula);
+        this.minVotes = minVotes;
+        this.configuredPriorMean = priorMean;
+    }
+
+    /**
+     * Возвращает самые популярные книги без обращения к БД
+     *
+     * @param limit максимальное количество книг (не больше размера рейтинга)
+     * @return список популярных книг
+     */
+    public List<BookDTO> getTopBooks(int limit) {
+        List<BookDTO> snapshot = topBooks;
+        return snapshot.subList(0, Math.max(0, Math.min(limit, snapshot.size())));
+    }
+
+    /**
+     * Полностью перестраивает рейтинг по данным из БД
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void rebuild() {
+        int size;
+        synchronized (this) {
+            // Статистика читается под блокировкой, чтобы инкрементальные изменения не потерялись
+            List<BookRepository.BookRatingStats> stats = bookRepository.findAllRatingStats();
+
+            entries.clear();
+            ordered.clear();
+            cachedBooks.clear();
+            invalidatedAt.clear();
+            totalSum = 0;
+            totalCount = 0;
+            for (BookRepository.BookRatingStats stat : stats) {
+                totalSum += stat.getRatingSum();
+                totalCount += stat.getRatingsCount();
+            }
+            priorMean = currentPriorMean();
+            for (BookRepository.BookRatingStats stat : stats) {
+                put(stat.getBookId(), stat.getRatingSum(), stat.getRatingsCount());
+            }
+            size = entries.size();
+        }
+        publish();
+
+        log.info("Рейтинг популярных книг построен: {} книг, формула {}", size, bayesian ? "bayesian" : "average");
+    }
+
+    /**
+     * Учитывает изменение оценок книги после фиксации текущей транзакции
+     *
+     * @param bookId ID книги
+     * @param sumDelta изменение суммы оценок
+     * @param countDelta изменение количества оценок
+     */
+    public void onRatingChanged(Integer bookId, long sumDelta, int countDelta) {
+        TransactionUtils.runAfterCommit(() -> {
+            synchronized (this) {
+                Entry entry = entries.get(bookId);
+                long ratingSum = entry != null ? entry.ratingSum() : 0;
+                int ratingsCount = entry != null ? entry.ratingsCount() : 0;
+                put(bookId, ratingSum + sumDelta, ratingsCount + countDelta);
+                refreshPriorMean();
+            }
+            publish();
+        });
+    }
+
+    /**
+     * Заменяет агрегированный рейтинг книги пересчитанными значениями после фиксации транзакции
+     *
+     * @param bookId ID книги
+     * @param ratingSum сумма оценок
+     * @param ratingsCount количество оценок
+     */
+    public void onRatingRecalculated(Integer bookId, long ratingSum, int ratingsCount) {
+        TransactionUtils.runAfterCommit(() -> {
+            synchronized (this) {
+                put(bookId, ratingSum, ratingsCount);
+                refreshPriorMean();
+            }
+            publish();
+        });
+    }
+
+    /**
+     * Учитывает создание или изменение книги после фиксации транзакции
+     *
+     * @param bookId ID книги
+     */
+    public void onBookSaved(Integer bookId) {
+        TransactionUtils.runAfterCommit(() -> {
+            synchronized (this) {
+                // Данные книги могли измениться, поэтому DTO будет загружен заново
+                cachedBooks.remove(bookId);
+                invalidatedAt.put(bookId, ++changeCounter);
+                if (!entries.containsKey(bookId)) {
+                    put(bookId, 0, 0);
+                }
+            }
+            publish();
+        });
+    }
+
+    /**
+     * Удаляет книгу из рейтинга после фиксации транзакции
+     *
+     * @param bookId ID книги
+     */
+    public void onBookDeleted(Integer bookId) {
+        TransactionUtils.runAfterCommit(() -> {
+            synchronized (this) {
+                Entry entry = entries.remove(bookId);
+                invalidatedAt.remove(bookId);
+                if (entry == null) {
+                    return;
+                }
+                ordered.remove(entry);
+                cachedBooks.remove(bookId);
+                // Оценки удаляются вместе с книгой
+                totalSum -= entry.ratingSum();
+                totalCount -= entry.ratingsCount();
+                refreshPriorMean();
+            }
+            publish();
+        });
+    }
+
+    private void put(Integer bookId, long ratingSum, int ratingsCount) {
+        Entry previous = entries.get(bookId);
+        if (previous != null) {
+            ordered.remove(previous);
+            totalSum -= previous.ratingSum();
+            totalCount -= previous.ratingsCount();
+        }
+        totalSum += ratingSum;
+        totalCount += ratingsCount;
+        Entry entry = new Entry(bookId, ratingSum, ratingsCount, score(ratingSum, ratingsCount));
+        entries.put(bookId, entry);
+        ordered.add(entry);
+    }
+
+    /**
+     * Априорная оценка: заданная в настройках или средняя оценка по всему каталогу
+     */
+    private double currentPriorMean() {
+        if (configuredPriorMean >= 0) {
+            return configuredPriorMean;
+        }
+        return totalCount > 0 ? (double) totalSum / totalCount : 0;
+    }
+
+    /**
+     * Пересчитывает оценки всех книг, если средняя оценка по каталогу заметно изменилась
+     */
+    private void refreshPriorMean() {
+        if (!bayesian) {
+            return;
+        }
+        double current = currentPriorMean();
+        if (Math.abs(current - priorMean) <= PRIOR_MEAN_TOLERANCE) {
+            return;
+        }
+        priorMean = current;
+        ordered.clear();
+        for (Map.Entry<Integer, Entry> item : entries.entrySet()) {
+            Entry entry = item.getValue();
+            Entry rescored = new Entry(entry.bookId(), entry.ratingSum(), entry.ratingsCount(),
+                    score(entry.ratingSum(), entry.ratingsCount()));
+            item.setValue(rescored);
+            ordered.add(rescored);
+        }
+    }
+
+    private double score(long ratingSum, int ratingsCount) {
+        if (bayesian && ratingsCount + minVotes > 0) {
+            return (ratingSum + minVotes * priorMean) / (ratingsCount + minVotes);
+        }
+        return ratingsCount > 0 ? (double) ratingSum / ratingsCount : 0;
+    }
+
+    /**
+     * Публикует новый снимок первых {@code capacity} книг. Вызывается без блокировки рейтинга:
+     * DTO книг, которые только что попали в рейтинг, загружаются из БД вне её, а снимок
+     * собирается под блокировкой из актуального состояния.
+     */
+    private void publish() {
+        for (int attempt = 1; ; attempt++) {
+            Set<Integer> missingIds;
+            long loadStartedAt;
+            synchronized (this) {
+                missingIds = missingTopIds();
+                loadStartedAt = changeCounter;
+                if (missingIds.isEmpty() || attempt > MAX_LOAD_ATTEMPTS) {
+                    publishSnapshot();
+                    return;
+                }
+            }
+
+            List<Book> loaded = bookRepository.findAllWithCategoriesByIdIn(missingIds);
+
+            synchronized (this) {
+                for (Book book : loaded) {
+                    // DTO, загруженный до изменения книги или её удаления из рейтинга, не принимается
+                    if (entries.containsKey(book.getId())
+                            && invalidatedAt.getOrDefault(book.getId(), 0L) <= loadStartedAt) {
+                        cachedBooks.put(book.getId(), BookDTO.fromEntity(book));
+                    }
+                }
+                if (missingTopIds().isEmpty()) {
+                    publishSnapshot();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Возвращает ID книг из первых {@code capacity}, для которых ещё нет DTO,
+     * и убирает из кэша DTO книг, выпавших из рейтинга
+     */
+    private Set<Integer> missingTopIds() {
+        Set<Integer> topIds = new HashSet<>();
+        Set<Integer> missingIds = new HashSet<>();
+        Iterator<Entry> iterator = ordered.iterator();
+        while (iterator.hasNext() && topIds.size() < capacity) {
+            Integer bookId = iterator.next().bookId();
+            topIds.add(bookId);
+            if (!cachedBooks.containsKey(bookId)) {
+                missingIds.add(bookId);
+            }
+        }
+        cachedBooks.keySet().retainAll(topIds);
+        return missingIds;
+    }
+
+    private void publishSnapshot() {
+        List<BookDTO> snapshot = new ArrayList<>(Math.min(capacity, ordered.size()));
+        Iterator<Entry> iterator = ordered.iterator();
+        for (int i = 0; i < capacity && iterator.hasNext(); i++) {
+            Entry entry = iterator.next();
+            BookDTO book = cachedBooks.get(entry.bookId());
+            if (book != null) {
+                snapshot.add(withRating(book, entry));
+            }
+        }
+        topBooks = List.copyOf(snapshot);
+    }
+
+    /**
+     * Создает копию DTO с актуальным рейтингом, не изменяя опубликованные ранее объекты
+     */
+    private BookDTO withRating(BookDTO book, Entry entry) {
+        double averageRating = entry.ratingsCount() > 0 ? (double) entry.ratingSum() / entry.ratingsCount() : 0.0;
+        return new BookDTO(book.getId(), book.getTitle(), book.getAuthor(), book.getDescription(), book.getIsbn(),
+                book.getPublicationYear(), book.getPublisher(), book.getLanguage(), book.getPageCount(),
+                book.getFileUrl(), book.getCoverImageUrl(), book.getUploadDate(), book.getCategories(),
+                averageRating, entry.ratingsCount());
+    }
+
+    private record Entry(int bookId, long ratingSum, int ratingsCount, double score) {
+    }
+}
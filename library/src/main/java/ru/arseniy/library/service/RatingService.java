@@ -6,8 +6,10 @@ import org.springframework.transaction.annotation.Transactional;
 import ru.arseniy.library.dto.BookRatingDTO;
 import ru.arseniy.library.dto.RatingDTO;
 import ru.arseniy.library.model.Book;
+import ru.arseniy.library.model.BookRatingSummary;
 import ru.arseniy.library.model.Rating;
 import ru.arseniy.library.model.User;
+import ru.arseniy.library.repository.BookRatingSummaryRepository;
 import ru.arseniy.library.repository.BookRepository;
 import ru.arseniy.library.repository.RatingRepository;
 import ru.arseniy.library.repository.UserRepository;
@@ -27,6 +29,8 @@ public class RatingService {
     private final RatingRepository ratingRepository;
     private final BookRepository bookRepository;
     private final UserRepository userRepository;
+    private final BookRatingSummaryRepository bookRatingSummaryRepository;
+    private final PopularBooksRanking popularBooksRanking;
 
     /**
      * Получить все рейтинги для указанной книги
@@ -43,15 +47,10 @@ public class RatingService {
      * (среднее значение и количество оценок)
      */
     public BookRatingDTO getBookRatingInfo(Integer bookId) {
-        Double averageRating = ratingRepository.getAverageRatingByBookId(bookId);
-        Long ratingCount = ratingRepository.countRatingsByBookId(bookId);
-        
-        // Если нет рейтингов, устанавливаем средний рейтинг 0
-        if (averageRating == null) {
-            averageRating = 0.0;
-        }
-        
-        return new BookRatingDTO(bookId, averageRating, ratingCount);
+        // Если нет рейтингов, записи нет и средний рейтинг равен 0
+        return bookRatingSummaryRepository.findById(bookId)
+                .map(summary -> new BookRatingDTO(bookId, summary.getAverageRating(), summary.getRatingsCount().longValue()))
+                .orElseGet(() -> new BookRatingDTO(bookId, 0.0, 0L));
     }
 
     /**
@@ -82,6 +81,8 @@ public class RatingService {
         if (existingRating.isPresent()) {
             // Обновляем существующий рейтинг
             rating = existingRating.get();
+            bookRatingSummaryRepository.applyDelta(bookId, ratingValue - rating.getRating(), 0);
+            popularBooksRanking.onRatingChanged(bookId, ratingValue - rating.getRating(), 0);
             rating.setRating(ratingValue);
             rating.setDate(LocalDateTime.now());
         } else {
@@ -91,6 +92,8 @@ public class RatingService {
             rating.setBook(book);
             rating.setRating(ratingValue);
             rating.setDate(LocalDateTime.now());
+            bookRatingSummaryRepository.applyDelta(bookId, ratingValue, 1);
+            popularBooksRanking.onRatingChanged(bookId, ratingValue, 1);
         }
         
         // Сохраняем рейтинг
@@ -104,7 +107,11 @@ public class RatingService {
      */
     @Transactional
     public void deleteRating(Integer userId, Integer bookId) {
-        ratingRepository.deleteByUserIdAndBookId(userId, bookId);
+        ratingRepository.findByUserIdAndBookId(userId, bookId).ifPresent(rating -> {
+            ratingRepository.delete(rating);
+            bookRatingSummaryRepository.applyDelta(bookId, -rating.getRating(), -1);
+            popularBooksRanking.onRatingChanged(bookId, -rating.getRating(), -1);
+        });
     }
 
     /**
@@ -125,8 +132,10 @@ public class RatingService {
     
     /**
      * Принудительно обновить и получить агрегированную информацию о рейтингах книги
-     * Используется в случае несоответствия данных
+     * Используется в случае несоответствия данных: пересчитанные значения
+     * также сохраняются в таблицу агрегированных рейтингов
      */
+    @Transactional
     public BookRatingDTO refreshBookRatingInfo(Integer bookId) {
         // Получаем все рейтинги для книги и считаем среднее значение заново
         List<Rating> ratings = ratingRepository.findAllByBookId(bookId);
@@ -139,6 +148,14 @@ public class RatingService {
         Double averageRating = ratings.isEmpty() ? 0 : sum / ratings.size();
         Long ratingCount = (long) ratings.size();
         
+        if (ratings.isEmpty()) {
+            bookRatingSummaryRepository.deleteById(bookId);
+        } else {
+            bookRatingSummaryRepository.save(
+                    new BookRatingSummary(bookId, (long) sum, ratings.size(), averageRating));
+        }
+        popularBooksRanking.onRatingRecalculated(bookId, (long) sum, ratings.size());
+        
         return new BookRatingDTO(bookId, averageRating, ratingCount);
     }
     
@@ -146,6 +163,7 @@ public class RatingService {
      * Принудительно обновить и получить агрегированную информацию о рейтингах книги для конкретного пользователя
      * Используется в случае несоответствия данных
      */
+    @Transactional
     public BookRatingDTO refreshBookRatingInfoForUser(Integer bookId, Integer userId) {
         BookRatingDTO ratingInfo = refreshBookRatingInfo(bookId);
         
@@ -0,0 +1,86 @@
+package ru.arseniy.library.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Разбивает текст на термы для встроенного поискового индекса.
+ * <p>
+ * Текст приводится к нижнему регистру (ё заменяется на е), разбивается по всем символам,
+ * кроме букв и цифр, из него удаляются стоп-слова русского и английского языков.
+ * К каждому слову применяется лёгкий стемминг: у русских слов отбрасываются
+ * типичные окончания, у английских — окончания множественного числа и -ing/-ed.
+ */
+public final class SearchTokenizer {
+
+    private static final int MIN_STEM_LENGTH = 3;
+
+    private static final Set<String> STOP_WORDS = Set.of(
+            "a", "an", "and", "are", "as", "at", "be", "by", "for", "from", "in", "is", "it",
+            "of", "on", "or", "the", "to", "with",
+            "а", "без", "бы", "в", "во", "да", "для", "до", "же", "за", "и", "из", "или", "к",
+            "как", "ли", "на", "не", "ни", "но", "о", "об", "от", "по", "под", "при", "с", "со",
+            "то", "у", "что");
+
+    /**
+     * Окончания русских слов, упорядоченные по убыванию длины
+     */
+    private static final String[] RUSSIAN_ENDINGS = {
+            "иями", "ями", "ами", "иях", "ого", "его", "ому", "ему", "ыми", "ими",
+            "ях", "ах", "ой", "ей", "ий", "ый", "ая", "яя", "ое", "ее", "ые", "ие", "ую", "юю",
+            "ов", "ев", "ам", "ям", "ом", "ем", "ью", "ия", "ья",
+            "а", "я", "о", "е", "ы", "и", "у", "ю", "ь", "й"
+    };
+
+    private SearchTokenizer() {
+    }
+
+    /**
+     * Разбивает текст на термы в порядке их следования
+     *
+     * @param text исходный текст (может быть null)
+     * @return список термов, стоп-слова исключены
+     */
+    public static List<String> tokenize(String text) {
+        List<String> terms = new ArrayList<>();
+        if (text == null) {
+            return terms;
+        }
+        for (String word : text.toLowerCase(Locale.ROOT).replace('ё', 'е').split("[^\\p{L}\\p{N}]+")) {
+            if (!word.isEmpty() && !STOP_WORDS.contains(word)) {
+                terms.add(stem(word));
+            }
+        }
+        return terms;
+    }
+
+    private static String stem(String word) {
+        if (word.length() <= MIN_STEM_LENGTH) {
+            return word;
+        }
+        char first = word.charAt(0);
+        if (first >= 'а' && first <= 'я') {
+            for (String ending : RUSSIAN_ENDINGS) {
+                if (word.endsWith(ending) && word.length() - ending.length() >= MIN_STEM_LENGTH) {
+                    return word.substring(0, word.length() - ending.length());
+                }
+            }
+            return word;
+        }
+        if (word.endsWith("ies") && word.length() > 4) {
+            return word.substring(0, word.length() - 3) + "y";
+        }
+        if (word.endsWith("ing") && word.length() - 3 >= MIN_STEM_LENGTH) {
+            return word.substring(0, word.length() - 3);
+        }
+        if (word.endsWith("ed") && word.length() - 2 >= MIN_STEM_LENGTH) {
+            return word.substring(0, word.length() - 2);
+        }
+        if (word.endsWith("s") && !word.endsWith("ss")) {
+            return word.substring(0, word.length() - 1);
+        }
+        return word;
+    }
+}
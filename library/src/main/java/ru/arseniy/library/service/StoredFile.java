@@ -0,0 +1,235 @@
+package ru.arseniy.library.service;
+
+import lombok.AccessLevel;
+import lombok.Builder;
+import lombok.Getter;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import software.amazon.awssdk.utils.async.InputStreamSubscriber;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Файл, полученный из хранилища: поток содержимого и метаданные объекта.
+ * Если запрашивался диапазон байтов, поток содержит только этот диапазон.
+ * Поток должен быть закрыт после передачи клиенту.
+ * <p>
+ * Файл из локального дискового кэша вместо потока содержит открытый {@link FileChannel}. Канал остаётся открытым
+ * до конца передачи, поэтому файл можно удалить или заменить в любой момент. Передача не zero-copy: выходной
+ * поток сервлета не является каналом сокета, поэтому {@link FileChannel#transferTo} копирует данные через
+ * промежуточный буфер, как и при чтении обычного потока.
+ * <p>
+ * Файл, читаемый асинхронным клиентом, содержит поток буферов ({@link #takePublisher()}), который можно
+ * передать клиенту без блокировки потоков. Если поток буферов не забрали, {@link #getContent()} и
+ * {@link #transferTo} читают его как обычный поток. Содержимое можно прочитать только одним из этих способов.
+ */
+@Getter
+@Builder
+public class StoredFile implements Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Поток содержимого (null, если файл читается из локальной копии через {@link #channel}
+     * или асинхронно через {@link #publisher})
+     */
+    private InputStream content;
+
+    /**
+     * Поток буферов содержимого от асинхронного клиента (может быть null)
+     */
+    @Getter(AccessLevel.NONE)
+    private final Publisher<ByteBuffer> publisher;
+
+    /**
+     * Действие, выполняемое один раз при закрытии файла (может быть null)
+     */
+    @Getter(AccessLevel.NONE)
+    private final Runnable onClose;
+
+    @Getter(AccessLevel.NONE)
+    private final AtomicBoolean publisherTaken = new AtomicBoolean();
+
+    @Getter(AccessLevel.NONE)
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    /**
+     * Канал локальной копии объекта целиком (может быть null)
+     */
+    private final FileChannel channel;
+
+    /**
+     * Ключ объекта в хранилище
+     */
+    private final String key;
+
+    /**
+     * Размер содержимого (или полученного диапазона) в байтах или -1, если он неизвестен
+     */
+    @Builder.Default
+    private final long contentLength = -1;
+
+    /**
+     * Тип содержимого, сохранённый вместе с объектом (может быть null)
+     */
+    private final String contentType;
+
+    /**
+     * ETag объекта в хранилище (может быть null)
+     */
+    private final String eTag;
+
+    /**
+     * Время последнего изменения объекта (может быть null)
+     */
+    private final Instant lastModified;
+
+    /**
+     * Смещение первого байта содержимого от начала объекта
+     */
+    private final long rangeStart;
+
+    /**
+     * Полный размер объекта в байтах или -1, если он неизвестен
+     */
+    @Builder.Default
+    private final long totalLength = -1;
+
+    /**
+     * Возвращает true, если содержимое — часть объекта, а не объект целиком
+     */
+    public boolean isPartial() {
+        return contentLength >= 0 && totalLength >= 0 && contentLength < totalLength;
+    }
+
+    /**
+     * Возвращает смещение последнего байта содержимого от начала объекта
+     */
+    public long getRangeEnd() {
+        return rangeStart + contentLength - 1;
+    }
+
+    /**
+     * Возвращает true, если содержимое можно получить потоком буферов без блокировки
+     */
+    public boolean hasPublisher() {
+        return publisher != null && !publisherTaken.get();
+    }
+
+    /**
+     * Забирает поток буферов содержимого. Получатель должен подписаться на него,
+     * а после окончания передачи закрыть файл.
+     *
+     * @return поток буферов или null, если файл читается не асинхронно или поток уже забран
+     */
+    public Publisher<ByteBuffer> takePublisher() {
+        return publisher != null && publisherTaken.compareAndSet(false, true) ? publisher : null;
+    }
+
+    /**
+     * Возвращает поток содержимого; для асинхронно читаемого файла поток буферов при первом вызове
+     * превращается в блокирующий поток
+     *
+     * @return поток содержимого или null, если файл читается из локальной копии
+     */
+    public InputStream getContent() {
+        if (content == null) {
+            Publisher<ByteBuffer> source = takePublisher();
+            if (source != null) {
+                InputStreamSubscriber subscriber = new InputStreamSubscriber();
+                source.subscribe(subscriber);
+                content = subscriber;
+            }
+        }
+        return content;
+    }
+
+    /**
+     * Копирует содержимое в выходной поток и закрывает файл. Локальная копия передаётся
+     * через {@link FileChannel#transferTo} в обёртку над выходным потоком (с копированием
+     * через буфер), поток — через буфер фиксированного размера.
+     *
+     * @param out выходной поток
+     * @throws IOException если произошла ошибка чтения или записи
+     */
+    public void transferTo(OutputStream out) throws IOException {
+        try (this) {
+            if (channel != null) {
+                transferChannelTo(out);
+                return;
+            }
+            InputStream in = getContent();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        }
+    }
+
+    private void transferChannelTo(OutputStream out) throws IOException {
+        WritableByteChannel target = Channels.newChannel(out);
+        long position = rangeStart;
+        long remaining = contentLength;
+        while (remaining > 0) {
+            long transferred = channel.transferTo(position, remaining, target);
+            if (transferred <= 0) {
+                throw new EOFException("Локальная копия файла " + key + " короче ожидаемого");
+            }
+            position += transferred;
+            remaining -= transferred;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+            if (content != null) {
+                content.close();
+            }
+            // Незабранный поток буферов отменяется, чтобы освободить соединение с хранилищем
+            Publisher<ByteBuffer> unread = takePublisher();
+            if (unread != null) {
+                unread.subscribe(new CancellingSubscriber());
+            }
+        } finally {
+            if (onClose != null && closed.compareAndSet(false, true)) {
+                onClose.run();
+            }
+        }
+    }
+
+    private static final class CancellingSubscriber implements Subscriber<ByteBuffer> {
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            subscription.cancel();
+        }
+
+        @Override
+        public void onNext(ByteBuffer buffer) {
+        }
+
+        @Override
+        public void onError(Throwable t) {
+        }
+
+        @Override
+        public void onComplete() {
+        }
+    }
+}
@@ -19,6 +19,7 @@ import ru.arseniy.library.repository.ReadingHistoryRepository;
 import ru.arseniy.library.repository.RoleRepository;
 import ru.arseniy.library.repository.UserRepository;
 import ru.arseniy.library.exception.ResourceNotFoundException;
+import ru.arseniy.library.security.services.UserPrincipalCache;
 
 import java.time.LocalDateTime;
 import java.util.HashSet;
@@ -43,6 +44,9 @@ public class UserService {
     @Autowired
     private PasswordEncoder passwordEncoder;
     
+    @Autowired
+    private UserPrincipalCache userPrincipalCache;
+    
     /**
      * Изменяет пароль пользователя
      * 
@@ -63,6 +67,7 @@ public class UserService {
         // Устанавливаем новый пароль
         user.setPassword(passwordEncoder.encode(request.getNewPassword()));
         userRepository.save(user);
+        userPrincipalCache.invalidate(user.getEmail());
         
         return new MessageResponse("Пароль успешно изменен");
     }
@@ -184,7 +189,9 @@ public class UserService {
         user.setLastName(updateProfileRequest.getLastName());
         
         // Сохраняем обновленного пользователя
-        return userRepository.save(user);
+        User savedUser = userRepository.save(user);
+        userPrincipalCache.invalidate(savedUser.getEmail());
+        return savedUser;
     }
 
     // =================== АДМИНИСТРАТИВНЫЕ МЕТОДЫ ===================
@@ -221,6 +228,7 @@ public class UserService {
 
         user.getRoles().add(adminRole);
         userRepository.save(user);
+        userPrincipalCache.invalidate(user.getEmail());
 
         return new MessageResponse("Роль администратора успешно назначена пользователю " + user.getEmail());
     }
@@ -249,6 +257,7 @@ public class UserService {
 
         user.getRoles().remove(adminRole);
         userRepository.save(user);
+        userPrincipalCache.invalidate(user.getEmail());
 
         return new MessageResponse("Роль администратора удалена у пользователя " + user.getEmail());
     }
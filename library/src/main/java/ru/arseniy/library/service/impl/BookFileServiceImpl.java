@@ -2,17 +2,27 @@ package ru.arseniy.library.service.impl;
 
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpRange;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 import ru.arseniy.library.model.Book;
+import ru.arseniy.library.model.BookFile;
+import ru.arseniy.library.model.BookFileKind;
+import ru.arseniy.library.model.CoverThumbnail;
+import ru.arseniy.library.repository.BookFileRepository;
 import ru.arseniy.library.repository.BookRepository;
+import ru.arseniy.library.repository.CoverThumbnailRepository;
 import ru.arseniy.library.service.BookFileService;
+import ru.arseniy.library.service.FileMetadata;
 import ru.arseniy.library.service.FileStorageService;
+import ru.arseniy.library.service.StoredFile;
 import ru.arseniy.library.util.FileConstants;
 
 import java.io.IOException;
-import java.io.InputStream;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Optional;
 
 /**
@@ -25,6 +35,10 @@ public class BookFileServiceImpl implements BookFileService {
 
     private final FileStorageService fileStorageService;
     private final BookRepository bookRepository;
+    private final BookFileRepository bookFileRepository;
+    private final CoverThumbnailRepository coverThumbnailRepository;
+    private final CoverThumbnailGenerator coverThumbnailGenerator;
+    private final StorageDeletionQueue storageDeletionQueue;
 
     @Override
     public String uploadBookFile(MultipartFile file, Integer bookId) throws IOException, IllegalArgumentException {
@@ -47,8 +61,10 @@ public class BookFileServiceImpl implements BookFileService {
         // Получаем название книги для создания папки
         String bookTitle = getBookTitle(bookId);
 
-        // Загружаем файл
-        return fileStorageService.uploadFile(file, key, bookTitle);
+        // Загружаем файл и запоминаем итоговый ключ объекта
+        FileMetadata stored = fileStorageService.storeFile(file, key, bookTitle);
+        saveBookFile(bookId, BookFileKind.FILE, stored, contentType);
+        return fileStorageService.getFileUrl(stored.getKey());
     }
 
     @Override
@@ -72,122 +88,157 @@ public class BookFileServiceImpl implements BookFileService {
         // Получаем название книги для создания папки
         String bookTitle = getBookTitle(bookId);
 
-        // Загружаем файл
-        return fileStorageService.uploadFile(file, key, bookTitle);
+        // Загружаем файл и запоминаем итоговый ключ объекта
+        FileMetadata stored = fileStorageService.storeFile(file, key, bookTitle);
+        saveBookFile(bookId, BookFileKind.COVER, stored, contentType);
+        coverThumbnailGenerator.onCoverUploaded(bookId);
+        return fileStorageService.getFileUrl(stored.getKey());
     }
 
     @Override
-    public Optional<InputStream> getBookFile(Integer bookId) {
+    public Optional<StoredFile> getBookFile(Integer bookId) {
+        return getBookFile(bookId, null);
+    }
+
+    @Override
+    public Optional<StoredFile> getBookFile(Integer bookId, HttpRange range) {
         log.info("Получение файла книги с ID: {}", bookId);
-        
-        // Проверяем, существует ли книга
-        String bookTitle = getBookTitle(bookId);
-        if (bookTitle == null) {
-            log.warn("Книга с ID {} не найдена", bookId);
-            return Optional.empty();
-        }
-        
-        log.info("Книга найдена: '{}', ID: {}", bookTitle, bookId);
-        
-        // Пытаемся найти файл с разными расширениями
-        for (String contentType : FileConstants.ALLOWED_BOOK_CONTENT_TYPES) {
-            String key = generateBookFileKey(bookId, contentType);
-            log.debug("Проверяем файл по ключу: {}", key);
-            
-            Optional<InputStream> file = fileStorageService.getFile(key);
-            if (file.isPresent()) {
-                log.info("Файл найден по ключу: {}", key);
-                return file;
-            }
-            
-            // Если не нашли по прямому пути, пробуем искать в папке с названием книги
-            if (bookTitle != null && !bookTitle.isEmpty()) {
-                String safeBookTitle = bookTitle.replaceAll("[^a-zA-Z0-9_\\-\\.]", "_");
-                String bookFolderKey = "books/" + safeBookTitle + "/" + FileConstants.BOOKS_PREFIX + bookId + "." + getExtensionFromContentType(contentType);
-                log.debug("Проверяем файл по альтернативному ключу: {}", bookFolderKey);
-                
-                Optional<InputStream> fileInFolder = fileStorageService.getFile(bookFolderKey);
-                if (fileInFolder.isPresent()) {
-                    log.info("Файл найден по альтернативному ключу: {}", bookFolderKey);
-                    return fileInFolder;
-                }
-            }
-        }
-        
-        log.warn("Файл книги с ID {} не найден в хранилище", bookId);
-        return Optional.empty();
+        return getStoredFile(bookId, BookFileKind.FILE, range);
     }
 
     @Override
-    public Optional<InputStream> getBookCover(Integer bookId) {
-        // Пытаемся найти файл с разными расширениями
-        for (String contentType : FileConstants.ALLOWED_COVER_CONTENT_TYPES) {
-            String key = generateBookCoverKey(bookId, contentType);
-            Optional<InputStream> file = fileStorageService.getFile(key);
-            if (file.isPresent()) {
-                return file;
-            }
-            
-            // Если не нашли по прямому пути, пробуем искать в папке с названием книги
-            String bookTitle = getBookTitle(bookId);
-            if (bookTitle != null && !bookTitle.isEmpty()) {
-                String safeBookTitle = bookTitle.replaceAll("[^a-zA-Z0-9_\\-\\.]", "_");
-                String bookFolderKey = "books/" + safeBookTitle + "/" + FileConstants.COVERS_PREFIX + bookId + "." + getExtensionFromContentType(contentType);
-                Optional<InputStream> fileInFolder = fileStorageService.getFile(bookFolderKey);
-                if (fileInFolder.isPresent()) {
-                    return fileInFolder;
-                }
-            }
-        }
-        return Optional.empty();
+    public Optional<BookFile> getBookFileInfo(Integer bookId, BookFileKind kind) {
+        return bookFileRepository.findByBookIdAndKind(bookId, kind);
     }
 
     @Override
-    public boolean deleteBookFile(Integer bookId) {
-        boolean deleted = false;
-        String bookTitle = getBookTitle(bookId);
-        
-        // Пытаемся удалить файл с разными расширениями
-        for (String contentType : FileConstants.ALLOWED_BOOK_CONTENT_TYPES) {
-            String key = generateBookFileKey(bookId, contentType);
-            if (fileStorageService.deleteFile(key)) {
-                deleted = true;
-            }
-            
-            // Если есть название книги, пробуем удалить файл из папки с названием книги
-            if (bookTitle != null && !bookTitle.isEmpty()) {
-                String safeBookTitle = bookTitle.replaceAll("[^a-zA-Z0-9_\\-\\.]", "_");
-                String bookFolderKey = "books/" + safeBookTitle + "/" + FileConstants.BOOKS_PREFIX + bookId + "." + getExtensionFromContentType(contentType);
-                if (fileStorageService.deleteFile(bookFolderKey)) {
-                    deleted = true;
-                }
-            }
-        }
-        return deleted;
+    public Optional<StoredFile> getBookCover(Integer bookId) {
+        return getStoredFile(bookId, BookFileKind.COVER, null);
     }
 
     @Override
-    public boolean deleteBookCover(Integer bookId) {
-        boolean deleted = false;
-        String bookTitle = getBookTitle(bookId);
-        
-        // Пытаемся удалить файл с разными расширениями
-        for (String contentType : FileConstants.ALLOWED_COVER_CONTENT_TYPES) {
-            String key = generateBookCoverKey(bookId, contentType);
-            if (fileStorageService.deleteFile(key)) {
-                deleted = true;
-            }
-            
-            // Если есть название книги, пробуем удалить файл из папки с названием книги
+    public Optional<Integer> selectCoverThumbnailWidth(Integer requestedSize) {
+        return coverThumbnailGenerator.selectWidth(requestedSize);
+    }
+
+    @Override
+    public Optional<StoredFile> getBookCoverThumbnail(Integer bookId, int width) {
+        return getCoverThumbnailInfo(bookId, width)
+                .flatMap(thumbnail -> fileStorageService.getFile(thumbnail.getStorageKey()));
+    }
+
+    @Override
+    public Optional<CoverThumbnail> getCoverThumbnailInfo(Integer bookId, int width) {
+        return coverThumbnailRepository.findByBookIdAndWidth(bookId, width);
+    }
+
+    @Override
+    public void deleteBookFiles(Integer bookId) {
+        List<String> keys = new ArrayList<>();
+        bookFileRepository.findByBookId(bookId).forEach(bookFile -> keys.add(bookFile.getStorageKey()));
+        coverThumbnailRepository.findByBookId(bookId).forEach(thumbnail -> keys.add(thumbnail.getStorageKey()));
+        storageDeletionQueue.enqueue(keys);
+        coverThumbnailRepository.deleteByBookId(bookId);
+        bookFileRepository.deleteByBookId(bookId);
+    }
+
+    @Override
+    public boolean backfillStorageKeys(Integer bookId, String bookTitle) {
+        boolean fileFound = discoverStoredFile(bookId, bookTitle, BookFileKind.FILE);
+        boolean coverFound = discoverStoredFile(bookId, bookTitle, BookFileKind.COVER);
+        return fileFound || coverFound;
+    }
+
+    /**
+     * Получает файл из хранилища одним запросом по сохранённому ключу
+     *
+     * @param bookId идентификатор книги
+     * @param kind вид файла
+     * @param range диапазон байтов или null, чтобы получить файл целиком
+     * @return файл, если он был загружен и найден в хранилище
+     */
+    private Optional<StoredFile> getStoredFile(Integer bookId, BookFileKind kind, HttpRange range) {
+        Optional<BookFile> bookFile = bookFileRepository.findByBookIdAndKind(bookId, kind);
+        if (bookFile.isEmpty()) {
+            log.debug("Для книги с ID {} нет сохранённого файла вида {}", bookId, kind);
+            return Optional.empty();
+        }
+        Optional<StoredFile> file = fileStorageService.getFile(bookFile.get().getStorageKey(), range);
+        if (file.isEmpty()) {
+            log.warn("Файл книги с ID {} отсутствует в хранилище по ключу: {}", bookId, bookFile.get().getStorageKey());
+        }
+        return file;
+    }
+
+    /**
+     * Сохраняет ключ и метаданные загруженного файла. Если прежний файл того же вида
+     * хранился под другим ключом (например, с другим расширением), он ставится
+     * в очередь на удаление из хранилища.
+     *
+     * @param bookId идентификатор книги
+     * @param kind вид файла
+     * @param stored метаданные объекта в хранилище
+     * @param contentType тип содержимого, если хранилище его не вернуло
+     */
+    private void saveBookFile(Integer bookId, BookFileKind kind, FileMetadata stored, String contentType) {
+        BookFile bookFile = bookFileRepository.findByBookIdAndKind(bookId, kind).orElseGet(BookFile::new);
+        String previousKey = bookFile.getStorageKey();
+
+        bookFile.setBookId(bookId);
+        bookFile.setKind(kind);
+        bookFile.setStorageKey(stored.getKey());
+        bookFile.setContentType(stored.getContentType() != null ? stored.getContentType() : contentType);
+        bookFile.setSizeBytes(stored.getContentLength() >= 0 ? stored.getContentLength() : null);
+        bookFile.setETag(stored.getETag());
+        bookFile.setUploadedAt(LocalDateTime.now());
+        bookFileRepository.save(bookFile);
+        // Объект мог ждать удаления после прежней замены файла под тем же ключом
+        storageDeletionQueue.cancel(stored.getKey());
+
+        if (previousKey != null && !previousKey.equals(stored.getKey())) {
+            storageDeletionQueue.enqueue(List.of(previousKey));
+        }
+    }
+
+    /**
+     * Ищет в хранилище файл книги, загруженный до появления сохранённых ключей,
+     * перебирая ключи, по которым файлы сохранялись раньше. Проверка выполняется
+     * запросами метаданных, содержимое файлов не загружается.
+     *
+     * @param bookId идентификатор книги
+     * @param bookTitle название книги
+     * @param kind вид файла
+     * @return true, если ключ файла известен или найден
+     */
+    private boolean discoverStoredFile(Integer bookId, String bookTitle, BookFileKind kind) {
+        if (bookFileRepository.findByBookIdAndKind(bookId, kind).isPresent()) {
+            return true;
+        }
+        String[] contentTypes = kind == BookFileKind.FILE
+                ? FileConstants.ALLOWED_BOOK_CONTENT_TYPES
+                : FileConstants.ALLOWED_COVER_CONTENT_TYPES;
+        for (String contentType : contentTypes) {
+            String key = kind == BookFileKind.FILE
+                    ? generateBookFileKey(bookId, contentType)
+                    : generateBookCoverKey(bookId, contentType);
+            List<String> candidates = new ArrayList<>();
+            candidates.add(key);
             if (bookTitle != null && !bookTitle.isEmpty()) {
-                String safeBookTitle = bookTitle.replaceAll("[^a-zA-Z0-9_\\-\\.]", "_");
-                String bookFolderKey = "books/" + safeBookTitle + "/" + FileConstants.COVERS_PREFIX + bookId + "." + getExtensionFromContentType(contentType);
-                if (fileStorageService.deleteFile(bookFolderKey)) {
-                    deleted = true;
+                candidates.add(generateBookFolderKey(bookTitle, key));
+            }
+            for (String candidate : candidates) {
+                Optional<FileMetadata> metadata = fileStorageService.getFileMetadata(candidate);
+                if (metadata.isPresent()) {
+                    log.info("Найден файл вида {} для книги с ID {}: {}", kind, bookId, candidate);
+                    saveBookFile(bookId, kind, metadata.get(), contentType);
+                    if (kind == BookFileKind.COVER) {
+                        coverThumbnailGenerator.onCoverUploaded(bookId);
+                    }
+                    return true;
                 }
             }
         }
-        return deleted;
+        return false;
     }
     
     /**
@@ -246,6 +297,19 @@ public class BookFileServiceImpl implements BookFileService {
         return FileConstants.COVERS_PREFIX + bookId + "." + extension;
     }
 
+    /**
+     * Генерирует ключ файла в папке с названием книги (так файлы сохраняет хранилище,
+     * если при загрузке указано название книги)
+     *
+     * @param bookTitle название книги
+     * @param key ключ файла без папки
+     * @return ключ файла в папке книги
+     */
+    private String generateBookFolderKey(String bookTitle, String key) {
+        String safeBookTitle = bookTitle.replaceAll("[^a-zA-Z0-9_\\-\\.]", "_");
+        return "books/" + safeBookTitle + "/" + key;
+    }
+
     /**
      * Получает расширение файла из типа содержимого
      *
@@ -0,0 +1,376 @@
+package ru.arseniy.library.service.impl;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Component;
+import ru.arseniy.library.model.BookFile;
+import ru.arseniy.library.model.BookFileKind;
+import ru.arseniy.library.model.CoverThumbnail;
+import ru.arseniy.library.repository.BookFileRepository;
+import ru.arseniy.library.repository.CoverThumbnailRepository;
+import ru.arseniy.library.service.CoverImageCache;
+import ru.arseniy.library.service.FileStorageService;
+import ru.arseniy.library.service.StoredFile;
+import ru.arseniy.library.util.TransactionUtils;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.LocalDateTime;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Генерация миниатюр обложек.
+ * <p>
+ * После загрузки обложки в отдельном пуле потоков из неё получаются JPEG-миниатюры ширин
+ * {@code app.files.thumbnails.widths}, которые сохраняются в хранилище рядом с обложкой.
+ * Используется только {@code javax.imageio}: обложки в формате WebP стандартная библиотека
+ * прочитать не может, для них миниатюры не создаются и отдаётся исходная обложка.
+ * <p>
+ * Миниатюры прежней обложки, которые не были перезаписаны миниатюрами новой (другой ключ, формат без
+ * миниатюр или ошибка генерации), ставятся в {@link StorageDeletionQueue}.
+ */
+@Component
+@Slf4j
+public class CoverThumbnailGenerator {
+
+    private static final String THUMBNAIL_CONTENT_TYPE = "image/jpeg";
+    private static final String THUMBNAIL_EXTENSION = "jpg";
+    private static final int BACKFILL_BATCH_SIZE = 100;
+    private static final int LOCK_STRIPES = 64;
+
+    private final FileStorageService fileStorageService;
+    private final BookFileRepository bookFileRepository;
+    private final CoverThumbnailRepository coverThumbnailRepository;
+    private final CoverImageCache coverImageCache;
+    private final StorageDeletionQueue storageDeletionQueue;
+
+    private final boolean enabled;
+    private final List<Integer> widths;
+    private final float quality;
+    private final ExecutorService executor;
+    /**
+     * Блокировки генерации по книгам: ключи миниатюр не зависят от версии обложки, поэтому генерация
+     * для одной книги выполняется последовательно и устаревшая генерация не перезапишет миниатюры новой
+     */
+    private final ReentrantLock[] bookLocks = new ReentrantLock[LOCK_STRIPES];
+
+    private final LongAdder generatedCount = new LongAdder();
+    private final LongAdder generatedBytes = new LongAdder();
+    private final LongAdder sourceBytes = new LongAdder();
+
+    public CoverThumbnailGenerator(FileStorageService fileStorageService,
+                                   BookFileRepository bookFileRepository,
+                                   CoverThumbnailRepository coverThumbnailRepository,
+                                   CoverImageCache coverImageCache,
+                                   StorageDeletionQueue storageDeletionQueue,
+                                   @Value("${app.files.thumbnails.enabled:true}") boolean enabled,
+                                   @Value("${app.files.thumbnails.widths:160,320,640}") List<Integer> widths,
+                                   @Value("${app.files.thumbnails.quality:0.82}") float quality,
+                                   @Value("${app.files.thumbnails.threads:2}") int threads) {
+        this.fileStorageService = fileStorageService;
+        this.bookFileRepository = bookFileRepository;
+        this.coverThumbnailRepository = coverThumbnailRepository;
+        this.coverImageCache = coverImageCache;
+        this.storageDeletionQueue = storageDeletionQueue;
+        this.enabled = enabled;
+        this.widths = widths.stream().filter(width -> width > 0).distinct().sorted().toList();
+        this.quality = quality;
+        for (int i = 0; i < bookLocks.length; i++) {
+            bookLocks[i] = new ReentrantLock();
+        }
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "cover-thumbnails-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Выбирает ширину миниатюры для запрошенного размера: наименьшую из доступных,
+     * не меньше запрошенного размера
+     *
+     * @param requestedSize запрошенная ширина в пикселях (может быть null)
+     * @return ширина миниатюры или пустое значение, если нужна исходная обложка
+     */
+    public Optional<Integer> selectWidth(Integer requestedSize) {
+        if (!enabled || requestedSize == null || requestedSize <= 0) {
+            return Optional.empty();
+        }
+        return widths.stream().filter(width -> width >= requestedSize).findFirst();
+    }
+
+    /**
+     * Удаляет сведения о миниатюрах прежней обложки и после фиксации транзакции
+     * ставит в очередь генерацию миниатюр новой обложки. Объекты прежних миниатюр,
+     * не перезаписанные при генерации, после неё ставятся в очередь на удаление.
+     *
+     * @param bookId идентификатор книги
+     */
+    public void onCoverUploaded(Integer bookId) {
+        if (!enabled) {
+            return;
+        }
+        List<String> previousKeys = coverThumbnailRepository.findByBookId(bookId).stream()
+                .map(CoverThumbnail::getStorageKey)
+                .toList();
+        // Пока новые миниатюры не готовы, вместо них отдаётся исходная обложка
+        coverThumbnailRepository.deleteByBookId(bookId);
+        TransactionUtils.runAfterCommit(() -> executor.execute(() -> generateQuietly(bookId, previousKeys)));
+    }
+
+    /**
+     * Ставит в очередь генерацию миниатюр для всех обложек, у которых их ещё нет
+     */
+    public void scheduleBackfill() {
+        if (!enabled || widths.isEmpty()) {
+            return;
+        }
+        executor.execute(this::backfill);
+    }
+
+    private void backfill() {
+        int processed = 0;
+        int lastId = 0;
+        List<BookFile> batch;
+        do {
+            batch = coverThumbnailRepository.findCoversWithoutThumbnailsAfter(BookFileKind.COVER, lastId,
+                    widths, widths.size(), PageRequest.of(0, BACKFILL_BATCH_SIZE));
+            for (BookFile cover : batch) {
+                lastId = cover.getBookId();
+                processed++;
+                generateQuietly(cover.getBookId(), List.of());
+            }
+        } while (batch.size() == BACKFILL_BATCH_SIZE && !Thread.currentThread().isInterrupted());
+
+        if (processed > 0) {
+            log.info("Генерация миниатюр для ранее загруженных обложек завершена: обработано обложек {}", processed);
+        }
+    }
+
+    /**
+     * Генерирует миниатюры под блокировкой книги и ставит в очередь на удаление
+     * прежние миниатюры, которые не были перезаписаны новыми
+     *
+     * @param previousKeys ключи миниатюр прежней обложки
+     */
+    private void generateQuietly(Integer bookId, List<String> previousKeys) {
+        ReentrantLock lock = bookLocks[Math.floorMod(bookId.hashCode(), bookLocks.length)];
+        lock.lock();
+        Set<String> writtenKeys = new HashSet<>();
+        try {
+            generate(bookId, writtenKeys);
+        } catch (Exception e) {
+            log.error("Ошибка при генерации миниатюр обложки книги с ID {}: {}", bookId, e.getMessage(), e);
+        } finally {
+            try {
+                deleteStaleThumbnails(bookId, previousKeys, writtenKeys);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void deleteStaleThumbnails(Integer bookId, List<String> previousKeys, Set<String> writtenKeys) {
+        List<String> staleKeys = previousKeys.stream()
+                .filter(key -> !writtenKeys.contains(key))
+                .toList();
+        if (staleKeys.isEmpty()) {
+            return;
+        }
+        try {
+            storageDeletionQueue.enqueue(staleKeys);
+            log.info("Миниатюры прежней обложки книги с ID {} поставлены в очередь на удаление: {}", bookId, staleKeys);
+        } catch (RuntimeException e) {
+            log.error("Не удалось поставить в очередь на удаление миниатюры книги с ID {}: {}", bookId, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Генерирует и сохраняет миниатюры текущей обложки книги. Вызывается под блокировкой книги:
+     * генерация, начатая до замены обложки, завершается раньше, чем начнётся генерация для новой.
+     *
+     * @param writtenKeys сюда добавляются ключи записанных в хранилище миниатюр
+     */
+    private void generate(Integer bookId, Set<String> writtenKeys) throws IOException {
+        Optional<BookFile> cover = bookFileRepository.findByBookIdAndKind(bookId, BookFileKind.COVER);
+        if (cover.isEmpty()) {
+            return;
+        }
+        String contentType = cover.get().getContentType();
+        if (contentType != null && !ImageIO.getImageReadersByMIMEType(contentType).hasNext()) {
+            log.debug("Формат обложки книги с ID {} ({}) не поддерживается, миниатюры не созданы", bookId, contentType);
+            return;
+        }
+        Optional<StoredFile> storedFile = fileStorageService.getFile(cover.get().getStorageKey());
+        if (storedFile.isEmpty()) {
+            log.warn("Обложка книги с ID {} отсутствует в хранилище по ключу: {}", bookId, cover.get().getStorageKey());
+            return;
+        }
+        ByteArrayOutputStream original = new ByteArrayOutputStream();
+        storedFile.get().transferTo(original);
+
+        long startedAt = System.nanoTime();
+        BufferedImage image = decode(original.toByteArray(), widths.get(widths.size() - 1));
+        if (image == null) {
+            log.info("Формат обложки книги с ID {} ({}) не поддерживается, миниатюры не созданы",
+                    bookId, cover.get().getContentType());
+            return;
+        }
+
+        long thumbnailsBytes = 0;
+        for (Integer width : widths) {
+            byte[] thumbnail = encode(resize(image, width));
+            String key = thumbnailKey(cover.get().getStorageKey(), width);
+            // Объект под этим ключом мог ждать удаления как миниатюра одной из прежних обложек
+            storageDeletionQueue.cancel(key);
+            try (InputStream in = new ByteArrayInputStream(thumbnail)) {
+                fileStorageService.uploadFile(in, key, THUMBNAIL_CONTENT_TYPE, thumbnail.length);
+            }
+            writtenKeys.add(key);
+            if (!isCurrentCover(cover.get())) {
+                log.info("Обложка книги с ID {} заменена во время генерации миниатюр", bookId);
+                return;
+            }
+            CoverThumbnail record = coverThumbnailRepository.findByBookIdAndWidth(bookId, width)
+                    .orElseGet(CoverThumbnail::new);
+            record.setBookId(bookId);
+            record.setWidth(width);
+            record.setStorageKey(key);
+            record.setContentType(THUMBNAIL_CONTENT_TYPE);
+            record.setSizeBytes((long) thumbnail.length);
+            record.setSourceETag(cover.get().getETag());
+            record.setCreatedAt(LocalDateTime.now());
+            coverThumbnailRepository.save(record);
+            thumbnailsBytes += thumbnail.length;
+        }
+        coverImageCache.invalidate(bookId);
+
+        generatedCount.add(widths.size());
+        generatedBytes.add(thumbnailsBytes);
+        sourceBytes.add((long) original.size() * widths.size());
+        log.info("Миниатюры обложки книги с ID {} созданы: {}x{} -> ширины {}, {} байт вместо {} ({} мс; всего миниатюр {}, "
+                        + "в среднем {}% от размера обложки)",
+                bookId, image.getWidth(), image.getHeight(), widths, thumbnailsBytes, original.size(),
+                (System.nanoTime() - startedAt) / 1_000_000, generatedCount.sum(),
+                sourceBytes.sum() > 0 ? generatedBytes.sum() * 100 / sourceBytes.sum() : 0);
+    }
+
+    private boolean isCurrentCover(BookFile cover) {
+        return bookFileRepository.findByBookIdAndKind(cover.getBookId(), BookFileKind.COVER)
+                .map(current -> current.getStorageKey().equals(cover.getStorageKey())
+                        && Objects.equals(current.getETag(), cover.getETag())
+                        && Objects.equals(current.getUploadedAt(), cover.getUploadedAt()))
+                .orElse(false);
+    }
+
+    /**
+     * Декодирует изображение. Большие изображения читаются с прореживанием пикселей, но не меньше
+     * удвоенной наибольшей ширины миниатюры, чтобы не декодировать в память полный размер.
+     *
+     * @return изображение или null, если формат не поддерживается
+     */
+    private BufferedImage decode(byte[] bytes, int maxWidth) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(bytes))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                int subsampling = Math.max(1, reader.getWidth(0) / (maxWidth * 2));
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Уменьшает изображение до заданной ширины с сохранением пропорций. Уменьшение выполняется
+     * в несколько шагов не более чем вдвое, чтобы билинейная интерполяция не давала ступенек;
+     * прозрачные области заливаются белым, так как JPEG не поддерживает прозрачность.
+     */
+    private BufferedImage resize(BufferedImage image, int width) {
+        int targetWidth = Math.min(width, image.getWidth());
+        int targetHeight = Math.max(1, (int) Math.round((double) image.getHeight() * targetWidth / image.getWidth()));
+        BufferedImage current = image;
+        int currentWidth = image.getWidth();
+        int currentHeight = image.getHeight();
+        do {
+            currentWidth = Math.max(targetWidth, currentWidth / 2);
+            currentHeight = Math.max(targetHeight, currentHeight / 2);
+            BufferedImage step = new BufferedImage(currentWidth, currentHeight, BufferedImage.TYPE_INT_RGB);
+            Graphics2D graphics = step.createGraphics();
+            try {
+                graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+                graphics.drawImage(current, 0, 0, currentWidth, currentHeight, Color.WHITE, null);
+            } finally {
+                graphics.dispose();
+            }
+            current = step;
+        } while (currentWidth > targetWidth || currentHeight > targetHeight);
+        return current;
+    }
+
+    private byte[] encode(BufferedImage image) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName(THUMBNAIL_EXTENSION).next();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ImageOutputStream imageOut = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(imageOut);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Формирует ключ миниатюры рядом с обложкой: {@code <ключ без расширения>_<ширина>.jpg}
+     */
+    static String thumbnailKey(String coverKey, int width) {
+        int slash = coverKey.lastIndexOf('/');
+        int dot = coverKey.lastIndexOf('.');
+        String base = dot > slash ? coverKey.substring(0, dot) : coverKey;
+        return base + "_" + width + "." + THUMBNAIL_EXTENSION;
+    }
+}
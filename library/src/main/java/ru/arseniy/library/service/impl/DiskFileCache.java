@@ -0,0 +1,784 @@
+package ru.arseniy.library.service.impl;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpRange;
+import org.springframework.stereotype.Component;
+import ru.arseniy.library.exception.RangeNotSatisfiableException;
+import ru.arseniy.library.service.StoredFile;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+
+/**
+ * Локальный дисковый кэш файлов из хранилища.
+ * <p>
+ * При промахе запрос обслуживается ответом хранилища, поток запроса не ждёт заполнения кэша. Если хранилище
+ * отдало объект целиком и его размер известен заранее, содержимое (поток или асинхронно читаемые буферы)
+ * по мере передачи клиенту копируется во временный файл, который после полной передачи атомарно
+ * переименовывается в файл кэша.
+ * <p>
+ * Диапазон не даёт объекта целиком, поэтому для его кэширования нужен второй, полный запрос к хранилищу.
+ * Он делается в фоне в пуле из {@code app.files.disk-cache.fill-threads} потоков (при переполнении очереди
+ * загрузка пропускается) и только для объектов, по которым набралось
+ * {@code app.files.disk-cache.range-fill-min-misses} промахов диапазонами: так редкие запросы по диапазону
+ * не удваивают трафик к хранилищу, а часто читаемые частями файлы всё же попадают в кэш.
+ * В кэш объект помещает только первый из одновременных промахов по ключу. Остальные ждут окончания его
+ * загрузки до {@code app.files.disk-cache.fill-wait-ms} и отдаются из файла кэша, а если загрузка не успела
+ * завершиться или не удалась — читают объект из хранилища сами, не копируя его в кэш.
+ * <p>
+ * Суммарный размер кэша ограничен {@code app.files.disk-cache.max-size-bytes}: при переполнении вытесняются давно не использованные файлы,
+ * пока не освободится десятая часть лимита. Объекты больше {@code app.files.disk-cache.max-file-size-bytes}
+ * не кэшируются. Поиск в индексе не берёт блокировок.
+ * <p>
+ * Индекс кэша хранится в памяти, поэтому при старте приложения каталог кэша очищается.
+ */
+@Component
+@Slf4j
+public class DiskFileCache {
+
+    private static final String FILE_SUFFIX = ".bin";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int FILL_QUEUE_CAPACITY = 100;
+    /** Сколько ключей помнит счётчик промахов диапазонами, прежде чем он сбрасывается */
+    private static final int RANGE_MISS_KEYS = 10_000;
+
+    private volatile boolean enabled;
+    private final Path directory;
+    private final long maxSizeBytes;
+    private final long maxFileSizeBytes;
+    private final long fillWaitMs;
+    private final int rangeFillMinMisses;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    /** Загрузки объектов в кэш по ключам; завершаются записью кэша или null, если объект не закэширован */
+    private final Map<String, CompletableFuture<Entry>> fills = new ConcurrentHashMap<>();
+    /** Число промахов диапазонами по ключам объектов, ещё не загруженных в кэш */
+    private final Map<String, AtomicInteger> rangeMisses = new ConcurrentHashMap<>();
+    private final Object evictionLock = new Object();
+    private final AtomicLong generation = new AtomicLong();
+    private final AtomicLong fileCounter = new AtomicLong();
+    private final AtomicLong sizeBytes = new AtomicLong();
+    private final ExecutorService fillExecutor;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder sharedFills = new LongAdder();
+    private final LongAdder failedFills = new LongAdder();
+    private final LongAdder bytesServed = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder evictedBytes = new LongAdder();
+
+    public DiskFileCache(@Value("${app.files.disk-cache.enabled:true}") boolean enabled,
+                         @Value("${app.files.disk-cache.directory:${java.io.tmpdir}/library-file-cache}") String directory,
+                         @Value("${app.files.disk-cache.max-size-bytes:1073741824}") long maxSizeBytes,
+                         @Value("${app.files.disk-cache.max-file-size-bytes:104857600}") long maxFileSizeBytes,
+                         @Value("${app.files.disk-cache.fill-threads:2}") int fillThreads,
+                         @Value("${app.files.disk-cache.fill-wait-ms:3000}") long fillWaitMs,
+                         @Value("${app.files.disk-cache.range-fill-min-misses:3}") int rangeFillMinMisses) {
+        this.enabled = enabled;
+        this.directory = Paths.get(directory).toAbsolutePath();
+        this.maxSizeBytes = maxSizeBytes;
+        this.maxFileSizeBytes = Math.min(maxFileSizeBytes, maxSizeBytes);
+        this.fillWaitMs = Math.max(0, fillWaitMs);
+        this.rangeFillMinMisses = rangeFillMinMisses;
+        int threads = Math.max(1, fillThreads);
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.fillExecutor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(FILL_QUEUE_CAPACITY), runnable -> {
+                    Thread thread = new Thread(runnable, "disk-cache-fill-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        fillExecutor.shutdownNow();
+    }
+
+    /**
+     * Создаёт каталог кэша и удаляет файлы, оставшиеся от предыдущего запуска
+     */
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            log.info("Дисковый кэш файлов отключён");
+            return;
+        }
+        try {
+            Files.createDirectories(directory);
+            int removed = 0;
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*{" + FILE_SUFFIX + "," + TEMP_SUFFIX + "}")) {
+                for (Path file : files) {
+                    Files.deleteIfExists(file);
+                    removed++;
+                }
+            }
+            log.info("Дисковый кэш файлов: каталог {}, размер до {} байт, файлы до {} байт (удалено старых файлов: {})",
+                    directory, maxSizeBytes, maxFileSizeBytes, removed);
+        } catch (IOException e) {
+            log.error("Не удалось подготовить каталог дискового кэша {}, кэш отключён: {}", directory, e.getMessage(), e);
+            enabled = false;
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Возвращает файл или диапазон байтов из кэша. При промахе запрос передаётся в {@code fetcher},
+     * а объект помещается в кэш по мере чтения или в фоне. Если объект уже загружается в кэш другим
+     * запросом, метод ждёт окончания загрузки не дольше {@code app.files.disk-cache.fill-wait-ms}.
+     *
+     * @param key ключ объекта
+     * @param range диапазон байтов или null, чтобы получить файл целиком
+     * @param fetcher загрузка объекта (или диапазона) из хранилища в обход кэша
+     * @return файл, если он найден
+     * @throws RangeNotSatisfiableException если диапазон лежит за пределами файла
+     */
+    public Optional<StoredFile> getFile(String key, HttpRange range,
+                                        BiFunction<String, HttpRange, Optional<StoredFile>> fetcher) {
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            entry.lastAccessedAt = System.currentTimeMillis();
+            hits.increment();
+            try {
+                return Optional.of(open(entry, range));
+            } catch (RangeNotSatisfiableException e) {
+                throw e;
+            } catch (IOException e) {
+                // Файл мог быть вытеснен между поиском и открытием
+                log.debug("Не удалось открыть файл кэша {} для ключа {}: {}", entry.file(), key, e.getMessage());
+            }
+        } else {
+            misses.increment();
+        }
+
+        CompletableFuture<Entry> fill = new CompletableFuture<>();
+        CompletableFuture<Entry> inFlight = fills.putIfAbsent(key, fill);
+        if (inFlight != null) {
+            Optional<StoredFile> shared = awaitFill(key, range, inFlight);
+            return shared.isPresent() ? shared : fetcher.apply(key, range);
+        }
+        long fillGeneration = generation.get();
+        Optional<StoredFile> fetched;
+        try {
+            fetched = fetcher.apply(key, range);
+        } catch (RuntimeException e) {
+            finish(key, fill, null);
+            throw e;
+        }
+        if (fetched.isEmpty()) {
+            finish(key, fill, null);
+            return fetched;
+        }
+        return Optional.of(fill(fetched.get(), fill, fillGeneration, fetcher));
+    }
+
+    /**
+     * Удаляет объект из кэша. Загрузки, начатые до вызова, не попадут в кэш.
+     *
+     * @param key ключ объекта
+     */
+    public void evict(String key) {
+        if (!enabled) {
+            return;
+        }
+        generation.incrementAndGet();
+        Entry removed = entries.get(key);
+        if (removed != null && remove(removed)) {
+            log.debug("Файл {} удалён из дискового кэша", key);
+        }
+    }
+
+    /**
+     * Возвращает текущую статистику кэша
+     */
+    public Statistics getStatistics() {
+        return new Statistics(enabled, hits.sum(), misses.sum(), sharedFills.sum(), failedFills.sum(),
+                bytesServed.sum(), evictions.sum(), evictedBytes.sum(), entries.size(), sizeBytes.get(), maxSizeBytes);
+    }
+
+    /**
+     * Ждёт загрузки объекта в кэш другим запросом и открывает загруженный файл
+     *
+     * @return файл из кэша или пустой результат, если загрузка не завершилась вовремя или не удалась
+     */
+    private Optional<StoredFile> awaitFill(String key, HttpRange range, CompletableFuture<Entry> inFlight) {
+        Entry entry;
+        try {
+            entry = inFlight.get(fillWaitMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Optional.empty();
+        } catch (ExecutionException | TimeoutException e) {
+            log.debug("Файл {} не загрузился в дисковый кэш за {} мс, он будет прочитан из хранилища", key, fillWaitMs);
+            return Optional.empty();
+        }
+        if (entry == null) {
+            return Optional.empty();
+        }
+        try {
+            StoredFile storedFile = open(entry, range);
+            entry.lastAccessedAt = System.currentTimeMillis();
+            sharedFills.increment();
+            return Optional.of(storedFile);
+        } catch (IOException e) {
+            log.debug("Не удалось открыть файл кэша {} для ключа {}: {}", entry.file(), key, e.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Начинает помещать в кэш объект, полученный при промахе: копированием при чтении
+     * или (для часто запрашиваемых диапазонов) загрузкой в фоне. Объекты неизвестного
+     * или слишком большого размера не кэшируются.
+     *
+     * @param fill загрузка, зарезервированная за этим запросом; завершается в любом случае
+     * @return файл для ответа на запрос
+     */
+    private StoredFile fill(StoredFile source, CompletableFuture<Entry> fill, long fillGeneration,
+                            BiFunction<String, HttpRange, Optional<StoredFile>> fetcher) {
+        String key = source.getKey();
+        long size = source.isPartial() ? source.getTotalLength() : source.getContentLength();
+        if (size < 0 || size > maxFileSizeBytes) {
+            log.debug("Файл {} размером {} байт не помещается в дисковый кэш", key, size);
+            finish(key, fill, null);
+            return source;
+        }
+        if (source.isPartial()) {
+            if (isPopularRange(key)) {
+                fillInBackground(key, fill, fillGeneration, fetcher);
+            } else {
+                finish(key, fill, null);
+            }
+            return source;
+        }
+        if (source.hasPublisher() || source.getContent() != null) {
+            return fillWhileReading(source, fill, fillGeneration);
+        }
+        finish(key, fill, null);
+        return source;
+    }
+
+    /**
+     * Учитывает промах диапазоном и проверяет, набралось ли их достаточно для загрузки объекта в кэш целиком
+     */
+    private boolean isPopularRange(String key) {
+        if (rangeFillMinMisses <= 0) {
+            return false;
+        }
+        if (rangeMisses.size() >= RANGE_MISS_KEYS) {
+            rangeMisses.clear();
+        }
+        int count = rangeMisses.computeIfAbsent(key, k -> new AtomicInteger()).incrementAndGet();
+        if (count < rangeFillMinMisses) {
+            return false;
+        }
+        rangeMisses.remove(key);
+        return true;
+    }
+
+    /**
+     * Завершает загрузку объекта в кэш и будит ожидающие её запросы
+     *
+     * @param entry запись кэша или null, если объект не был закэширован
+     */
+    private void finish(String key, CompletableFuture<Entry> fill, Entry entry) {
+        fills.remove(key, fill);
+        fill.complete(entry);
+    }
+
+    /**
+     * Возвращает файл, содержимое которого (поток или асинхронно читаемые буферы)
+     * при чтении копируется во временный файл кэша
+     */
+    private StoredFile fillWhileReading(StoredFile source, CompletableFuture<Entry> fill, long fillGeneration) {
+        String key = source.getKey();
+
+        Path file = directory.resolve(fileCounter.incrementAndGet() + FILE_SUFFIX);
+        Path temp = directory.resolve(file.getFileName() + TEMP_SUFFIX);
+        FillCopy copy;
+        try {
+            copy = new FillCopy(FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE));
+        } catch (IOException e) {
+            finish(key, fill, null);
+            failedFills.increment();
+            log.warn("Не удалось создать файл дискового кэша {}: {}", temp, e.getMessage());
+            return source;
+        }
+        Publisher<ByteBuffer> publisher = source.takePublisher();
+        return StoredFile.builder()
+                .content(publisher == null ? new FillingInputStream(source.getContent(), copy) : null)
+                .publisher(publisher == null ? null : new FillingPublisher(publisher, copy))
+                .onClose(() -> {
+                    closeQuietly(source);
+                    completeFill(source, copy, temp, file, fill, fillGeneration);
+                })
+                .key(key)
+                .contentLength(source.getContentLength())
+                .contentType(source.getContentType())
+                .eTag(source.getETag())
+                .lastModified(source.getLastModified())
+                .rangeStart(source.getRangeStart())
+                .totalLength(source.getTotalLength())
+                .build();
+    }
+
+    /**
+     * Помещает в кэш файл, скопированный при чтении, если объект был прочитан полностью
+     */
+    private void completeFill(StoredFile source, FillCopy copy, Path temp, Path file,
+                              CompletableFuture<Entry> fill, long fillGeneration) {
+        String key = source.getKey();
+        Entry registered = null;
+        try {
+            copy.close();
+            IOException failure = copy.failure();
+            long copied = copy.copied();
+            if (failure != null || copied != source.getContentLength()) {
+                if (failure != null) {
+                    failedFills.increment();
+                    log.warn("Не удалось поместить файл {} в дисковый кэш: {}", key, failure.getMessage());
+                }
+                deleteQuietly(temp);
+                return;
+            }
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+            Entry entry = new Entry(key, file, copied, source.getContentType(),
+                    source.getETag(), source.getLastModified());
+            if (!register(entry, fillGeneration)) {
+                deleteQuietly(file);
+                return;
+            }
+            registered = entry;
+            log.debug("Файл {} помещён в дисковый кэш: {} ({} байт)", key, file, copied);
+        } catch (IOException | RuntimeException e) {
+            failedFills.increment();
+            log.warn("Не удалось поместить файл {} в дисковый кэш: {}", key, e.getMessage());
+            deleteQuietly(temp);
+            deleteQuietly(file);
+        } finally {
+            finish(key, fill, registered);
+        }
+    }
+
+    /**
+     * Загружает объект в кэш отдельным полным запросом к хранилищу в пуле загрузок
+     */
+    private void fillInBackground(String key, CompletableFuture<Entry> fill, long fillGeneration,
+                                  BiFunction<String, HttpRange, Optional<StoredFile>> fetcher) {
+        try {
+            fillExecutor.execute(() -> {
+                Entry entry = null;
+                try {
+                    entry = download(key, fillGeneration, fetcher);
+                } catch (IOException | RuntimeException e) {
+                    failedFills.increment();
+                    log.warn("Не удалось поместить файл {} в дисковый кэш: {}", key, e.getMessage());
+                } finally {
+                    finish(key, fill, entry);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            finish(key, fill, null);
+            log.debug("Очередь загрузок в дисковый кэш заполнена, файл {} не кэшируется", key);
+        }
+    }
+
+    /**
+     * @return запись кэша или null, если объект не был закэширован
+     */
+    private Entry download(String key, long fillGeneration,
+                           BiFunction<String, HttpRange, Optional<StoredFile>> fetcher) throws IOException {
+        Optional<StoredFile> source = fetcher.apply(key, null);
+        if (source.isEmpty()) {
+            return null;
+        }
+        Path file = directory.resolve(fileCounter.incrementAndGet() + FILE_SUFFIX);
+        Path temp = directory.resolve(file.getFileName() + TEMP_SUFFIX);
+        try (StoredFile storedFile = source.get()) {
+            long expected = storedFile.getContentLength();
+            if (expected < 0 || expected > maxFileSizeBytes) {
+                log.debug("Файл {} размером {} байт не помещается в дисковый кэш", key, expected);
+                return null;
+            }
+            long size;
+            try (InputStream in = storedFile.getContent()) {
+                size = Files.copy(in, temp, StandardCopyOption.REPLACE_EXISTING);
+            }
+            if (size != expected) {
+                throw new IOException("Получено " + size + " байт вместо " + expected);
+            }
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+            Entry entry = new Entry(key, file, size, storedFile.getContentType(),
+                    storedFile.getETag(), storedFile.getLastModified());
+            if (!register(entry, fillGeneration)) {
+                deleteQuietly(file);
+                return null;
+            }
+            log.debug("Файл {} загружен в дисковый кэш: {} ({} байт)", key, file, size);
+            return entry;
+        } catch (IOException | RuntimeException e) {
+            deleteQuietly(temp);
+            deleteQuietly(file);
+            throw e;
+        }
+    }
+
+    /**
+     * Добавляет запись в индекс и вытесняет давно не использованные файлы сверх лимита
+     *
+     * @return false, если во время загрузки объект был удалён из кэша
+     */
+    private boolean register(Entry entry, long fillGeneration) {
+        Entry previous = entries.put(entry.key(), entry);
+        sizeBytes.addAndGet(entry.size());
+        if (previous != null) {
+            sizeBytes.addAndGet(-previous.size());
+            deleteQuietly(previous.file());
+        }
+        if (generation.get() != fillGeneration) {
+            remove(entry);
+            return false;
+        }
+        if (sizeBytes.get() > maxSizeBytes) {
+            evict(entry);
+        }
+        return true;
+    }
+
+    /**
+     * Удаляет запись из индекса и её файл, если запись ещё не заменена другой
+     */
+    private boolean remove(Entry entry) {
+        if (!entries.remove(entry.key(), entry)) {
+            return false;
+        }
+        sizeBytes.addAndGet(-entry.size());
+        deleteQuietly(entry.file());
+        return true;
+    }
+
+    /**
+     * Вытесняет давно не использованные файлы, кроме только что добавленного
+     */
+    private void evict(Entry added) {
+        synchronized (evictionLock) {
+            if (sizeBytes.get() <= maxSizeBytes) {
+                return;
+            }
+            long target = maxSizeBytes - maxSizeBytes / 10;
+            // Время доступа фиксируется до сортировки: читатели продолжают его обновлять
+            List<Candidate> candidates = new ArrayList<>(entries.size());
+            for (Entry entry : entries.values()) {
+                if (entry != added) {
+                    candidates.add(new Candidate(entry, entry.lastAccessedAt));
+                }
+            }
+            candidates.sort(Comparator.comparingLong(Candidate::lastAccessedAt));
+            for (Candidate candidate : candidates) {
+                if (sizeBytes.get() <= target) {
+                    break;
+                }
+                if (remove(candidate.entry())) {
+                    evictions.increment();
+                    evictedBytes.add(candidate.entry().size());
+                }
+            }
+        }
+    }
+
+    private StoredFile open(Entry entry, HttpRange range) throws IOException {
+        long start = 0;
+        long length = entry.size();
+        if (range != null) {
+            try {
+                start = range.getRangeStart(entry.size());
+                length = range.getRangeEnd(entry.size()) - start + 1;
+            } catch (IllegalArgumentException e) {
+                length = 0;
+            }
+            if (length <= 0) {
+                throw new RangeNotSatisfiableException("Диапазон " + range + " лежит за пределами файла " + entry.key(),
+                        entry.size());
+            }
+        }
+        FileChannel channel = FileChannel.open(entry.file(), StandardOpenOption.READ);
+        bytesServed.add(length);
+        return StoredFile.builder()
+                .channel(channel)
+                .key(entry.key())
+                .contentLength(length)
+                .contentType(entry.contentType())
+                .eTag(entry.eTag())
+                .lastModified(entry.lastModified())
+                .rangeStart(start)
+                .totalLength(entry.size())
+                .build();
+    }
+
+    private static void closeQuietly(StoredFile storedFile) {
+        try {
+            storedFile.close();
+        } catch (IOException e) {
+            log.debug("Ошибка при закрытии файла {}: {}", storedFile.getKey(), e.getMessage());
+        }
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.warn("Не удалось удалить файл кэша {}: {}", file, e.getMessage());
+        }
+    }
+
+    /**
+     * Статистика дискового кэша
+     *
+     * @param sharedFills промахи, отданные из кэша после ожидания загрузки того же объекта другим запросом
+     * @param bytesServed байты, отданные из кэша (с учётом диапазонов)
+     */
+    public record Statistics(boolean enabled, long hits, long misses, long sharedFills, long failedFills,
+                             long bytesServed, long evictions, long evictedBytes,
+                             int files, long sizeBytes, long maxSizeBytes) {
+
+        public double getHitRatio() {
+            long total = hits + misses;
+            return total == 0 ? 0 : (double) hits / total;
+        }
+    }
+
+    private record Candidate(Entry entry, long lastAccessedAt) {
+    }
+
+    /**
+     * Копия содержимого во временный файл кэша. Ошибка записи не прерывает передачу клиенту:
+     * копирование просто прекращается, а файл не попадает в кэш.
+     */
+    private static final class FillCopy {
+
+        private final FileChannel channel;
+        private long copied;
+        private IOException failure;
+        private boolean closed;
+
+        FillCopy(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        synchronized void write(ByteBuffer buffer) {
+            if (failure != null || closed) {
+                return;
+            }
+            try {
+                while (buffer.hasRemaining()) {
+                    copied += channel.write(buffer);
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+
+        synchronized long copied() {
+            return copied;
+        }
+
+        synchronized IOException failure() {
+            return failure;
+        }
+
+        synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Поток содержимого из хранилища, копирующий прочитанные байты во временный файл кэша
+     */
+    private static final class FillingInputStream extends FilterInputStream {
+
+        private final FillCopy copy;
+
+        FillingInputStream(InputStream in, FillCopy copy) {
+            super(in);
+            this.copy = copy;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                copy.write(ByteBuffer.wrap(new byte[]{(byte) b}));
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                copy.write(ByteBuffer.wrap(buffer, offset, read));
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // Пропущенные байты не попадут в копию, поэтому они читаются
+            long skipped = 0;
+            byte[] buffer = new byte[(int) Math.min(n, 8192)];
+            while (skipped < n) {
+                int read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+                if (read < 0) {
+                    break;
+                }
+                skipped += read;
+            }
+            return skipped;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                copy.close();
+            }
+        }
+    }
+
+    /**
+     * Поток буферов из хранилища, копирующий каждый буфер во временный файл кэша до передачи получателю
+     */
+    private static final class FillingPublisher implements Publisher<ByteBuffer> {
+
+        private final Publisher<ByteBuffer> source;
+        private final FillCopy copy;
+
+        FillingPublisher(Publisher<ByteBuffer> source, FillCopy copy) {
+            this.source = source;
+            this.copy = copy;
+        }
+
+        @Override
+        public void subscribe(Subscriber<? super ByteBuffer> subscriber) {
+            source.subscribe(new Subscriber<ByteBuffer>() {
+
+                @Override
+                public void onSubscribe(Subscription subscription) {
+                    subscriber.onSubscribe(subscription);
+                }
+
+                @Override
+                public void onNext(ByteBuffer buffer) {
+                    // Получатель может сдвинуть позицию буфера, поэтому копируется его дубликат
+                    copy.write(buffer.duplicate());
+                    subscriber.onNext(buffer);
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    subscriber.onError(t);
+                }
+
+                @Override
+                public void onComplete() {
+                    subscriber.onComplete();
+                }
+            });
+        }
+    }
+
+    private static final class Entry {
+
+        private final String key;
+        private final Path file;
+        private final long size;
+        private final String contentType;
+        private final String eTag;
+        private final Instant lastModified;
+        private volatile long lastAccessedAt;
+
+        Entry(String key, Path file, long size, String contentType, String eTag, Instant lastModified) {
+            this.key = key;
+            this.file = file;
+            this.size = size;
+            this.contentType = contentType;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+            this.lastAccessedAt = System.currentTimeMillis();
+        }
+
+        String key() {
+            return key;
+        }
+
+        Path file() {
+            return file;
+        }
+
+        long size() {
+            return size;
+        }
+
+        String contentType() {
+            return contentType;
+        }
+
+        String eTag() {
+            return eTag;
+        }
+
+        Instant lastModified() {
+            return lastModified;
+        }
+    }
+}
@@ -0,0 +1,466 @@
+package ru.arseniy.library.service.impl;
+
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpRange;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+import ru.arseniy.library.exception.RangeNotSatisfiableException;
+import ru.arseniy.library.service.FileMetadata;
+import ru.arseniy.library.service.FileStorageService;
+import ru.arseniy.library.service.StoredFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.UUID;
+
+/**
+ * Реализация сервиса хранения файлов в локальном каталоге (или каталоге NFS, общем для нескольких узлов).
+ * Включается свойством {@code app.files.storage.type=local}.
+ * <p>
+ * Метаданные файла хранятся в файле {@code .meta} с именем, равным SHA-256 его ключа, в двух уровнях подкаталогов
+ * по первым байтам хэша ({@code ab/cd/abcd….meta}), поэтому ни один каталог не разрастается и ключ не может выйти
+ * за пределы корневого каталога. В {@code .meta} записаны ключ, тип содержимого, ETag и имя файла данных: каждая
+ * версия файла пишется под новым именем ({@code abcd….<uuid>.bin}) рядом с {@code .meta}.
+ * <p>
+ * Данные пишутся потоком через {@link FileChannel} во временный файл, который после записи атомарно
+ * переименовывается в новый файл данных; последним атомарно заменяется {@code .meta}, после чего прежний файл
+ * данных удаляется. Поэтому читатель, прочитавший {@code .meta}, получает данные и метаданные одной версии.
+ * Файлы отдаются из открытого {@link FileChannel} через {@code transferTo}: удаление прежней версии
+ * не прерывает уже начатую передачу.
+ */
+@Service
+@ConditionalOnProperty(name = "app.files.storage.type", havingValue = "local")
+@Slf4j
+public class LocalFileStorageService implements FileStorageService {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String DATA_SUFFIX = ".bin";
+    private static final String META_SUFFIX = ".meta";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String TEMP_DIRECTORY = "tmp";
+    private static final String META_KEY = "key";
+    private static final String META_CONTENT_TYPE = "contentType";
+    private static final String META_ETAG = "eTag";
+    private static final String META_DATA_FILE = "dataFile";
+    private static final int LOCK_STRIPES = 64;
+
+    /**
+     * Сколько раз перечитывать {@code .meta}, если файл данных удалили между чтением метаданных и его открытием
+     */
+    private static final int OPEN_ATTEMPTS = 3;
+
+    /**
+     * Временные файлы старше этого возраста остались от прерванных загрузок. Более свежие не удаляются:
+     * их может дописывать другой узел, использующий тот же каталог
+     */
+    private static final Duration STALE_TEMP_AGE = Duration.ofHours(24);
+
+    private final Path root;
+    private final Path tempDirectory;
+    private final String publicUrl;
+    private final boolean fsync;
+    /**
+     * Блокировки записи по ключам: прежний файл данных удаляет тот, кто заменил ссылающийся на него {@code .meta}
+     */
+    private final Object[] keyLocks = new Object[LOCK_STRIPES];
+
+    public LocalFileStorageService(@Value("${app.files.storage.local.directory:${user.home}/library-files}") String directory,
+                                   @Value("${app.files.storage.local.public-url:/api/files}") String publicUrl,
+                                   @Value("${app.files.storage.local.fsync:true}") boolean fsync) {
+        this.root = Paths.get(directory).toAbsolutePath().normalize();
+        this.tempDirectory = root.resolve(TEMP_DIRECTORY);
+        this.publicUrl = publicUrl.endsWith("/") ? publicUrl.substring(0, publicUrl.length() - 1) : publicUrl;
+        this.fsync = fsync;
+        for (int i = 0; i < keyLocks.length; i++) {
+            keyLocks[i] = new Object();
+        }
+    }
+
+    /**
+     * Создаёт корневой каталог хранилища и удаляет временные файлы прерванных загрузок
+     */
+    @PostConstruct
+    public void init() {
+        try {
+            Files.createDirectories(tempDirectory);
+            Instant staleBefore = Instant.now().minus(STALE_TEMP_AGE);
+            int removed = 0;
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(tempDirectory, "*" + TEMP_SUFFIX)) {
+                for (Path file : files) {
+                    if (Files.getLastModifiedTime(file).toInstant().isBefore(staleBefore)) {
+                        Files.deleteIfExists(file);
+                        removed++;
+                    }
+                }
+            }
+            log.info("Локальное хранилище файлов: каталог {}, fsync: {} (удалено временных файлов: {})",
+                    root, fsync, removed);
+        } catch (IOException e) {
+            throw new IllegalStateException("Не удалось подготовить каталог хранилища файлов " + root, e);
+        }
+    }
+
+    @Override
+    public String uploadFile(MultipartFile file, String key) throws IOException {
+        return uploadFile(file, key, null);
+    }
+
+    @Override
+    public String uploadFile(MultipartFile file, String key, String bookTitle) throws IOException {
+        return getFileUrl(storeFile(file, key, bookTitle).getKey());
+    }
+
+    @Override
+    public FileMetadata storeFile(MultipartFile file, String key, String bookTitle) throws IOException {
+        log.info("Начинаем загрузку файла: {}, размер: {}, тип: {}, книга: {}", key, file.getSize(), file.getContentType(), bookTitle);
+        try (InputStream inputStream = file.getInputStream()) {
+            return storeStream(inputStream, key, file.getContentType(), file.getSize(), bookTitle);
+        }
+    }
+
+    @Override
+    public String uploadFile(InputStream inputStream, String key, String contentType, long contentLength) throws IOException {
+        return uploadFile(inputStream, key, contentType, contentLength, null);
+    }
+
+    @Override
+    public String uploadFile(InputStream inputStream, String key, String contentType, long contentLength, String bookTitle) throws IOException {
+        return getFileUrl(storeStream(inputStream, key, contentType, contentLength, bookTitle).getKey());
+    }
+
+    /**
+     * Записывает данные во временный файл, вычисляя ETag (MD5, как у S3 для обычной загрузки),
+     * переименовывает его в новый файл данных и атомарно заменяет метаданные
+     *
+     * @return метаданные сохранённого файла
+     */
+    private FileMetadata storeStream(InputStream inputStream, String key, String contentType, long contentLength,
+                                     String bookTitle) throws IOException {
+        key = resolveKey(key, bookTitle);
+        Path meta = metaPath(key);
+        Path data = meta.resolveSibling(baseName(meta) + "." + UUID.randomUUID() + DATA_SUFFIX);
+        Path tempData = tempDirectory.resolve(UUID.randomUUID() + TEMP_SUFFIX);
+        Path tempMeta = tempDirectory.resolve(UUID.randomUUID() + TEMP_SUFFIX);
+        try {
+            MessageDigest digest = newMd5();
+            long size = 0;
+            // Поток не закрывается: им владеет вызывающий код
+            ReadableByteChannel source = Channels.newChannel(inputStream);
+            try (FileChannel target = FileChannel.open(tempData, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+                while (source.read(buffer) != -1) {
+                    buffer.flip();
+                    digest.update(buffer.array(), 0, buffer.limit());
+                    while (buffer.hasRemaining()) {
+                        size += target.write(buffer);
+                    }
+                    buffer.clear();
+                }
+                if (fsync) {
+                    target.force(true);
+                }
+            }
+            if (contentLength >= 0 && size != contentLength) {
+                throw new IOException("Получено " + size + " байт вместо " + contentLength);
+            }
+
+            String eTag = "\"" + HexFormat.of().formatHex(digest.digest()) + "\"";
+            writeMetadata(tempMeta, key, contentType, eTag, data.getFileName().toString());
+            Files.createDirectories(data.getParent());
+            Files.move(tempData, data, StandardCopyOption.ATOMIC_MOVE);
+            synchronized (keyLock(key)) {
+                Path previous = currentDataPath(meta);
+                try {
+                    Files.move(tempMeta, meta, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (IOException e) {
+                    Files.deleteIfExists(data);
+                    throw e;
+                }
+                // Читатели, уже открывшие прежнюю версию, дочитают её из открытого канала
+                Files.deleteIfExists(previous);
+            }
+            log.info("Файл сохранён в локальное хранилище: {} ({} байт) -> {}", key, size, data);
+            return FileMetadata.builder()
+                    .key(key)
+                    .contentType(contentType)
+                    .contentLength(size)
+                    .eTag(eTag)
+                    .build();
+        } catch (IOException e) {
+            log.error("Ошибка при сохранении файла {} в локальное хранилище: {}", key, e.getMessage(), e);
+            throw e;
+        } finally {
+            Files.deleteIfExists(tempData);
+            Files.deleteIfExists(tempMeta);
+        }
+    }
+
+    @Override
+    public Optional<StoredFile> getFile(String key) {
+        return getFile(key, null);
+    }
+
+    @Override
+    public Optional<StoredFile> getFile(String key, HttpRange range) {
+        Path meta = metaPath(key);
+        for (int attempt = 1; ; attempt++) {
+            Properties metadata;
+            Path data;
+            FileChannel channel;
+            try {
+                metadata = readMetadata(meta);
+                data = dataPath(meta, metadata);
+                channel = FileChannel.open(data, StandardOpenOption.READ);
+            } catch (NoSuchFileException e) {
+                if (attempt < OPEN_ATTEMPTS && Files.exists(meta)) {
+                    // Файл заменили между чтением метаданных и открытием данных
+                    continue;
+                }
+                log.warn("Файл не найден в локальном хранилище: {}", key);
+                return Optional.empty();
+            } catch (IOException e) {
+                log.error("Ошибка при открытии файла {} из локального хранилища: {}", key, e.getMessage(), e);
+                return Optional.empty();
+            }
+            return open(key, range, metadata, data, channel);
+        }
+    }
+
+    private Optional<StoredFile> open(String key, HttpRange range, Properties metadata, Path data,
+                                      FileChannel channel) {
+        try {
+            long size = channel.size();
+            long start = 0;
+            long length = size;
+            if (range != null) {
+                try {
+                    start = range.getRangeStart(size);
+                    length = range.getRangeEnd(size) - start + 1;
+                } catch (IllegalArgumentException e) {
+                    length = 0;
+                }
+                if (length <= 0) {
+                    channel.close();
+                    throw new RangeNotSatisfiableException("Диапазон " + range + " лежит за пределами файла " + key, size);
+                }
+            }
+            Instant lastModified;
+            try {
+                lastModified = Files.getLastModifiedTime(data).toInstant();
+            } catch (NoSuchFileException e) {
+                // Версию уже заменили, но канал открыт и данные доступны
+                lastModified = null;
+            }
+            return Optional.of(StoredFile.builder()
+                    .channel(channel)
+                    .key(key)
+                    .contentLength(length)
+                    .contentType(metadata.getProperty(META_CONTENT_TYPE))
+                    .eTag(metadata.getProperty(META_ETAG))
+                    .lastModified(lastModified)
+                    .rangeStart(start)
+                    .totalLength(size)
+                    .build());
+        } catch (IOException e) {
+            closeQuietly(channel);
+            log.error("Ошибка при чтении файла {} из локального хранилища: {}", key, e.getMessage(), e);
+            return Optional.empty();
+        }
+    }
+
+    @Override
+    public Optional<FileMetadata> getFileMetadata(String key) {
+        Path meta = metaPath(key);
+        try {
+            Properties metadata = readMetadata(meta);
+            long size = Files.size(dataPath(meta, metadata));
+            return Optional.of(FileMetadata.builder()
+                    .key(key)
+                    .contentType(metadata.getProperty(META_CONTENT_TYPE))
+                    .contentLength(size)
+                    .eTag(metadata.getProperty(META_ETAG))
+                    .build());
+        } catch (NoSuchFileException e) {
+            return Optional.empty();
+        } catch (IOException e) {
+            log.error("Ошибка при получении метаданных файла {} из локального хранилища: {}", key, e.getMessage(), e);
+            return Optional.empty();
+        }
+    }
+
+    @Override
+    public Optional<String> getPresignedUrl(String key, String contentType, String contentDisposition) {
+        // Локальные файлы доступны только через приложение
+        return Optional.empty();
+    }
+
+    @Override
+    public boolean deleteFile(String key) {
+        try {
+            delete(key);
+            log.info("Файл успешно удален из локального хранилища: {}", key);
+            return true;
+        } catch (IOException e) {
+            log.error("Ошибка при удалении файла {} из локального хранилища: {}", key, e.getMessage(), e);
+            return false;
+        }
+    }
+
+    @Override
+    public Map<String, String> deleteFiles(Collection<String> keys) {
+        Map<String, String> failures = new HashMap<>();
+        for (String key : keys) {
+            try {
+                delete(key);
+            } catch (IOException e) {
+                failures.put(key, e.getClass().getSimpleName() + ": " + e.getMessage());
+            }
+        }
+        log.info("Удалено файлов из локального хранилища: {}, с ошибкой: {}", keys.size() - failures.size(), failures.size());
+        return failures;
+    }
+
+    @Override
+    public String getFileUrl(String key) {
+        return publicUrl + "/" + key;
+    }
+
+    private void delete(String key) throws IOException {
+        Path meta = metaPath(key);
+        synchronized (keyLock(key)) {
+            Path data = currentDataPath(meta);
+            // Сначала удаляются метаданные, чтобы читатели не нашли ссылку на удалённые данные
+            Files.deleteIfExists(meta);
+            Files.deleteIfExists(data);
+        }
+    }
+
+    private Object keyLock(String key) {
+        return keyLocks[Math.floorMod(key.hashCode(), keyLocks.length)];
+    }
+
+    /**
+     * Если указано название книги, помещает файл в папку книги — так же, как {@link S3FileStorageService},
+     * чтобы ключи не зависели от выбранного хранилища
+     */
+    private static String resolveKey(String key, String bookTitle) {
+        if (bookTitle == null || bookTitle.isEmpty()) {
+            return key;
+        }
+        String safeBookTitle = bookTitle.replaceAll("[^a-zA-Z0-9_\\-\\.]", "_");
+        String fileName = key.contains("/") ? key.substring(key.lastIndexOf("/") + 1) : key;
+        return "books/" + safeBookTitle + "/" + fileName;
+    }
+
+    /**
+     * Путь к файлу метаданных: SHA-256 ключа, разложенный по подкаталогам первых двух байтов хэша
+     */
+    private Path metaPath(String key) {
+        String hash = HexFormat.of().formatHex(sha256(key.getBytes(StandardCharsets.UTF_8)));
+        return root.resolve(hash.substring(0, 2)).resolve(hash.substring(2, 4)).resolve(hash + META_SUFFIX);
+    }
+
+    private static String baseName(Path meta) {
+        String fileName = meta.getFileName().toString();
+        return fileName.substring(0, fileName.length() - META_SUFFIX.length());
+    }
+
+    /**
+     * Путь к файлу данных версии, описанной метаданными. Файлы, сохранённые до появления версий
+     * (или положенные в каталог вручную), лежат под именем {@code abcd….bin} без ссылки в метаданных.
+     */
+    private static Path dataPath(Path meta, Properties metadata) {
+        String dataFile = metadata.getProperty(META_DATA_FILE);
+        if (dataFile == null) {
+            return meta.resolveSibling(baseName(meta) + DATA_SUFFIX);
+        }
+        return meta.resolveSibling(Paths.get(dataFile).getFileName());
+    }
+
+    private static Path currentDataPath(Path meta) throws IOException {
+        return dataPath(meta, readMetadata(meta));
+    }
+
+    private void writeMetadata(Path file, String key, String contentType, String eTag, String dataFile)
+            throws IOException {
+        Properties metadata = new Properties();
+        metadata.setProperty(META_KEY, key);
+        if (contentType != null) {
+            metadata.setProperty(META_CONTENT_TYPE, contentType);
+        }
+        metadata.setProperty(META_ETAG, eTag);
+        metadata.setProperty(META_DATA_FILE, dataFile);
+        try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE_NEW)) {
+            metadata.store(writer, null);
+        }
+        if (fsync) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+        }
+    }
+
+    /**
+     * Читает метаданные файла; если их нет (файл положили в каталог вручную), возвращает пустой набор
+     */
+    private static Properties readMetadata(Path meta) throws IOException {
+        Properties metadata = new Properties();
+        try (Reader reader = Files.newBufferedReader(meta, StandardCharsets.UTF_8)) {
+            metadata.load(reader);
+        } catch (NoSuchFileException e) {
+            log.debug("Нет метаданных {}", meta);
+        }
+        return metadata;
+    }
+
+    private static byte[] sha256(byte[] bytes) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(bytes);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Алгоритм SHA-256 недоступен", e);
+        }
+    }
+
+    private static MessageDigest newMd5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Алгоритм MD5 недоступен", e);
+        }
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.debug("Ошибка при закрытии файла: {}", e.getMessage());
+        }
+    }
+}
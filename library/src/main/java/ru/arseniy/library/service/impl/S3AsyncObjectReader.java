@@ -0,0 +1,86 @@
+package ru.arseniy.library.service.impl;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.core.async.ResponsePublisher;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+
+import java.util.Optional;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Чтение объектов из S3 асинхронным клиентом.
+ * <p>
+ * Содержимое объекта приходит в виде потока буферов ({@link ResponsePublisher}), который можно
+ * передать клиенту без блокировки потоков. Количество одновременных асинхронных чтений ограничено
+ * {@code app.files.async.max-concurrent-downloads}; при исчерпании лимита объект читается
+ * обычным синхронным клиентом.
+ */
+@Component
+@ConditionalOnProperty(name = "app.files.storage.type", havingValue = "s3", matchIfMissing = true)
+@Slf4j
+public class S3AsyncObjectReader {
+
+    private final S3AsyncClient s3AsyncClient;
+    private final boolean enabled;
+    private final Semaphore permits;
+
+    public S3AsyncObjectReader(S3AsyncClient s3AsyncClient,
+                               @Value("${app.files.async.enabled:true}") boolean enabled,
+                               @Value("${app.files.async.max-concurrent-downloads:200}") int maxConcurrentDownloads) {
+        this.s3AsyncClient = s3AsyncClient;
+        this.enabled = enabled;
+        this.permits = new Semaphore(maxConcurrentDownloads);
+    }
+
+    /**
+     * Начинает асинхронное чтение объекта и дожидается заголовков ответа S3
+     *
+     * @param request запрос на чтение объекта
+     * @return объект или пустое значение, если асинхронное чтение выключено или лимит исчерпан
+     * @throws software.amazon.awssdk.services.s3.model.S3Exception если S3 вернул ошибку
+     */
+    public Optional<AsyncObject> getObject(GetObjectRequest request) {
+        if (!enabled) {
+            return Optional.empty();
+        }
+        if (!permits.tryAcquire()) {
+            log.debug("Лимит асинхронных скачиваний исчерпан, объект {} читается синхронно", request.key());
+            return Optional.empty();
+        }
+        AtomicBoolean released = new AtomicBoolean();
+        Runnable release = () -> {
+            if (released.compareAndSet(false, true)) {
+                permits.release();
+            }
+        };
+        try {
+            ResponsePublisher<GetObjectResponse> publisher =
+                    s3AsyncClient.getObject(request, AsyncResponseTransformer.<GetObjectResponse>toPublisher()).join();
+            return Optional.of(new AsyncObject(publisher, release));
+        } catch (CompletionException e) {
+            release.run();
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        } catch (RuntimeException e) {
+            release.run();
+            throw e;
+        }
+    }
+
+    /**
+     * Объект, читаемый асинхронно: заголовки ответа S3, поток содержимого и освобождение разрешения,
+     * которое нужно вызвать после окончания передачи
+     */
+    public record AsyncObject(ResponsePublisher<GetObjectResponse> publisher, Runnable release) {
+    }
+}
@@ -2,18 +2,28 @@ package ru.arseniy.library.service.impl;
 
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.io.IOUtils;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
+import ru.arseniy.library.exception.RangeNotSatisfiableException;
+import ru.arseniy.library.service.FileMetadata;
 import ru.arseniy.library.service.FileStorageService;
-import software.amazon.awssdk.core.sync.RequestBody;
+import ru.arseniy.library.service.StoredFile;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.exception.SdkException;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.model.*;
 import org.springframework.context.annotation.Primary;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 /**
@@ -21,11 +31,21 @@ import java.util.Optional;
  */
 @Service
 @Primary
+@ConditionalOnProperty(name = "app.files.storage.type", havingValue = "s3", matchIfMissing = true)
 @RequiredArgsConstructor
 @Slf4j
 public class S3FileStorageService implements FileStorageService {
 
+    /**
+     * Максимальное количество ключей в одном запросе DeleteObjects
+     */
+    private static final int MAX_KEYS_PER_DELETE = 1000;
+
     private final S3Client s3Client;
+    private final S3StreamingUploader uploader;
+    private final S3PresignedUrlCache presignedUrlCache;
+    private final DiskFileCache diskFileCache;
+    private final S3AsyncObjectReader asyncObjectReader;
 
     @Value("${aws.s3.bucket-name}")
     private String bucketName;
@@ -57,8 +77,28 @@ public class S3FileStorageService implements FileStorageService {
         return uploadFile(inputStream, key, contentType, contentLength, null);
     }
     
+    @Override
+    public FileMetadata storeFile(MultipartFile file, String key, String bookTitle) throws IOException {
+        log.info("Начинаем загрузку файла: {}, размер: {}, тип: {}, книга: {}", key, file.getSize(), file.getContentType(), bookTitle);
+        try (InputStream inputStream = file.getInputStream()) {
+            return storeStream(inputStream, key, file.getContentType(), file.getSize(), bookTitle);
+        }
+    }
+
     @Override
     public String uploadFile(InputStream inputStream, String key, String contentType, long contentLength, String bookTitle) throws IOException {
+        FileMetadata metadata = storeStream(inputStream, key, contentType, contentLength, bookTitle);
+        String fileUrl = getFileUrl(metadata.getKey());
+        log.info("Сгенерирован URL для файла: {}", fileUrl);
+        return fileUrl;
+    }
+
+    /**
+     * Загружает данные в S3
+     *
+     * @return метаданные сохранённого объекта
+     */
+    private FileMetadata storeStream(InputStream inputStream, String key, String contentType, long contentLength, String bookTitle) throws IOException {
         try {
             log.info("Подготовка к загрузке файла в S3: ключ={}, тип={}, размер={}, книга={}", key, contentType, contentLength, bookTitle);
             
@@ -86,28 +126,20 @@ public class S3FileStorageService implements FileStorageService {
                 log.info("Сформирован новый ключ с учетом названия книги: {}", key);
             }
 
-            // Копируем данные из входного потока
-            byte[] bytes;
-            try {
-                bytes = IOUtils.toByteArray(inputStream);
-                log.info("Данные скопированы из потока, размер: {} байт", bytes.length);
-            } catch (IOException e) {
-                log.error("Ошибка при чтении данных из потока: {}", e.getMessage(), e);
-                throw new IOException("Ошибка при чтении данных из потока: " + e.getMessage(), e);
-            }
-
-            // Загружаем файл в S3
-            PutObjectRequest putObjectRequest = PutObjectRequest.builder()
-                    .bucket(bucketName)
-                    .key(key)
-                    .contentType(contentType)
-                    .build();
-
+            // Передаём данные в S3 потоком, не копируя файл целиком в память
             log.info("Отправляем запрос на загрузку файла в бакет: {}, ключ: {}, endpoint: {}", 
                     bucketName, key, endpoint != null ? endpoint : "default");
             try {
-                s3Client.putObject(putObjectRequest, RequestBody.fromBytes(bytes));
+                S3StreamingUploader.UploadResult result = uploader.upload(inputStream, bucketName, key, contentType, contentLength);
                 log.info("Файл успешно загружен в S3: {}", key);
+                // Объект с тем же ключом мог быть перезаписан
+                diskFileCache.evict(key);
+                return FileMetadata.builder()
+                        .key(key)
+                        .contentType(contentType)
+                        .contentLength(result.bytes())
+                        .eTag(result.eTag())
+                        .build();
             } catch (S3Exception e) {
                 log.error("Ошибка S3 при загрузке файла: code={}, statusCode={}, requestId={}, message={}", 
                         e.awsErrorDetails().errorCode(), 
@@ -119,10 +151,6 @@ public class S3FileStorageService implements FileStorageService {
                         ", statusCode=" + e.awsErrorDetails().sdkHttpResponse().statusCode() + 
                         ", requestId=" + e.requestId(), e);
             }
-
-            String fileUrl = getFileUrl(key);
-            log.info("Сгенерирован URL для файла: {}", fileUrl);
-            return fileUrl;
         } catch (S3Exception e) {
             log.error("Ошибка S3 при загрузке файла: code={}, statusCode={}, requestId={}, message={}", 
                     e.awsErrorDetails().errorCode(), 
@@ -140,22 +168,78 @@ public class S3FileStorageService implements FileStorageService {
     }
 
     @Override
-    public Optional<InputStream> getFile(String key) {
-        log.info("Запрос на получение файла по ключу: {}", key);
+    public Optional<StoredFile> getFile(String key) {
+        return getFile(key, null);
+    }
+
+    @Override
+    public Optional<StoredFile> getFile(String key, HttpRange range) {
+        if (diskFileCache.isEnabled()) {
+            return diskFileCache.getFile(key, range, this::fetchObject);
+        }
+        return fetchObject(key, range);
+    }
+
+    /**
+     * Получает объект или диапазон байтов объекта из S3 в обход дискового кэша.
+     * Пока не исчерпан лимит асинхронных скачиваний, объект читается асинхронным клиентом.
+     */
+    private Optional<StoredFile> fetchObject(String key, HttpRange range) {
+        log.info("Запрос на получение файла по ключу: {}, диапазон: {}", key, range);
         try {
-            GetObjectRequest getObjectRequest = GetObjectRequest.builder()
+            GetObjectRequest.Builder getObjectRequest = GetObjectRequest.builder()
                     .bucket(bucketName)
-                    .key(key)
-                    .build();
+                    .key(key);
+            if (range != null) {
+                // S3 сам вычисляет границы диапазона, в том числе диапазона от конца файла
+                getObjectRequest.range(HttpRange.toString(List.of(range)));
+            }
 
             log.info("Отправка запроса в S3 для получения файла: bucket={}, key={}", bucketName, key);
-            InputStream fileStream = s3Client.getObject(getObjectRequest);
-            log.info("Файл успешно получен из S3: {}", key);
-            return Optional.of(fileStream);
+            StoredFile.StoredFileBuilder storedFile = StoredFile.builder();
+            GetObjectResponse metadata;
+            Optional<S3AsyncObjectReader.AsyncObject> asyncObject = asyncObjectReader.getObject(getObjectRequest.build());
+            if (asyncObject.isPresent()) {
+                metadata = asyncObject.get().publisher().response();
+                storedFile.publisher(asyncObject.get().publisher())
+                        .onClose(asyncObject.get().release());
+            } else {
+                ResponseInputStream<GetObjectResponse> fileStream = s3Client.getObject(getObjectRequest.build());
+                metadata = fileStream.response();
+                storedFile.content(fileStream);
+            }
+            log.info("Файл успешно получен из S3: {}, размер: {}, диапазон: {}",
+                    key, metadata.contentLength(), metadata.contentRange());
+
+            long contentLength = metadata.contentLength() != null ? metadata.contentLength() : -1;
+            long rangeStart = 0;
+            long totalLength = contentLength;
+            if (metadata.contentRange() != null) {
+                // Формат заголовка: bytes <начало>-<конец>/<полный размер>
+                String contentRange = metadata.contentRange();
+                int dash = contentRange.indexOf('-');
+                int slash = contentRange.indexOf('/');
+                rangeStart = Long.parseLong(contentRange.substring(contentRange.indexOf(' ') + 1, dash).trim());
+                String total = contentRange.substring(slash + 1).trim();
+                totalLength = "*".equals(total) ? -1 : Long.parseLong(total);
+            }
+            return Optional.of(storedFile
+                    .key(key)
+                    .contentLength(contentLength)
+                    .contentType(metadata.contentType())
+                    .eTag(metadata.eTag())
+                    .lastModified(metadata.lastModified())
+                    .rangeStart(rangeStart)
+                    .totalLength(totalLength)
+                    .build());
         } catch (NoSuchKeyException e) {
             log.warn("Файл не найден в S3: bucket={}, key={}", bucketName, key);
             return Optional.empty();
         } catch (S3Exception e) {
+            if (range != null && e.statusCode() == HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value()) {
+                throw new RangeNotSatisfiableException("Диапазон " + range + " лежит за пределами файла " + key,
+                        getObjectLength(key));
+            }
             log.error("Ошибка при получении файла из S3: statusCode={}, errorCode={}, requestId={}, message={}",
                     e.awsErrorDetails().sdkHttpResponse().statusCode(),
                     e.awsErrorDetails().errorCode(),
@@ -168,8 +252,41 @@ public class S3FileStorageService implements FileStorageService {
         }
     }
 
+    @Override
+    public Optional<FileMetadata> getFileMetadata(String key) {
+        try {
+            HeadObjectResponse head = s3Client.headObject(HeadObjectRequest.builder()
+                    .bucket(bucketName)
+                    .key(key)
+                    .build());
+            return Optional.of(FileMetadata.builder()
+                    .key(key)
+                    .contentType(head.contentType())
+                    .contentLength(head.contentLength() != null ? head.contentLength() : -1)
+                    .eTag(head.eTag())
+                    .build());
+        } catch (NoSuchKeyException e) {
+            return Optional.empty();
+        } catch (S3Exception e) {
+            // На HEAD-запрос S3 отвечает 404 без тела, поэтому NoSuchKeyException приходит не всегда
+            if (e.statusCode() == HttpStatus.NOT_FOUND.value()) {
+                return Optional.empty();
+            }
+            log.error("Ошибка при получении метаданных файла из S3: key={}, statusCode={}, message={}",
+                    key, e.statusCode(), e.getMessage(), e);
+            return Optional.empty();
+        }
+    }
+
+    @Override
+    public Optional<String> getPresignedUrl(String key, String contentType, String contentDisposition) {
+        return Optional.of(presignedUrlCache.getUrl(bucketName, key, contentType, contentDisposition));
+    }
+
     @Override
     public boolean deleteFile(String key) {
+        presignedUrlCache.evict(key);
+        diskFileCache.evict(key);
         try {
             DeleteObjectRequest deleteObjectRequest = DeleteObjectRequest.builder()
                     .bucket(bucketName)
@@ -185,6 +302,38 @@ public class S3FileStorageService implements FileStorageService {
         }
     }
 
+    @Override
+    public Map<String, String> deleteFiles(Collection<String> keys) {
+        Map<String, String> failures = new HashMap<>();
+        List<String> distinctKeys = keys.stream().distinct().toList();
+        for (int from = 0; from < distinctKeys.size(); from += MAX_KEYS_PER_DELETE) {
+            List<String> batch = distinctKeys.subList(from, Math.min(from + MAX_KEYS_PER_DELETE, distinctKeys.size()));
+            batch.forEach(key -> {
+                presignedUrlCache.evict(key);
+                diskFileCache.evict(key);
+            });
+            try {
+                // В режиме quiet S3 возвращает только ключи, которые не удалось удалить
+                DeleteObjectsResponse response = s3Client.deleteObjects(DeleteObjectsRequest.builder()
+                        .bucket(bucketName)
+                        .delete(Delete.builder()
+                                .quiet(true)
+                                .objects(batch.stream()
+                                        .map(key -> ObjectIdentifier.builder().key(key).build())
+                                        .toList())
+                                .build())
+                        .build());
+                response.errors().forEach(error -> failures.put(error.key(), error.code() + ": " + error.message()));
+                log.info("Удалено файлов из S3: {}, с ошибкой: {}",
+                        batch.size() - response.errors().size(), response.errors().size());
+            } catch (SdkException e) {
+                log.error("Ошибка при пакетном удалении {} файлов из S3: {}", batch.size(), e.getMessage(), e);
+                batch.forEach(key -> failures.put(key, e.getMessage()));
+            }
+        }
+        return failures;
+    }
+
     @Override
     public String getFileUrl(String key) {
         // Если указан publicUrl, используем его для формирования URL (для Яндекс.Облака)
@@ -202,6 +351,25 @@ public class S3FileStorageService implements FileStorageService {
         return String.format("https://%s.s3.amazonaws.com/%s", bucketName, key);
     }
 
+    /**
+     * Возвращает размер объекта в байтах или -1, если его не удалось получить
+     *
+     * @param key ключ объекта
+     * @return размер объекта
+     */
+    private long getObjectLength(String key) {
+        try {
+            HeadObjectResponse head = s3Client.headObject(HeadObjectRequest.builder()
+                    .bucket(bucketName)
+                    .key(key)
+                    .build());
+            return head.contentLength() != null ? head.contentLength() : -1;
+        } catch (S3Exception e) {
+            log.warn("Не удалось получить размер файла {}: {}", key, e.getMessage());
+            return -1;
+        }
+    }
+
     /**
      * Создает бакет, если он не существует
      */
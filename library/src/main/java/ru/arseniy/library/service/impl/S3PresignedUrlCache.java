@@ -0,0 +1,104 @@
+package ru.arseniy.library.service.impl;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.presigner.S3Presigner;
+import software.amazon.awssdk.services.s3.presigner.model.GetObjectPresignRequest;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Кэш подписанных ссылок на скачивание объектов из S3.
+ * <p>
+ * Ссылка подписывается на {@code app.files.presign.ttl-ms} и переиспользуется для всех запросов
+ * к тому же объекту, пока до истечения её срока не останется {@code app.files.presign.refresh-margin-ms}:
+ * клиент, получивший ссылку, должен успеть начать скачивание. Размер кэша ограничен
+ * {@code app.files.presign.cache-size}.
+ */
+@Component
+@ConditionalOnProperty(name = "app.files.storage.type", havingValue = "s3", matchIfMissing = true)
+@Slf4j
+public class S3PresignedUrlCache {
+
+    private final S3Presigner presigner;
+    private final Duration ttl;
+    private final long refreshMarginMs;
+    private final int maxSize;
+
+    private final Map<CacheKey, Entry> entries = new ConcurrentHashMap<>();
+
+    public S3PresignedUrlCache(S3Presigner presigner,
+                               @Value("${app.files.presign.ttl-ms:900000}") long ttlMs,
+                               @Value("${app.files.presign.refresh-margin-ms:120000}") long refreshMarginMs,
+                               @Value("${app.files.presign.cache-size:10000}") int maxSize) {
+        this.presigner = presigner;
+        this.ttl = Duration.ofMillis(ttlMs);
+        this.refreshMarginMs = Math.min(refreshMarginMs, ttlMs / 2);
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Возвращает подписанную ссылку на объект, подписывая новую при необходимости
+     *
+     * @param bucket имя бакета
+     * @param key ключ объекта
+     * @param contentType тип содержимого, который S3 вернёт в ответе (может быть null)
+     * @param contentDisposition заголовок Content-Disposition, который S3 вернёт в ответе (может быть null)
+     * @return подписанная ссылка
+     */
+    public String getUrl(String bucket, String key, String contentType, String contentDisposition) {
+        CacheKey cacheKey = new CacheKey(key, contentType, contentDisposition);
+        long now = System.currentTimeMillis();
+        Entry entry = entries.get(cacheKey);
+        if (entry != null && entry.refreshAt() > now) {
+            return entry.url();
+        }
+
+        String url = presigner.presignGetObject(GetObjectPresignRequest.builder()
+                        .signatureDuration(ttl)
+                        .getObjectRequest(GetObjectRequest.builder()
+                                .bucket(bucket)
+                                .key(key)
+                                .responseContentType(contentType)
+                                .responseContentDisposition(contentDisposition)
+                                .build())
+                        .build())
+                .url()
+                .toString();
+        if (entries.size() >= maxSize) {
+            evictExpired(now);
+        }
+        entries.put(cacheKey, new Entry(url, now + ttl.toMillis() - refreshMarginMs));
+        log.debug("Подписана ссылка на объект {} на {} мс", key, ttl.toMillis());
+        return url;
+    }
+
+    /**
+     * Удаляет из кэша все ссылки на объект
+     *
+     * @param key ключ объекта
+     */
+    public void evict(String key) {
+        entries.keySet().removeIf(cacheKey -> Objects.equals(cacheKey.key(), key));
+    }
+
+    private void evictExpired(long now) {
+        entries.values().removeIf(entry -> entry.refreshAt() <= now);
+        // Если все ссылки ещё действительны, кэш просто очищается и заполняется заново
+        if (entries.size() >= maxSize) {
+            entries.clear();
+        }
+    }
+
+    private record CacheKey(String key, String contentType, String contentDisposition) {
+    }
+
+    private record Entry(String url, long refreshAt) {
+    }
+}
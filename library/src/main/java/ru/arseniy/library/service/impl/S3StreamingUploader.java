@@ -0,0 +1,340 @@
+package ru.arseniy.library.service.impl;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompletedMultipartUpload;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Потоковая загрузка объектов в S3 без чтения файла целиком в память.
+ * <p>
+ * Объекты известного размера меньше {@code app.files.upload.multipart-threshold} передаются одним
+ * запросом PUT прямо из входного потока. Объекты большего или неизвестного размера загружаются
+ * через multipart upload: поток читается частями по {@code app.files.upload.part-size} байт,
+ * части отправляются параллельно. Буферы частей общие для всех загрузок и переиспользуются,
+ * их количество ограничено {@code app.files.upload.max-buffered-parts}, поэтому расход памяти
+ * на загрузки не превышает произведения этих настроек. При ошибке незавершённая
+ * multipart-загрузка отменяется, чтобы в бакете не оставались неоплаченные части.
+ */
+@Component
+@ConditionalOnProperty(name = "app.files.storage.type", havingValue = "s3", matchIfMissing = true)
+@Slf4j
+public class S3StreamingUploader {
+
+    /**
+     * Минимальный размер части multipart upload, допустимый в S3 (кроме последней части)
+     */
+    private static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+
+    private final S3Client s3Client;
+    private final long multipartThreshold;
+    private final int partSize;
+
+    private final ExecutorService partExecutor;
+    private final Semaphore bufferPermits;
+    private final Queue<byte[]> freeBuffers = new ConcurrentLinkedQueue<>();
+
+    private final LongAdder uploadCount = new LongAdder();
+    private final LongAdder multipartUploadCount = new LongAdder();
+    private final LongAdder failedUploadCount = new LongAdder();
+    private final LongAdder uploadedBytes = new LongAdder();
+
+    public S3StreamingUploader(S3Client s3Client,
+                               @Value("${app.files.upload.multipart-threshold:16777216}") long multipartThreshold,
+                               @Value("${app.files.upload.part-size:8388608}") int partSize,
+                               @Value("${app.files.upload.max-buffered-parts:8}") int maxBufferedParts) {
+        this.s3Client = s3Client;
+        this.partSize = Math.max(partSize, MIN_PART_SIZE);
+        this.multipartThreshold = Math.max(multipartThreshold, this.partSize);
+        this.bufferPermits = new Semaphore(maxBufferedParts, true);
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.partExecutor = Executors.newFixedThreadPool(maxBufferedParts, runnable -> {
+            Thread thread = new Thread(runnable, "s3-upload-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Загружает содержимое потока в S3
+     *
+     * @param inputStream поток данных (не закрывается)
+     * @param bucket имя бакета
+     * @param key ключ объекта
+     * @param contentType тип содержимого
+     * @param contentLength размер содержимого в байтах или -1, если он неизвестен
+     * @return размер и ETag загруженного объекта
+     * @throws IOException если произошла ошибка чтения потока или загрузки
+     */
+    public UploadResult upload(InputStream inputStream, String bucket, String key, String contentType, long contentLength)
+            throws IOException {
+        long startedAt = System.nanoTime();
+        try {
+            UploadStats stats;
+            if (contentLength >= 0 && contentLength < multipartThreshold) {
+                String eTag = putObject(bucket, key, contentType, RequestBody.fromInputStream(inputStream, contentLength));
+                stats = new UploadStats(contentLength, 1, eTag);
+            } else {
+                stats = uploadInParts(inputStream, bucket, key, contentType);
+            }
+            uploadCount.increment();
+            uploadedBytes.add(stats.bytes());
+            logThroughput(key, stats, System.nanoTime() - startedAt);
+            return new UploadResult(stats.bytes(), stats.eTag());
+        } catch (IOException | RuntimeException e) {
+            failedUploadCount.increment();
+            throw e;
+        }
+    }
+
+    /**
+     * Загружает поток частями
+     *
+     * @return количество загруженных байтов и количество частей
+     */
+    private UploadStats uploadInParts(InputStream inputStream, String bucket, String key, String contentType)
+            throws IOException {
+        byte[] firstBuffer = acquireBuffer();
+        int firstLength;
+        try {
+            firstLength = inputStream.readNBytes(firstBuffer, 0, partSize);
+        } catch (IOException | RuntimeException e) {
+            releaseBuffer(firstBuffer);
+            throw e;
+        }
+        // Данные уместились в одну часть: multipart upload не нужен
+        if (firstLength < partSize) {
+            try {
+                String eTag = putObject(bucket, key, contentType, partBody(firstBuffer, firstLength));
+                return new UploadStats(firstLength, 1, eTag);
+            } finally {
+                releaseBuffer(firstBuffer);
+            }
+        }
+
+        String uploadId;
+        try {
+            uploadId = s3Client.createMultipartUpload(CreateMultipartUploadRequest.builder()
+                    .bucket(bucket)
+                    .key(key)
+                    .contentType(contentType)
+                    .build())
+                    .uploadId();
+        } catch (RuntimeException e) {
+            releaseBuffer(firstBuffer);
+            throw e;
+        }
+        multipartUploadCount.increment();
+        log.info("Начата multipart-загрузка {}: uploadId={}, размер части {} байт", key, uploadId, partSize);
+
+        AtomicBoolean failed = new AtomicBoolean();
+        List<Future<CompletedPart>> futures = new ArrayList<>();
+        long totalBytes = firstLength;
+        try {
+            futures.add(submitPart(bucket, key, uploadId, 1, firstBuffer, firstLength, failed));
+            int partNumber = 1;
+            // Если одна из частей не загрузилась, поток дальше не читается
+            while (!failed.get()) {
+                byte[] buffer = acquireBuffer();
+                int length;
+                try {
+                    length = inputStream.readNBytes(buffer, 0, partSize);
+                } catch (IOException | RuntimeException e) {
+                    releaseBuffer(buffer);
+                    throw e;
+                }
+                if (length == 0) {
+                    releaseBuffer(buffer);
+                    break;
+                }
+                totalBytes += length;
+                futures.add(submitPart(bucket, key, uploadId, ++partNumber, buffer, length, failed));
+                if (length < partSize) {
+                    break;
+                }
+            }
+
+            List<CompletedPart> completedParts = new ArrayList<>(futures.size());
+            for (Future<CompletedPart> future : futures) {
+                completedParts.add(awaitPart(future));
+            }
+            completedParts.sort(Comparator.comparing(CompletedPart::partNumber));
+            String eTag = s3Client.completeMultipartUpload(CompleteMultipartUploadRequest.builder()
+                    .bucket(bucket)
+                    .key(key)
+                    .uploadId(uploadId)
+                    .multipartUpload(CompletedMultipartUpload.builder().parts(completedParts).build())
+                    .build())
+                    .eTag();
+            return new UploadStats(totalBytes, completedParts.size(), eTag);
+        } catch (IOException | RuntimeException e) {
+            failed.set(true);
+            abort(bucket, key, uploadId, futures);
+            throw e;
+        }
+    }
+
+    private Future<CompletedPart> submitPart(String bucket, String key, String uploadId, int partNumber,
+                                             byte[] buffer, int length, AtomicBoolean failed) {
+        return partExecutor.submit(() -> {
+            try {
+                // После ошибки в другой части оставшиеся части не отправляются
+                if (failed.get()) {
+                    throw new IllegalStateException("Загрузка части " + partNumber + " отменена");
+                }
+                String eTag = s3Client.uploadPart(UploadPartRequest.builder()
+                                .bucket(bucket)
+                                .key(key)
+                                .uploadId(uploadId)
+                                .partNumber(partNumber)
+                                .contentLength((long) length)
+                                .build(),
+                        partBody(buffer, length))
+                        .eTag();
+                return CompletedPart.builder().partNumber(partNumber).eTag(eTag).build();
+            } catch (RuntimeException e) {
+                failed.set(true);
+                throw e;
+            } finally {
+                releaseBuffer(buffer);
+            }
+        });
+    }
+
+    private CompletedPart awaitPart(Future<CompletedPart> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Загрузка части прервана", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Ошибка при загрузке части: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * Дожидается уже отправленных частей и отменяет multipart-загрузку
+     */
+    private void abort(String bucket, String key, String uploadId, List<Future<CompletedPart>> futures) {
+        for (Future<CompletedPart> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException ignored) {
+                // Ошибка уже обработана
+            }
+        }
+        try {
+            s3Client.abortMultipartUpload(AbortMultipartUploadRequest.builder()
+                    .bucket(bucket)
+                    .key(key)
+                    .uploadId(uploadId)
+                    .build());
+            log.warn("Multipart-загрузка {} отменена: uploadId={}", key, uploadId);
+        } catch (RuntimeException e) {
+            log.error("Не удалось отменить multipart-загрузку {} (uploadId={}): {}", key, uploadId, e.getMessage(), e);
+        }
+    }
+
+    private String putObject(String bucket, String key, String contentType, RequestBody body) {
+        return s3Client.putObject(PutObjectRequest.builder()
+                .bucket(bucket)
+                .key(key)
+                .contentType(contentType)
+                .build(), body)
+                .eTag();
+    }
+
+    /**
+     * Тело запроса поверх буфера части без копирования; при повторной попытке поток создаётся заново
+     */
+    private static RequestBody partBody(byte[] buffer, int length) {
+        return RequestBody.fromContentProvider(() -> new ByteArrayInputStream(buffer, 0, length), length,
+                "application/octet-stream");
+    }
+
+    private byte[] acquireBuffer() throws IOException {
+        try {
+            bufferPermits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Ожидание буфера для загрузки прервано", e);
+        }
+        byte[] buffer = freeBuffers.poll();
+        return buffer != null ? buffer : new byte[partSize];
+    }
+
+    private void releaseBuffer(byte[] buffer) {
+        freeBuffers.offer(buffer);
+        bufferPermits.release();
+    }
+
+    private void logThroughput(String key, UploadStats stats, long elapsedNanos) {
+        double seconds = Math.max(elapsedNanos, 1) / 1_000_000_000.0;
+        log.info("Файл {} загружен в S3: {} байт, частей {}, {} мс, {} МБ/с (всего загрузок {}, из них multipart {}, ошибок {}, байтов {})",
+                key, stats.bytes(), stats.parts(), elapsedNanos / 1_000_000,
+                String.format("%.2f", stats.bytes() / seconds / (1024 * 1024)),
+                uploadCount.sum(), multipartUploadCount.sum(), failedUploadCount.sum(), uploadedBytes.sum());
+    }
+
+    /**
+     * Возвращает статистику загрузок с момента запуска приложения
+     */
+    public Statistics getStatistics() {
+        return new Statistics(uploadCount.sum(), multipartUploadCount.sum(), failedUploadCount.sum(), uploadedBytes.sum());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        partExecutor.shutdown();
+    }
+
+    /**
+     * Результат загрузки объекта
+     *
+     * @param bytes количество загруженных байтов
+     * @param eTag ETag созданного объекта
+     */
+    public record UploadResult(long bytes, String eTag) {
+    }
+
+    /**
+     * Статистика загрузок в S3
+     *
+     * @param multipartUploads загрузки через multipart upload (входят в {@code uploads})
+     */
+    public record Statistics(long uploads, long multipartUploads, long failedUploads, long uploadedBytes) {
+    }
+
+    private record UploadStats(long bytes, int parts, String eTag) {
+    }
+}
@@ -0,0 +1,236 @@
+package ru.arseniy.library.service.impl;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.arseniy.library.model.FailedStorageDeletion;
+import ru.arseniy.library.model.StorageDeletion;
+import ru.arseniy.library.repository.FailedStorageDeletionRepository;
+import ru.arseniy.library.repository.StorageDeletionRepository;
+import ru.arseniy.library.service.FileStorageService;
+import ru.arseniy.library.util.TransactionUtils;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Очередь удаления объектов из хранилища.
+ * <p>
+ * Ключи объектов сохраняются в таблицу {@code storage_deletions} в текущей транзакции, поэтому объекты
+ * удаляются, только если транзакция зафиксирована, а сама транзакция не ждёт сетевых запросов к хранилищу.
+ * После фиксации и раз в {@code app.files.deletion.poll-interval-ms} фоновый поток забирает до
+ * {@code app.files.deletion.batch-size} ключей и удаляет их одним пакетным запросом. Неудавшиеся удаления
+ * повторяются с экспоненциально растущей задержкой; после {@code app.files.deletion.max-attempts} попыток
+ * ключ переносится в {@code failed_storage_deletions}.
+ * <p>
+ * Ключ, на который снова сослались сведения о файлах (например, обложку заменили и вернули прежний формат),
+ * из очереди убирается: при повторной загрузке через {@link #cancel} и, если это не помогло, при захвате
+ * пакета, где ключи сверяются с {@code book_files} и {@code cover_thumbnails}.
+ */
+@Component
+@Slf4j
+public class StorageDeletionQueue {
+
+    private static final int MAX_ERROR_LENGTH = 1024;
+
+    private final StorageDeletionRepository storageDeletionRepository;
+    private final FailedStorageDeletionRepository failedStorageDeletionRepository;
+    private final FileStorageService fileStorageService;
+    private final TransactionTemplate transactionTemplate;
+
+    private final int batchSize;
+    private final int maxAttempts;
+    private final long retryBaseDelayMs;
+    private final long retryMaxDelayMs;
+    private final long claimTimeoutMs;
+
+    private final ScheduledExecutorService executor;
+    private final AtomicBoolean runScheduled = new AtomicBoolean();
+
+    public StorageDeletionQueue(StorageDeletionRepository storageDeletionRepository,
+                                FailedStorageDeletionRepository failedStorageDeletionRepository,
+                                FileStorageService fileStorageService,
+                                PlatformTransactionManager transactionManager,
+                                @Value("${app.files.deletion.batch-size:1000}") int batchSize,
+                                @Value("${app.files.deletion.poll-interval-ms:60000}") long pollIntervalMs,
+                                @Value("${app.files.deletion.max-attempts:8}") int maxAttempts,
+                                @Value("${app.files.deletion.retry-base-delay-ms:30000}") long retryBaseDelayMs,
+                                @Value("${app.files.deletion.retry-max-delay-ms:3600000}") long retryMaxDelayMs,
+                                @Value("${app.files.deletion.claim-timeout-ms:600000}") long claimTimeoutMs) {
+        this.storageDeletionRepository = storageDeletionRepository;
+        this.failedStorageDeletionRepository = failedStorageDeletionRepository;
+        this.fileStorageService = fileStorageService;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.batchSize = batchSize;
+        this.maxAttempts = maxAttempts;
+        this.retryBaseDelayMs = retryBaseDelayMs;
+        this.retryMaxDelayMs = retryMaxDelayMs;
+        this.claimTimeoutMs = claimTimeoutMs;
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "storage-deletions");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.scheduleWithFixedDelay(this::requestRun, pollIntervalMs, pollIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Ставит объекты в очередь на удаление в текущей транзакции; удаление начнётся после её фиксации
+     *
+     * @param keys ключи объектов (null пропускаются)
+     */
+    public void enqueue(Collection<String> keys) {
+        LocalDateTime now = LocalDateTime.now();
+        List<StorageDeletion> deletions = keys.stream()
+                .filter(Objects::nonNull)
+                .distinct()
+                .map(key -> new StorageDeletion(null, key, 0, now, null, now))
+                .toList();
+        if (deletions.isEmpty()) {
+            return;
+        }
+        storageDeletionRepository.saveAll(deletions);
+        log.debug("В очередь на удаление поставлено объектов: {}", deletions.size());
+        TransactionUtils.runAfterCommit(this::requestRun);
+    }
+
+    /**
+     * Отменяет ожидающее удаление объекта, который снова используется. Выполняется в текущей транзакции.
+     *
+     * @param key ключ объекта
+     */
+    public void cancel(String key) {
+        int cancelled = storageDeletionRepository.deleteByStorageKey(key);
+        if (cancelled > 0) {
+            log.debug("Отменено удаление снова используемого объекта {}", key);
+        }
+    }
+
+    /**
+     * Ставит в очередь обработку, если она ещё не запланирована
+     */
+    private void requestRun() {
+        if (runScheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(this::processQuietly);
+            } catch (RuntimeException e) {
+                runScheduled.set(false);
+                log.debug("Обработка очереди удаления не запланирована: {}", e.getMessage());
+            }
+        }
+    }
+
+    private void processQuietly() {
+        runScheduled.set(false);
+        try {
+            int processed;
+            do {
+                processed = processBatch();
+            } while (processed == batchSize && !Thread.currentThread().isInterrupted());
+        } catch (RuntimeException e) {
+            log.error("Ошибка при обработке очереди удаления файлов: {}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Захватывает пакет ключей, удаляет объекты и сохраняет результат.
+     * Захват и сохранение результата выполняются в отдельных коротких транзакциях, запрос
+     * к хранилищу — вне транзакции; если обработчик остановится между ними, ключи снова
+     * станут доступны через {@code claim-timeout-ms}.
+     *
+     * @return количество захваченных ключей (включая ключи, удаление которых отменено)
+     */
+    private int processBatch() {
+        int[] claimed = new int[1];
+        List<StorageDeletion> batch = transactionTemplate.execute(status -> {
+            LocalDateTime now = LocalDateTime.now();
+            List<StorageDeletion> due = storageDeletionRepository.lockDue(now, batchSize);
+            claimed[0] = due.size();
+            if (due.isEmpty()) {
+                return due;
+            }
+            // Объекты, на которые снова ссылаются сведения о файлах, не удаляются
+            Set<String> referenced = new HashSet<>(storageDeletionRepository.findReferencedKeys(
+                    due.stream().map(StorageDeletion::getStorageKey).toList()));
+            List<StorageDeletion> cancelled = new ArrayList<>();
+            List<StorageDeletion> pending = new ArrayList<>();
+            for (StorageDeletion deletion : due) {
+                (referenced.contains(deletion.getStorageKey()) ? cancelled : pending).add(deletion);
+            }
+            if (!cancelled.isEmpty()) {
+                storageDeletionRepository.deleteAllInBatch(cancelled);
+                log.info("Отменено удаление снова используемых объектов: {}", cancelled.size());
+            }
+            pending.forEach(deletion -> deletion.setNextAttemptAt(now.plus(Duration.ofMillis(claimTimeoutMs))));
+            return pending;
+        });
+        if (batch == null || batch.isEmpty()) {
+            return claimed[0];
+        }
+
+        Map<String, String> failures = fileStorageService.deleteFiles(
+                batch.stream().map(StorageDeletion::getStorageKey).toList());
+
+        transactionTemplate.executeWithoutResult(status -> saveResults(batch, failures));
+        long failed = batch.stream().filter(deletion -> failures.containsKey(deletion.getStorageKey())).count();
+        log.info("Обработана очередь удаления файлов: удалено {}, с ошибкой {}", batch.size() - failed, failed);
+        return claimed[0];
+    }
+
+    private void saveResults(List<StorageDeletion> batch, Map<String, String> failures) {
+        LocalDateTime now = LocalDateTime.now();
+        List<StorageDeletion> completed = new ArrayList<>();
+        List<StorageDeletion> retried = new ArrayList<>();
+        List<FailedStorageDeletion> deadLetters = new ArrayList<>();
+        for (StorageDeletion deletion : batch) {
+            String error = failures.get(deletion.getStorageKey());
+            if (error == null) {
+                completed.add(deletion);
+                continue;
+            }
+            int attempts = deletion.getAttempts() + 1;
+            String lastError = error.length() > MAX_ERROR_LENGTH ? error.substring(0, MAX_ERROR_LENGTH) : error;
+            if (attempts >= maxAttempts) {
+                log.error("Не удалось удалить файл {} за {} попыток: {}", deletion.getStorageKey(), attempts, lastError);
+                deadLetters.add(new FailedStorageDeletion(null, deletion.getStorageKey(), attempts, lastError,
+                        deletion.getCreatedAt(), now));
+                completed.add(deletion);
+            } else {
+                deletion.setAttempts(attempts);
+                deletion.setLastError(lastError);
+                deletion.setNextAttemptAt(now.plus(Duration.ofMillis(retryDelayMs(attempts))));
+                retried.add(deletion);
+            }
+        }
+        storageDeletionRepository.deleteAllInBatch(completed);
+        storageDeletionRepository.saveAll(retried);
+        failedStorageDeletionRepository.saveAll(deadLetters);
+    }
+
+    /**
+     * Задержка перед повторной попыткой: удваивается с каждой попыткой, но не превышает retry-max-delay-ms
+     */
+    private long retryDelayMs(int attempts) {
+        long delay = retryBaseDelayMs << Math.min(attempts - 1, 30);
+        return delay > 0 ? Math.min(delay, retryMaxDelayMs) : retryMaxDelayMs;
+    }
+}
@@ -0,0 +1,91 @@
+package ru.arseniy.library.util;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.annotation.Order;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Component;
+import ru.arseniy.library.repository.BookFileRepository;
+import ru.arseniy.library.service.BookFileService;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Заполнение ключей файлов для книг, загруженных до появления таблицы book_files.
+ * <p>
+ * Запускается после старта приложения в фоновом потоке и не задерживает запуск. Для каждой книги
+ * без сохранённых ключей файлы и обложки ищутся в хранилище по прежним правилам именования, после чего
+ * книга отмечается в {@code book_file_key_probes} и при следующих запусках не проверяется, даже если
+ * файлов у неё не нашлось. Книги, проверка которых завершилась ошибкой, проверяются при следующем запуске.
+ * Отключается настройкой {@code app.files.key-backfill.enabled=false}.
+ */
+@Component
+@Slf4j
+public class BookFileKeyBackfill {
+
+    private static final int BATCH_SIZE = 100;
+
+    private final BookFileRepository bookFileRepository;
+    private final BookFileService bookFileService;
+    private final boolean enabled;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "book-file-key-backfill");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public BookFileKeyBackfill(BookFileRepository bookFileRepository,
+                               BookFileService bookFileService,
+                               @Value("${app.files.key-backfill.enabled:true}") boolean enabled) {
+        this.bookFileRepository = bookFileRepository;
+        this.bookFileService = bookFileService;
+        this.enabled = enabled;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    @Order(0)
+    public void scheduleBackfill() {
+        if (enabled) {
+            executor.execute(this::backfill);
+        }
+    }
+
+    private void backfill() {
+        int processed = 0;
+        int found = 0;
+        int lastId = 0;
+        List<BookFileRepository.BookTitle> batch;
+        do {
+            batch = bookFileRepository.findUnprobedBooksWithoutFilesAfter(lastId, PageRequest.of(0, BATCH_SIZE));
+            for (BookFileRepository.BookTitle book : batch) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+                lastId = book.getId();
+                processed++;
+                try {
+                    if (bookFileService.backfillStorageKeys(book.getId(), book.getTitle())) {
+                        found++;
+                    }
+                    bookFileRepository.markKeysProbed(book.getId());
+                } catch (Exception e) {
+                    log.error("Ошибка при поиске файлов книги с ID {}: {}", book.getId(), e.getMessage(), e);
+                }
+            }
+        } while (batch.size() == BATCH_SIZE);
+
+        if (processed > 0) {
+            log.info("Заполнение ключей файлов завершено: проверено книг {}, найдены файлы у {}", processed, found);
+        }
+    }
+}
@@ -1,15 +1,11 @@
 package ru.arseniy.library.util;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MappingIterator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.http.HttpEntity;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.util.EntityUtils;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.mock.web.MockMultipartFile;
 import org.springframework.stereotype.Component;
@@ -19,27 +15,47 @@ import ru.arseniy.library.model.Category;
 import ru.arseniy.library.repository.BookRepository;
 import ru.arseniy.library.repository.CategoryRepository;
 import ru.arseniy.library.service.BookFileService;
+import ru.arseniy.library.service.CategoryBookCountCache;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import java.io.*;
-import java.net.URL;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.time.LocalDateTime;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
-import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.zip.GZIPInputStream;
 
 /**
  * Утилита для импорта книг из Project Gutenberg
  * Использование: запустите приложение с аргументом --import-books=N, где N - количество книг для импорта
- * Или --import-books=N:M где N - количество книг, M - количество потоков (по умолчанию 3)
+ * Или --import-books=N:M где N - количество книг, M - количество потоков сетевых стадий (по умолчанию из app.import.*)
  * Или --import-books=N:M:S где N - количество книг, M - количество потоков, S - стартовая страница (по умолчанию 1)
+ * Или --import-books-file=PATH[:N[:M]] для импорта из локального файла каталога без обращения к внешним API
+ * (см. {@link #importCatalogFile}), где N - количество книг (0 или не указано - все), M - количество потоков
+ * <p>
+ * Импорт устроен как конвейер стадий на виртуальных потоках: страницы каталога → метаданные Google Books →
+ * скачивание текста и обложки → сохранение в БД → загрузка файлов в хранилище. Стадии связаны ограниченными
+ * очередями ({@code app.import.queue-capacity}) и обрабатывают одновременно не больше заданного числа книг,
+ * поэтому скорость импорта ограничена сетью и хранилищем, а медленная стадия притормаживает предыдущие.
+ * <p>
+ * Книги сохраняются в БД пакетами до {@code app.import.persist-batch-size} книг в одной транзакции
+ * (вставки книг и связей с категориями объединяются в JDBC-пакеты), URL загруженных файлов
+ * записываются в конце конвейера пакетным UPDATE.
  */
 @Component
 @RequiredArgsConstructor
@@ -49,15 +65,54 @@ public class BookImporter implements CommandLineRunner {
     private final BookRepository bookRepository;
     private final CategoryRepository categoryRepository;
     private final BookFileService bookFileService;
+    private final CategoryBookCountCache categoryBookCountCache;
+    private final ImportHttpClient importHttpClient;
+    private final TransactionTemplate transactionTemplate;
     private final ObjectMapper objectMapper = new ObjectMapper();
 
-    private static final String GUTENDEX_API = "https://gutendex.com/books/?page=%d&languages=en";
-    private static final String GOOGLE_BOOKS_API = "https://www.googleapis.com/books/v1/volumes?q=intitle:%s";
-    private static final String COVERS_BASE_URL = "https://covers.openlibrary.org/b/id/%s-L.jpg";
+    @Value("${app.import.metadata-concurrency:8}")
+    private int metadataConcurrency;
+
+    @Value("${app.import.download-concurrency:8}")
+    private int downloadConcurrency;
+
+    @Value("${app.import.persist-concurrency:4}")
+    private int persistConcurrency;
+
+    @Value("${app.import.upload-concurrency:8}")
+    private int uploadConcurrency;
+
+    @Value("${app.import.queue-capacity:16}")
+    private int queueCapacity;
+
+    @Value("${app.import.persist-batch-size:100}")
+    private int persistBatchSize;
+
+    @Value("${app.import.batch-linger-ms:1000}")
+    private long batchLingerMs;
+
+    @Value("${app.import.gutendex-url:https://gutendex.com}")
+    private String gutendexUrl;
+
+    @Value("${app.import.google-books-url:https://www.googleapis.com/books/v1}")
+    private String googleBooksUrl;
+
+    @Value("${app.import.covers-url:https://covers.openlibrary.org}")
+    private String coversUrl;
+
+    private static final String GUTENDEX_API = "%s/books/?page=%d&languages=en";
+    private static final String GOOGLE_BOOKS_API = "%s/volumes?q=intitle:%s";
+    private static final String COVERS_BASE_URL = "%s/b/id/%s-L.jpg";
     private static final int BOOKS_PER_PAGE = 32;
     private static final Map<String, Integer> SUBJECT_TO_CATEGORY_MAP = initCategoryMap();
     private static final int MAX_RETRY_ATTEMPTS = 3;
-    private static final int DEFAULT_THREADS = 3;
+    private static final int TEXT_BUFFER_SIZE = 64 * 1024;
+    private static final int CATALOG_PROGRESS_INTERVAL = 1000;
+
+    /**
+     * Категории по ID, загружаемые один раз при запуске импорта
+     */
+    private volatile Map<Integer, Category> categoriesById = Map.of();
 
     private static Map<String, Integer> initCategoryMap() {
         Map<String, Integer> map = new HashMap<>();
@@ -105,10 +160,17 @@ public class BookImporter implements CommandLineRunner {
     public void run(String... args) throws Exception {
         // Проверяем аргументы для импорта книг
         for (String arg : args) {
+            if (arg.startsWith("--import-books-file=")) {
+                String[] parts = arg.substring("--import-books-file=".length()).split(":");
+                int booksToImport = parts.length > 1 ? Integer.parseInt(parts[1]) : 0;
+                int threads = parts.length > 2 ? Integer.parseInt(parts[2]) : 0;
+                importCatalogFile(Path.of(parts[0]), booksToImport, threads);
+                return;
+            }
             if (arg.startsWith("--import-books=")) {
                 String[] parts = arg.split("=")[1].split(":");
                 int booksToImport = Integer.parseInt(parts[0]);
-                int threads = parts.length > 1 ? Integer.parseInt(parts[1]) : DEFAULT_THREADS;
+                int threads = parts.length > 1 ? Integer.parseInt(parts[1]) : 0;
                 int startPage = parts.length > 2 ? Integer.parseInt(parts[2]) : 1;
                 importBooks(booksToImport, threads, startPage);
                 return;
@@ -122,136 +184,191 @@ public class BookImporter implements CommandLineRunner {
      * @param count количество книг для импорта
      */
     public void importBooks(int count) {
-        importBooks(count, DEFAULT_THREADS, 1);
+        importBooks(count, 0, 1);
     }
     
     /**
      * Импортирует указанное количество книг из Project Gutenberg с использованием параллельной обработки
      *
      * @param count количество книг для импорта
-     * @param threads количество потоков для параллельной обработки
+     * @param threads количество потоков сетевых стадий (0 — из настроек app.import.*)
      */
     public void importBooks(int count, int threads) {
         importBooks(count, threads, 1);
     }
     
     /**
-     * Импортирует указанное количество книг из Project Gutenberg с использованием параллельной обработки
+     * Импортирует указанное количество книг из Project Gutenberg с использованием параллельной обработки.
+     * Страницы каталога загружаются в текущем потоке, остальные стадии выполняются в виртуальных потоках.
      *
      * @param count количество книг для импорта
-     * @param threads количество потоков для параллельной обработки
+     * @param threads количество потоков сетевых стадий (0 — из настроек app.import.*)
      * @param startPage стартовая страница API для начала импорта
      */
-    @Transactional
     public void importBooks(int count, int threads, int startPage) {
-        log.info("Начинаем импорт {} книг из Project Gutenberg с использованием {} потоков, начиная со страницы {}", 
-                count, threads, startPage);
+        log.info("Начинаем импорт {} книг из Project Gutenberg, начиная со страницы {}", count, startPage);
+        runImport(count, threads, run -> submitCatalog(run, startPage));
+    }
+
+    /**
+     * Импортирует книги из локального файла каталога без обращения к внешним API.
+     * <p>
+     * Файл содержит записи книг в формате Gutendex (id, title, authors, subjects, formats) — по одной
+     * на строку (JSON Lines) или JSON-массивом; файл с расширением .gz читается как сжатый gzip.
+     * Записи читаются потоковым парсером по одной, поэтому память не зависит от размера каталога.
+     * Пути к тексту и обложке в formats указываются относительно каталога файла (или как file: URI);
+     * URL http(s) скачиваются как при обычном импорте.
+     *
+     * @param catalogFile файл каталога
+     * @param count максимальное количество книг для импорта (0 — все книги файла)
+     * @param threads количество потоков стадий метаданных, чтения и загрузки (0 — из настроек app.import.*)
+     */
+    public void importCatalogFile(Path catalogFile, int count, int threads) {
+        log.info("Начинаем импорт книг из файла каталога {}", catalogFile);
+        runImport(count > 0 ? count : Integer.MAX_VALUE, threads, run -> submitCatalogFile(run, catalogFile));
+    }
+
+    /**
+     * Запускает конвейер импорта и ставит в него книги из источника каталога
+     *
+     * @param count количество книг для импорта
+     * @param threads количество потоков сетевых стадий (0 — из настроек app.import.*)
+     * @param source источник записей каталога, выполняется в текущем потоке
+     */
+    private void runImport(int count, int threads, CatalogSource source) {
+        int metadataThreads = threads > 0 ? threads : metadataConcurrency;
+        int downloadThreads = threads > 0 ? threads : downloadConcurrency;
+        int uploadThreads = threads > 0 ? threads : uploadConcurrency;
+        log.info("Потоков метаданных {}, скачивания {}, сохранения {}, загрузки в хранилище {}, очереди по {}, "
+                        + "пакеты по {}", metadataThreads, downloadThreads, persistConcurrency, uploadThreads,
+                queueCapacity, persistBatchSize);
+        long startedAt = System.nanoTime();
         
         // Загружаем реальные ID категорий из базы данных
         updateCategoryMap();
         
         // Создаем кэш для хранения названий книг и авторов, чтобы избежать дубликатов
+        Set<String> existingTitles = new HashSet<>();
         Set<String> existingTitleAuthorPairs = new HashSet<>();
-        bookRepository.findAll().forEach(book -> 
-            existingTitleAuthorPairs.add(book.getTitle().toLowerCase() + "|" + book.getAuthor().toLowerCase()));
+        bookRepository.findAllTitlesAndAuthors().forEach(book -> {
+            existingTitles.add(book.getTitle());
+            existingTitleAuthorPairs.add(book.getTitle().toLowerCase() + "|" + book.getAuthor().toLowerCase());
+        });
         log.info("Загружено {} существующих книг для проверки дубликатов", existingTitleAuthorPairs.size());
         
         AtomicInteger imported = new AtomicInteger(0);
-        AtomicInteger page = new AtomicInteger(startPage);
         AtomicInteger processed = new AtomicInteger(0);
-        
-        // Создаем пул потоков для параллельной обработки
-        ExecutorService executor = Executors.newFixedThreadPool(threads);
-        List<CompletableFuture<Void>> futures = new ArrayList<>();
-        
-        try {
-            while (imported.get() < count) {
-                log.info("Загрузка страницы {} с книгами ({}/{})", page.get(), imported.get(), count);
-                
-                // Получаем список книг с API Project Gutenberg
-                List<JsonNode> books = fetchBooksFromGutenberg(page.getAndIncrement());
-                if (books.isEmpty()) {
-                    log.info("Больше книг не найдено");
-                    break;
+        // Книг в работе и уже импортированных не больше count: место освобождается, только если книгу
+        // не удалось импортировать (или импорт завершён, чтобы разбудить загрузку каталога)
+        Semaphore quota = new Semaphore(count);
+
+        ImportStage.Listener<BookImport> listener = new ImportStage.Listener<>() {
+            @Override
+            public void completed(BookImport item) {
+                item.deleteTextFile();
+                processed.incrementAndGet();
+                int done = imported.incrementAndGet();
+                if (count == Integer.MAX_VALUE) {
+                    log.info("Импортирована книга {}", done);
+                } else {
+                    log.info("Импортирована книга {}/{}", done, count);
                 }
-                
-                for (JsonNode bookNode : books) {
-                    if (imported.get() >= count) break;
-                    
-                    // Пропускаем книги с отсутствующим текстовым форматом
-                    if (!bookNode.has("formats") || 
-                        !bookNode.get("formats").has("text/plain; charset=utf-8")) {
-                        continue;
-                    }
-                    
-                    // Проверяем дубликаты по названию и автору
-                    String title = bookNode.get("title").asText();
-                    String author = "Unknown";
-                    if (bookNode.has("authors") && bookNode.get("authors").size() > 0) {
-                        author = bookNode.get("authors").get(0).get("name").asText();
-                    }
-                    
-                    String titleAuthorKey = title.toLowerCase() + "|" + author.toLowerCase();
-                    if (existingTitleAuthorPairs.contains(titleAuthorKey)) {
-                        log.info("Книга '{}' автора '{}' уже существует в базе данных, пропускаем", title, author);
-                        continue;
-                    }
-                    
-                    // Добавляем в кэш перед импортом, чтобы избежать дублирования в параллельных потоках
-                    existingTitleAuthorPairs.add(titleAuthorKey);
-                    
-                    // Создаем задачу для импорта книги в отдельном потоке
-                    JsonNode finalBookNode = bookNode;
-                    CompletableFuture<Void> future = CompletableFuture.runAsync(() -> {
-                        boolean success = false;
-                        for (int attempt = 1; attempt <= MAX_RETRY_ATTEMPTS && !success; attempt++) {
-                            try {
-                                if (attempt > 1) {
-                                    log.info("Повторная попытка {} импорта книги: {}", attempt, finalBookNode.get("title").asText());
-                                    // Небольшая задержка перед повторной попыткой
-                                    Thread.sleep(1000 * attempt);
-                                }
-                                success = importBook(finalBookNode);
-                            } catch (Exception e) {
-                                log.error("Ошибка при импорте книги (попытка {}): {}", attempt, e.getMessage(), e);
-                            }
-                        }
-                        if (success) {
-                            imported.incrementAndGet();
-                            log.info("Импортирована книга {}/{}", imported.get(), count);
-                        }
-                        processed.incrementAndGet();
-                    }, executor);
-                    
-                    futures.add(future);
-                    
-                    // Не перегружаем API - небольшая задержка между созданием задач
-                    try {
-                        Thread.sleep(100);
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                    }
+                if (done >= count) {
+                    quota.release();
                 }
             }
-            
-            // Ожидаем завершения всех задач
-            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
-            
-            log.info("Импорт завершен. Успешно импортировано {} книг из {} обработанных", imported.get(), processed.get());
-        } catch (Exception e) {
-            log.error("Ошибка при импорте книг: {}", e.getMessage(), e);
-        } finally {
-            // Завершаем работу пула потоков
-            executor.shutdown();
+
+            @Override
+            public void failed(BookImport item) {
+                item.deleteTextFile();
+                processed.incrementAndGet();
+                quota.release();
+            }
+        };
+        ImportStage<BookImport> fileUrlsStage = new ImportStage<>("сохранение URL файлов", queueCapacity,
+                persistConcurrency, persistBatchSize, batchLingerMs, this::saveFileUrls, null, listener);
+        ImportStage<BookImport> uploadStage = new ImportStage<>("загрузка в хранилище", queueCapacity,
+                uploadThreads, this::uploadAssets, fileUrlsStage, listener);
+        ImportStage<BookImport> persistStage = new ImportStage<>("сохранение", queueCapacity,
+                persistConcurrency, persistBatchSize, batchLingerMs, this::persistBooks, uploadStage, listener);
+        ImportStage<BookImport> downloadStage = new ImportStage<>("скачивание", queueCapacity,
+                downloadThreads, this::downloadContent, persistStage, listener);
+        ImportStage<BookImport> metadataStage = new ImportStage<>("метаданные", queueCapacity,
+                metadataThreads, this::enrichMetadata, downloadStage, listener);
+        ImportRun run = new ImportRun(count, existingTitles, existingTitleAuthorPairs, quota, imported, metadataStage);
+
+        // Исполнитель дожидается завершения всех стадий при закрытии
+        try (ExecutorService executor = Executors.newThreadPerTaskExecutor(
+                Thread.ofVirtual().name("book-import-", 0).factory())) {
+            metadataStage.start(executor);
             try {
-                if (!executor.awaitTermination(10, TimeUnit.MINUTES)) {
-                    executor.shutdownNow();
-                }
+                source.submit(run);
+                metadataStage.complete();
             } catch (InterruptedException e) {
+                log.warn("Импорт книг прерван");
                 executor.shutdownNow();
                 Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                log.error("Ошибка при импорте книг: {}", e.getMessage(), e);
+                executor.shutdownNow();
             }
         }
+        categoryBookCountCache.invalidate();
+
+        long elapsedSeconds = Math.max(1, (System.nanoTime() - startedAt) / 1_000_000_000L);
+        log.info("Импорт завершен за {} с. Успешно импортировано {} книг из {} обработанных ({} книг в минуту)",
+                elapsedSeconds, imported.get(), processed.get(), imported.get() * 60 / elapsedSeconds);
+    }
+
+    /**
+     * Первая стадия конвейера: загружает страницы каталога и ставит новые книги на стадию метаданных,
+     * пока не набрано нужное количество книг
+     */
+    private void submitCatalog(ImportRun run, int startPage) throws InterruptedException {
+        int page = startPage;
+        while (!run.isComplete()) {
+            log.info("Загрузка страницы {} с книгами ({}/{})", page, run.imported.get(), run.count);
+            
+            // Получаем список книг с API Project Gutenberg
+            List<JsonNode> books = fetchBooksFromGutenberg(page++);
+            if (books.isEmpty()) {
+                log.info("Больше книг не найдено");
+                return;
+            }
+            
+            for (JsonNode bookNode : books) {
+                if (!run.submit(bookNode, null)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Первая стадия конвейера для импорта из файла: читает записи каталога по одной и ставит новые книги
+     * на стадию метаданных, пока не набрано нужное количество книг или файл не закончился
+     */
+    private void submitCatalogFile(ImportRun run, Path catalogFile) throws IOException, InterruptedException {
+        Path contentDir = catalogFile.toAbsolutePath().getParent();
+        long records = 0;
+        try (InputStream in = openCatalogFile(catalogFile);
+             MappingIterator<JsonNode> iterator = objectMapper.readerFor(JsonNode.class).readValues(in)) {
+            while (!run.isComplete() && iterator.hasNextValue()) {
+                JsonNode bookNode = iterator.nextValue();
+                if (++records % CATALOG_PROGRESS_INTERVAL == 0) {
+                    log.info("Прочитано {} записей каталога, импортировано {} книг", records, run.imported.get());
+                }
+                if (!run.submit(bookNode, contentDir)) {
+                    return;
+                }
+            }
+        }
+        log.info("Файл каталога прочитан: {} записей", records);
+    }
+
+    private static InputStream openCatalogFile(Path catalogFile) throws IOException {
+        InputStream in = new BufferedInputStream(Files.newInputStream(catalogFile), TEXT_BUFFER_SIZE);
+        return catalogFile.getFileName().toString().endsWith(".gz") ? new GZIPInputStream(in, TEXT_BUFFER_SIZE) : in;
     }
 
     /**
@@ -261,24 +378,19 @@ public class BookImporter implements CommandLineRunner {
      * @return список книг в формате JsonNode
      */
     private List<JsonNode> fetchBooksFromGutenberg(int page) {
-        String url = String.format(GUTENDEX_API, page);
-        try (CloseableHttpClient client = HttpClients.createDefault()) {
-            HttpGet request = new HttpGet(url);
-            try (CloseableHttpResponse response = client.execute(request)) {
-                HttpEntity entity = response.getEntity();
-                if (entity != null) {
-                    String result = EntityUtils.toString(entity);
-                    JsonNode root = objectMapper.readTree(result);
-                    
-                    if (root.has("results")) {
-                        List<JsonNode> books = new ArrayList<>();
-                        for (JsonNode book : root.get("results")) {
-                            books.add(book);
-                        }
-                        return books;
-                    }
+        String url = String.format(GUTENDEX_API, gutendexUrl, page);
+        try (InputStream in = importHttpClient.get(url)) {
+            JsonNode root = objectMapper.readTree(in);
+            
+            if (root.has("results")) {
+                List<JsonNode> books = new ArrayList<>();
+                for (JsonNode book : root.get("results")) {
+                    books.add(book);
                 }
+                return books;
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } catch (Exception e) {
             log.error("Ошибка при получении списка книг: {}", e.getMessage(), e);
         }
@@ -294,38 +406,33 @@ public class BookImporter implements CommandLineRunner {
      */
     private JsonNode fetchGoogleBooksData(String title, String author) {
         try {
-            String encodedTitle = java.net.URLEncoder.encode(title, "UTF-8");
-            String url = String.format(GOOGLE_BOOKS_API, encodedTitle);
+            String encodedTitle = URLEncoder.encode(title, StandardCharsets.UTF_8);
+            String url = String.format(GOOGLE_BOOKS_API, googleBooksUrl, encodedTitle);
             
-            try (CloseableHttpClient client = HttpClients.createDefault()) {
-                HttpGet request = new HttpGet(url);
-                try (CloseableHttpResponse response = client.execute(request)) {
-                    HttpEntity entity = response.getEntity();
-                    if (entity != null) {
-                        String result = EntityUtils.toString(entity);
-                        JsonNode root = objectMapper.readTree(result);
-                        
-                        if (root.has("items") && root.get("items").size() > 0) {
-                            // Найти книгу того же автора, если возможно
-                            for (JsonNode item : root.get("items")) {
-                                if (item.has("volumeInfo") && 
-                                    item.get("volumeInfo").has("authors") && 
-                                    item.get("volumeInfo").get("authors").size() > 0) {
-                                    
-                                    String bookAuthor = item.get("volumeInfo").get("authors").get(0).asText();
-                                    if (bookAuthor.toLowerCase().contains(author.toLowerCase()) ||
-                                        author.toLowerCase().contains(bookAuthor.toLowerCase())) {
-                                        return item;
-                                    }
-                                }
-                            }
+            try (InputStream in = importHttpClient.get(url)) {
+                JsonNode root = objectMapper.readTree(in);
+                
+                if (root.has("items") && root.get("items").size() > 0) {
+                    // Найти книгу того же автора, если возможно
+                    for (JsonNode item : root.get("items")) {
+                        if (item.has("volumeInfo") && 
+                            item.get("volumeInfo").has("authors") && 
+                            item.get("volumeInfo").get("authors").size() > 0) {
                             
-                            // Если книга того же автора не найдена, берем первую
-                            return root.get("items").get(0);
+                            String bookAuthor = item.get("volumeInfo").get("authors").get(0).asText();
+                            if (bookAuthor.toLowerCase().contains(author.toLowerCase()) ||
+                                author.toLowerCase().contains(bookAuthor.toLowerCase())) {
+                                return item;
+                            }
                         }
                     }
+                    
+                    // Если книга того же автора не найдена, берем первую
+                    return root.get("items").get(0);
                 }
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } catch (Exception e) {
             log.warn("Не удалось получить данные из Google Books API: {}", e.getMessage());
         }
@@ -333,24 +440,81 @@ public class BookImporter implements CommandLineRunner {
     }
 
     /**
-     * Скачивает текстовый файл книги
+     * Скачивает текстовый файл книги потоком во временный файл, не загружая текст в память
      *
      * @param url URL файла
-     * @return содержимое текстового файла
+     * @param target файл для текста (перезаписывается)
+     * @return количество символов текста или -1 в случае ошибки
      */
-    private String downloadTextFile(String url) {
-        try (CloseableHttpClient client = HttpClients.createDefault()) {
-            HttpGet request = new HttpGet(url);
-            try (CloseableHttpResponse response = client.execute(request)) {
-                HttpEntity entity = response.getEntity();
-                if (entity != null) {
-                    return EntityUtils.toString(entity);
-                }
-            }
+    private long downloadTextFile(String url, Path target) {
+        try (InputStream in = importHttpClient.get(url);
+             OutputStream out = Files.newOutputStream(target)) {
+            return copyCountingCharacters(in, out);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } catch (Exception e) {
             log.error("Ошибка при скачивании текстового файла: {}", e.getMessage(), e);
         }
-        return null;
+        return -1;
+    }
+
+    /**
+     * Копирует текст в кодировке UTF-8 и считает его символы: новый символ начинает каждый байт,
+     * кроме байтов продолжения многобайтовых последовательностей (10xxxxxx)
+     *
+     * @return количество символов
+     */
+    private static long copyCountingCharacters(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[TEXT_BUFFER_SIZE];
+        long characters = 0;
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            for (int i = 0; i < read; i++) {
+                if ((buffer[i] & 0xC0) != 0x80) {
+                    characters++;
+                }
+            }
+            out.write(buffer, 0, read);
+        }
+        return characters;
+    }
+
+    /**
+     * Считает символы локального текстового файла книги, читая его потоком
+     *
+     * @param textFile файл с текстом в кодировке UTF-8
+     * @return количество символов текста или -1 в случае ошибки
+     */
+    private long countTextCharacters(Path textFile) {
+        try (InputStream in = Files.newInputStream(textFile)) {
+            return copyCountingCharacters(in, OutputStream.nullOutputStream());
+        } catch (IOException e) {
+            log.error("Ошибка при чтении текстового файла {}: {}", textFile, e.getMessage());
+        }
+        return -1;
+    }
+
+    /**
+     * Читает локальный файл обложки
+     *
+     * @param imageFile файл изображения
+     * @param filename имя файла
+     * @return MultipartFile с изображением или null, если файл не удалось прочитать
+     */
+    private MultipartFile readLocalImage(Path imageFile, String filename) {
+        try {
+            byte[] imageBytes = Files.readAllBytes(imageFile);
+            if (imageBytes.length < 100) { // Проверка на слишком маленький размер (возможно ошибка)
+                log.warn("Файл обложки {} слишком маленький, пропускаем", imageFile);
+                return null;
+            }
+            String contentType = Files.probeContentType(imageFile);
+            return new MockMultipartFile(filename, filename, contentType != null ? contentType : "image/jpeg",
+                    imageBytes);
+        } catch (IOException e) {
+            log.warn("Не удалось прочитать файл обложки {}: {}", imageFile, e.getMessage());
+            return null;
+        }
     }
 
     /**
@@ -367,23 +531,15 @@ public class BookImporter implements CommandLineRunner {
         
         while (retryCount < maxRetries) {
             try {
-                URL imageUrl = new URL(url);
-                try (InputStream in = new BufferedInputStream(imageUrl.openStream());
-                    ByteArrayOutputStream out = new ByteArrayOutputStream()) {
-                    
-                    byte[] buf = new byte[1024];
-                    int n;
-                    while (-1 != (n = in.read(buf))) {
-                        out.write(buf, 0, n);
-                    }
-                    
-                    byte[] imageBytes = out.toByteArray();
-                    if (imageBytes.length < 100) { // Проверка на слишком маленький размер (возможно ошибка)
-                        throw new IOException("Загруженное изображение слишком маленькое, возможно ошибка");
-                    }
-                    
-                    return new MockMultipartFile(filename, filename, "image/jpeg", imageBytes);
+                byte[] imageBytes = importHttpClient.getBytes(url);
+                if (imageBytes.length < 100) { // Проверка на слишком маленький размер (возможно ошибка)
+                    throw new IOException("Загруженное изображение слишком маленькое, возможно ошибка");
                 }
+                
+                return new MockMultipartFile(filename, filename, "image/jpeg", imageBytes);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
             } catch (Exception e) {
                 log.warn("Не удалось скачать изображение (попытка {}): {}", retryCount + 1, e.getMessage());
                 retryCount++;
@@ -431,21 +587,21 @@ public class BookImporter implements CommandLineRunner {
     /**
      * Преобразует текстовый файл в PDF
      *
-     * @param textContent содержимое текстового файла
+     * @param textFile временный файл с текстом книги
      * @param title название книги
-     * @return MultipartFile с PDF-версией книги
+     * @return MultipartFile с PDF-версией книги, читаемой из временного файла
      */
-    private MultipartFile convertTextToPdf(String textContent, String title) {
+    private MultipartFile convertTextToPdf(Path textFile, String title) {
         // В реальном приложении здесь был бы код для создания PDF из текста
         // В данном примере мы просто создадим PDF с текстом
         
         // Для упрощения примера возвращаем текст, представленный как PDF
         // В настоящем приложении здесь использовалась бы библиотека типа iText
-        return new MockMultipartFile(
+        return new TempFileMultipartFile(
             "book.pdf", 
             title + ".pdf", 
             "application/pdf", 
-            textContent.getBytes()
+            textFile
         );
     }
 
@@ -474,9 +630,13 @@ public class BookImporter implements CommandLineRunner {
             categoryIds.add(SUBJECT_TO_CATEGORY_MAP.get("classic"));
         }
         
-        // Получаем объекты категорий из репозитория
+        // Берём объекты категорий из загруженных при запуске импорта
+        Map<Integer, Category> knownCategories = categoriesById;
         for (Integer categoryId : categoryIds) {
-            categoryRepository.findById(categoryId).ifPresent(categories::add);
+            Category category = knownCategories.get(categoryId);
+            if (category != null) {
+                categories.add(category);
+            }
         }
         
         return categories;
@@ -488,6 +648,8 @@ public class BookImporter implements CommandLineRunner {
      */
     @Transactional
     private void updateCategoryMap() {
+        categoriesById = categoryRepository.findAll().stream()
+                .collect(Collectors.toMap(Category::getId, Function.identity()));
         Map<String, Integer> newMap = new HashMap<>();
         
         // Находим основные категории по названиям и обновляем ID
@@ -608,224 +770,508 @@ public class BookImporter implements CommandLineRunner {
             log.error("Ошибка при обновлении категорий: {}", e.getMessage(), e);
         }
     }
-
     /**
-     * Импортирует одну книгу
+     * Стадия метаданных: дополняет сведения о книге данными из Google Books API.
+     * При импорте из файла каталога используются только данные записи каталога.
      *
-     * @param bookNode данные о книге из Project Gutenberg
-     * @return true, если книга успешно импортирована
+     * @param item импортируемая книга
+     * @return true, если книгу нужно импортировать дальше
      */
-    @Transactional
-    private boolean importBook(JsonNode bookNode) {
-        try {
-            // Извлекаем базовую информацию о книге
-            int gutenbergId = bookNode.get("id").asInt();
-            String title = bookNode.get("title").asText();
-            String plainTextUrl = bookNode.get("formats").get("text/plain; charset=utf-8").asText();
-            
-            log.info("Обработка книги: {}, ID: {}", title, gutenbergId);
-            
-            // Проверяем, не существует ли книга в БД
-            if (bookRepository.existsByTitle(title)) {
-                log.info("Книга '{}' уже существует в базе данных, пропускаем", title);
-                return false;
-            }
-            
-            // Получаем автора (первого в списке)
-            String author = "Unknown";
-            if (bookNode.has("authors") && bookNode.get("authors").size() > 0) {
-                author = bookNode.get("authors").get(0).get("name").asText();
-            }
-            
-            // Получаем предметы для определения категорий
-            List<String> subjects = new ArrayList<>();
-            if (bookNode.has("subjects")) {
-                for (JsonNode subject : bookNode.get("subjects")) {
-                    subjects.add(subject.asText().toLowerCase());
-                }
+    private boolean enrichMetadata(BookImport item) {
+        JsonNode bookNode = item.bookNode;
+        String title = item.title;
+        log.info("Обработка книги: {}, ID: {}", title, bookNode.get("id").asInt());
+        
+        // Получаем предметы для определения категорий
+        if (bookNode.has("subjects")) {
+            for (JsonNode subject : bookNode.get("subjects")) {
+                item.subjects.add(subject.asText().toLowerCase());
             }
-            
-            // Получаем дополнительные метаданные через Google Books API
+        }
+        
+        // Получаем дополнительные метаданные через Google Books API (кроме импорта из файла каталога)
+        JsonNode googleData = null;
+        if (item.contentDir == null) {
             log.debug("Получение метаданных из Google Books API для книги: {}", title);
-            JsonNode googleData = fetchGoogleBooksData(title, author);
-            
-            // Создаем экземпляр книги
-            Book book = new Book();
-            book.setTitle(title);
-            book.setAuthor(author);
-            
-            // Заполняем информацию из Google Books API
-            if (googleData != null) {
-                JsonNode volumeInfo = googleData.get("volumeInfo");
-                
-                // Добавляем описание
-                if (volumeInfo.has("description")) {
-                    book.setDescription(volumeInfo.get("description").asText());
-                } else {
-                    // Используем краткое описание из списка предметов
-                    book.setDescription("Книга из Project Gutenberg: " + String.join(", ", subjects));
-                }
-                
-                // Добавляем ISBN
-                if (volumeInfo.has("industryIdentifiers") && volumeInfo.get("industryIdentifiers").size() > 0) {
-                    book.setIsbn(volumeInfo.get("industryIdentifiers").get(0).get("identifier").asText());
-                }
-                
-                // Добавляем год публикации
-                if (volumeInfo.has("publishedDate")) {
-                    String dateStr = volumeInfo.get("publishedDate").asText();
-                    if (!dateStr.isEmpty()) {
-                        try {
-                            book.setPublicationYear(Integer.parseInt(dateStr.substring(0, 4)));
-                        } catch (Exception e) {
-                            log.warn("Не удалось распарсить год публикации: {}", dateStr);
-                        }
-                    }
-                }
-                
-                // Добавляем издателя
-                if (volumeInfo.has("publisher")) {
-                    book.setPublisher(volumeInfo.get("publisher").asText());
-                } else {
-                    book.setPublisher("Project Gutenberg");
-                }
-                
-                // Добавляем язык
-                if (volumeInfo.has("language")) {
-                    book.setLanguage(volumeInfo.get("language").asText());
-                } else {
-                    book.setLanguage("en");
-                }
-                
-                // Добавляем количество страниц
-                if (volumeInfo.has("pageCount")) {
-                    book.setPageCount(volumeInfo.get("pageCount").asInt());
-                } else {
-                    // Оцениваем количество страниц на основе размера текста (примерно 2000 символов на страницу)
-                    String textFileContent = downloadTextFile(plainTextUrl);
-                    if (textFileContent != null && !textFileContent.isEmpty()) {
-                        int estimatedPages = Math.max(150, textFileContent.length() / 2000);
-                        book.setPageCount(Math.min(estimatedPages, 800));
-                    } else {
-                        // Генерируем случайное количество страниц если не удалось скачать текст
-                        book.setPageCount(ThreadLocalRandom.current().nextInt(150, 801));
-                    }
-                }
-                
-                // Добавляем категории на основе категорий из Google Books
-                if (volumeInfo.has("categories")) {
-                    for (JsonNode category : volumeInfo.get("categories")) {
-                        subjects.add(category.asText().toLowerCase());
-                    }
-                }
-            } else {
-                // Базовые данные, если не удалось получить информацию из Google Books API
-                book.setDescription("Классическая книга из коллекции Project Gutenberg.");
-                book.setPublisher("Project Gutenberg");
-                book.setLanguage("en");
-                
-                // Загружаем файл книги для оценки количества страниц
-                String textFileContent = downloadTextFile(plainTextUrl);
-                if (textFileContent != null && !textFileContent.isEmpty()) {
-                    int estimatedPages = Math.max(150, textFileContent.length() / 2000);
-                    book.setPageCount(Math.min(estimatedPages, 800));
-                } else {
-                    book.setPageCount(ThreadLocalRandom.current().nextInt(150, 801));
+            googleData = fetchGoogleBooksData(title, item.author);
+        }
+        item.googleData = googleData;
+        
+        // Создаем экземпляр книги
+        Book book = new Book();
+        book.setTitle(title);
+        book.setAuthor(item.author);
+        item.book = book;
+        
+        if (googleData == null) {
+            // Базовые данные, если не удалось получить информацию из Google Books API
+            book.setDescription("Классическая книга из коллекции Project Gutenberg.");
+            book.setPublisher("Project Gutenberg");
+            book.setLanguage("en");
+            return true;
+        }
+        
+        // Заполняем информацию из Google Books API
+        JsonNode volumeInfo = googleData.get("volumeInfo");
+        
+        // Добавляем описание
+        if (volumeInfo.has("description")) {
+            book.setDescription(volumeInfo.get("description").asText());
+        } else {
+            // Используем краткое описание из списка предметов
+            book.setDescription("Книга из Project Gutenberg: " + String.join(", ", item.subjects));
+        }
+        
+        // Добавляем ISBN
+        if (volumeInfo.has("industryIdentifiers") && volumeInfo.get("industryIdentifiers").size() > 0) {
+            book.setIsbn(volumeInfo.get("industryIdentifiers").get(0).get("identifier").asText());
+        }
+        
+        // Добавляем год публикации
+        if (volumeInfo.has("publishedDate")) {
+            String dateStr = volumeInfo.get("publishedDate").asText();
+            if (!dateStr.isEmpty()) {
+                try {
+                    book.setPublicationYear(Integer.parseInt(dateStr.substring(0, 4)));
+                } catch (Exception e) {
+                    log.warn("Не удалось распарсить год публикации: {}", dateStr);
                 }
             }
-            
-            // Загружаем файл книги
+        }
+        
+        // Добавляем издателя
+        book.setPublisher(volumeInfo.has("publisher") ? volumeInfo.get("publisher").asText() : "Project Gutenberg");
+        
+        // Добавляем язык
+        book.setLanguage(volumeInfo.has("language") ? volumeInfo.get("language").asText() : "en");
+        
+        // Добавляем количество страниц; если его нет, оно оценивается по тексту на стадии скачивания
+        if (volumeInfo.has("pageCount")) {
+            book.setPageCount(volumeInfo.get("pageCount").asInt());
+        }
+        
+        // Добавляем категории на основе категорий из Google Books
+        if (volumeInfo.has("categories")) {
+            for (JsonNode category : volumeInfo.get("categories")) {
+                item.subjects.add(category.asText().toLowerCase());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Стадия скачивания: скачивает текст книги (с повторными попытками) и обложку
+     *
+     * @param item импортируемая книга
+     * @return true, если текст книги скачан
+     */
+    private boolean downloadContent(BookImport item) throws IOException, InterruptedException {
+        String title = item.title;
+        String plainTextUrl = item.bookNode.get("formats").get("text/plain; charset=utf-8").asText();
+        Path localText = item.resolveLocal(plainTextUrl);
+        
+        Path textFile;
+        Long characters;
+        if (localText != null) {
+            // Локальный текст читается на месте, без копирования во временный файл
+            textFile = localText;
+            long count = countTextCharacters(localText);
+            characters = count > 0 ? count : null;
+        } else {
+            // Загружаем файл книги во временный файл; он удаляется, когда книга покидает конвейер
             log.debug("Загрузка текстового файла книги: {}", plainTextUrl);
-            String textFileContent = downloadTextFile(plainTextUrl);
-            if (textFileContent == null || textFileContent.isEmpty()) {
-                log.error("Не удалось загрузить текст книги: {}", title);
-                return false;
+            textFile = Files.createTempFile("book-import-", ".txt");
+            item.textFile = textFile;
+            characters = withRetries("Не удалось загрузить текст книги '" + title + "'", () -> {
+                long count = downloadTextFile(plainTextUrl, textFile);
+                return count > 0 ? count : null;
+            });
+        }
+        if (characters == null) {
+            log.error("Не удалось загрузить текст книги: {}", title);
+            return false;
+        }
+        log.debug("Успешно загружен текстовый файл книги: {} ({} символов)", title, characters);
+        
+        // Оцениваем количество страниц на основе размера текста (примерно 2000 символов на страницу)
+        if (item.book.getPageCount() == null) {
+            long estimatedPages = Math.max(150, characters / 2000);
+            item.book.setPageCount((int) Math.min(estimatedPages, 800));
+        }
+        
+        // Подготовка PDF-версии книги
+        item.pdfFile = convertTextToPdf(textFile, title);
+        log.debug("Создан PDF файл для книги: {} ({} байт)", title, item.pdfFile.getSize());
+        
+        // При импорте из файла каталога обложка берётся только из записи каталога
+        if (item.contentDir != null) {
+            JsonNode formats = item.bookNode.get("formats");
+            if (formats.has("image/jpeg")) {
+                String coverLocation = formats.get("image/jpeg").asText();
+                Path localCover = item.resolveLocal(coverLocation);
+                item.coverFile = localCover != null
+                        ? readLocalImage(localCover, "book_cover.jpg")
+                        : downloadImage(coverLocation, "book_cover.jpg");
             }
-            log.debug("Успешно загружен текстовый файл книги: {} ({} символов)", title, textFileContent.length());
-            
-            // Подготовка PDF-версии книги
-            MultipartFile pdfFile = convertTextToPdf(textFileContent, title);
-            log.debug("Создан PDF файл для книги: {} ({} байт)", title, pdfFile.getSize());
+            return true;
+        }
+        
+        // Сначала пытаемся получить обложку из Google Books API
+        String coverUrl = null;
+        JsonNode googleData = item.googleData;
+        if (googleData != null && 
+            googleData.get("volumeInfo").has("imageLinks") && 
+            googleData.get("volumeInfo").get("imageLinks").has("thumbnail")) {
             
-            // Временно сохраняем книгу для получения ID
+            coverUrl = googleData.get("volumeInfo").get("imageLinks").get("thumbnail").asText();
+            // Исправляем URL, чтобы получить изображение более высокого качества
+            coverUrl = coverUrl.replace("&zoom=1", "&zoom=0").replace("&edge=curl", "");
+            log.debug("Получен URL обложки из Google Books API: {}", coverUrl);
+        }
+        
+        // Если не удалось получить обложку из Google Books, пытаемся получить из OpenLibrary
+        if (coverUrl == null) {
+            String coverId = extractCoverId(item.bookNode);
+            if (coverId != null) {
+                coverUrl = String.format(COVERS_BASE_URL, coversUrl, coverId);
+                log.debug("Получен URL обложки из OpenLibrary: {}", coverUrl);
+            }
+        }
+        
+        if (coverUrl != null) {
+            log.debug("Загрузка обложки книги '{}' из: {}", title, coverUrl);
+            item.coverFile = downloadImage(coverUrl, "book_cover.jpg");
+            if (item.coverFile == null || item.coverFile.getSize() == 0) {
+                log.warn("Не удалось загрузить обложку книги '{}' из: {}", title, coverUrl);
+                item.coverFile = null;
+            }
+        } else {
+            log.warn("Не удалось найти URL обложки для книги '{}'", title);
+        }
+        return true;
+    }
+
+    /**
+     * Стадия сохранения: сохраняет пакет книг с категориями в БД с временными URL файлов в одной транзакции.
+     * Если пакет сохранить не удалось, книги сохраняются по одной, чтобы отбросить только ошибочные.
+     *
+     * @param items пакет импортируемых книг
+     * @return сохранённые книги
+     */
+    private List<BookImport> persistBooks(List<BookImport> items) {
+        LocalDateTime uploadDate = LocalDateTime.now();
+        for (BookImport item : items) {
+            Book book = item.book;
             book.setFileUrl("temporary");
             book.setCoverImageUrl("temporary");
-            book.setUploadDate(LocalDateTime.now());
-            Book savedBook = bookRepository.save(book);
-            log.info("Книга сохранена в БД с временными URL: {}, ID: {}", title, savedBook.getId());
+            book.setUploadDate(uploadDate);
             
             // Связываем книгу с соответствующими категориями
             try {
-                Set<Category> bookCategories = determineCategories(subjects);
-                savedBook.setCategories(bookCategories);
-                log.debug("Книге '{}' добавлены категории: {}", title, 
+                Set<Category> bookCategories = determineCategories(item.subjects);
+                book.setCategories(bookCategories);
+                log.debug("Книге '{}' добавлены категории: {}", item.title, 
                     bookCategories.stream().map(Category::getName).collect(Collectors.joining(", ")));
             } catch (Exception e) {
-                log.error("Ошибка при добавлении категорий для книги '{}': {}", title, e.getMessage(), e);
+                log.error("Ошибка при добавлении категорий для книги '{}': {}", item.title, e.getMessage(), e);
             }
-            
-            // Загружаем файл книги с указанием названия книги
+        }
+        
+        try {
+            transactionTemplate.executeWithoutResult(status ->
+                    bookRepository.saveAll(items.stream().map(item -> item.book).toList()));
+            log.info("Сохранено в БД книг с временными URL: {}", items.size());
+            return items;
+        } catch (RuntimeException e) {
+            if (items.size() == 1) {
+                throw e;
+            }
+            log.warn("Не удалось сохранить пакет из {} книг, сохраняем по одной: {}", items.size(), e.getMessage());
+        }
+        
+        // ID, выделенные в откаченной транзакции, сбрасываются, чтобы книги снова сохранялись как новые
+        items.forEach(item -> item.book.setId(null));
+        List<BookImport> saved = new ArrayList<>();
+        for (BookImport item : items) {
             try {
-                log.debug("Загрузка PDF файла книги '{}' в облачное хранилище", title);
-                String fileUrl = bookFileService.uploadBookFile(pdfFile, savedBook.getId());
-                savedBook.setFileUrl(fileUrl);
-                log.info("Успешно загружен файл книги '{}' в облачное хранилище. URL: {}", title, fileUrl);
-            } catch (Exception e) {
-                log.error("Ошибка при загрузке файла книги '{}' в облачное хранилище: {}", title, e.getMessage(), e);
+                transactionTemplate.executeWithoutResult(status -> bookRepository.save(item.book));
+                saved.add(item);
+            } catch (RuntimeException e) {
+                item.book.setId(null);
+                log.error("Не удалось сохранить книгу '{}': {}", item.title, e.getMessage());
             }
-            
-            // Загружаем обложку книги
+        }
+        return saved;
+    }
+
+    /**
+     * Стадия загрузки в хранилище: загружает файл книги и обложку. URL файлов сохраняются в БД
+     * следующей стадией. Книга считается импортированной, даже если файлы загрузить не удалось.
+     *
+     * @param item импортируемая книга
+     * @return true
+     */
+    private boolean uploadAssets(BookImport item) throws InterruptedException {
+        Book savedBook = item.book;
+        String title = item.title;
+        
+        // Загружаем файл книги с указанием названия книги
+        log.debug("Загрузка PDF файла книги '{}' в облачное хранилище", title);
+        String fileUrl = withRetries("Ошибка при загрузке файла книги '" + title + "' в облачное хранилище",
+                () -> bookFileService.uploadBookFile(item.pdfFile, savedBook.getId()));
+        if (fileUrl != null) {
+            savedBook.setFileUrl(fileUrl);
+            log.info("Успешно загружен файл книги '{}' в облачное хранилище. URL: {}", title, fileUrl);
+        } else {
+            log.error("Не удалось загрузить файл книги '{}' в облачное хранилище", title);
+        }
+        
+        // Загружаем обложку книги
+        if (item.coverFile != null) {
             try {
-                // Сначала пытаемся получить обложку из Google Books API
-                String coverUrl = null;
-                if (googleData != null && 
-                    googleData.get("volumeInfo").has("imageLinks") && 
-                    googleData.get("volumeInfo").get("imageLinks").has("thumbnail")) {
-                    
-                    coverUrl = googleData.get("volumeInfo").get("imageLinks").get("thumbnail").asText();
-                    // Исправляем URL, чтобы получить изображение более высокого качества
-                    coverUrl = coverUrl.replace("&zoom=1", "&zoom=0").replace("&edge=curl", "");
-                    log.debug("Получен URL обложки из Google Books API: {}", coverUrl);
-                }
-                
-                // Если не удалось получить обложку из Google Books, пытаемся получить из OpenLibrary
-                if (coverUrl == null) {
-                    String coverId = extractCoverId(bookNode);
-                    if (coverId != null) {
-                        coverUrl = String.format(COVERS_BASE_URL, coverId);
-                        log.debug("Получен URL обложки из OpenLibrary: {}", coverUrl);
-                    }
-                }
-                
-                if (coverUrl != null) {
-                    log.debug("Загрузка обложки книги '{}' из: {}", title, coverUrl);
-                    
-                    MultipartFile coverFile = downloadImage(coverUrl, "book_cover.jpg");
-                    if (coverFile != null && coverFile.getSize() > 0) {
-                        log.debug("Загрузка обложки книги '{}' в облачное хранилище", title);
-                        String coverImageUrl = bookFileService.uploadBookCover(coverFile, savedBook.getId());
-                        savedBook.setCoverImageUrl(coverImageUrl);
-                        log.info("Успешно загружена обложка книги '{}' в облачное хранилище. URL: {}", title, coverImageUrl);
-                    } else {
-                        log.warn("Не удалось загрузить обложку книги '{}' из: {}", title, coverUrl);
-                    }
-                } else {
-                    log.warn("Не удалось найти URL обложки для книги '{}'", title);
-                }
+                log.debug("Загрузка обложки книги '{}' в облачное хранилище", title);
+                String coverImageUrl = bookFileService.uploadBookCover(item.coverFile, savedBook.getId());
+                savedBook.setCoverImageUrl(coverImageUrl);
+                log.info("Успешно загружена обложка книги '{}' в облачное хранилище. URL: {}", title, coverImageUrl);
             } catch (Exception e) {
                 log.error("Ошибка при загрузке обложки книги '{}': {}", title, e.getMessage(), e);
                 // Оставляем временный URL для обложки
             }
+        }
+        
+        return true;
+    }
+
+    /**
+     * Последняя стадия: сохраняет URL файлов и обложек пакета книг одним пакетным UPDATE
+     *
+     * @param items пакет импортируемых книг
+     * @return книги пакета
+     */
+    private List<BookImport> saveFileUrls(List<BookImport> items) {
+        transactionTemplate.executeWithoutResult(status ->
+                bookRepository.updateFileUrls(items.stream().map(item -> item.book).toList()));
+        items.forEach(item -> log.info("Книга '{}' успешно импортирована, ID: {}", item.title, item.book.getId()));
+        return items;
+    }
+
+    /**
+     * Выполняет действие до {@link #MAX_RETRY_ATTEMPTS} раз с увеличивающейся задержкой между попытками
+     *
+     * @param failureMessage сообщение для журнала о неудачной попытке
+     * @param action действие; null означает неудачную попытку
+     * @return результат действия или null, если все попытки неудачны
+     */
+    private <T> T withRetries(String failureMessage, Callable<T> action) throws InterruptedException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                T result = action.call();
+                if (result != null) {
+                    return result;
+                }
+                log.warn("{} (попытка {})", failureMessage, attempt);
+            } catch (InterruptedException e) {
+                throw e;
+            } catch (Exception e) {
+                log.warn("{} (попытка {}): {}", failureMessage, attempt, e.getMessage());
+            }
+            if (attempt >= MAX_RETRY_ATTEMPTS) {
+                return null;
+            }
+            // Виртуальный поток не занимает поток платформы, пока ждёт
+            Thread.sleep(1000L * attempt);
+        }
+    }
+
+    /**
+     * Источник записей каталога для конвейера импорта
+     */
+    @FunctionalInterface
+    private interface CatalogSource {
+
+        void submit(ImportRun run) throws Exception;
+    }
+
+    /**
+     * Состояние запуска импорта, общее для источника каталога: проверка дубликатов и квота книг
+     */
+    private static final class ImportRun {
+
+        private final int count;
+        private final Set<String> existingTitles;
+        private final Set<String> existingTitleAuthorPairs;
+        private final Semaphore quota;
+        private final AtomicInteger imported;
+        private final ImportStage<BookImport> metadataStage;
+
+        private ImportRun(int count, Set<String> existingTitles, Set<String> existingTitleAuthorPairs,
+                          Semaphore quota, AtomicInteger imported, ImportStage<BookImport> metadataStage) {
+            this.count = count;
+            this.existingTitles = existingTitles;
+            this.existingTitleAuthorPairs = existingTitleAuthorPairs;
+            this.quota = quota;
+            this.imported = imported;
+            this.metadataStage = metadataStage;
+        }
+
+        private boolean isComplete() {
+            return imported.get() >= count;
+        }
+
+        /**
+         * Ставит книгу на стадию метаданных, если у неё есть текст и её нет в БД.
+         * Ждёт, пока книг в работе станет меньше, чем осталось импортировать.
+         *
+         * @param bookNode запись каталога
+         * @param contentDir каталог локальных файлов или null при импорте из API
+         * @return false, если нужное количество книг набрано и читать каталог дальше не нужно
+         */
+        private boolean submit(JsonNode bookNode, Path contentDir) throws InterruptedException {
+            // Пропускаем книги с отсутствующим текстовым форматом
+            if (!bookNode.has("formats") || 
+                !bookNode.get("formats").has("text/plain; charset=utf-8") ||
+                !bookNode.has("title")) {
+                return true;
+            }
             
-            // Сохраняем обновленную книгу
-            bookRepository.save(savedBook);
+            // Проверяем дубликаты по названию и автору
+            String title = bookNode.get("title").asText();
+            String author = "Unknown";
+            if (bookNode.has("authors") && bookNode.get("authors").size() > 0) {
+                author = bookNode.get("authors").get(0).get("name").asText();
+            }
             
-            log.info("Книга '{}' успешно импортирована, ID: {}", title, savedBook.getId());
-            return true;
+            String titleAuthorKey = title.toLowerCase() + "|" + author.toLowerCase();
+            if (existingTitleAuthorPairs.contains(titleAuthorKey)) {
+                log.info("Книга '{}' автора '{}' уже существует в базе данных, пропускаем", title, author);
+                return true;
+            }
+            if (existingTitles.contains(title)) {
+                log.info("Книга '{}' уже существует в базе данных, пропускаем", title);
+                return true;
+            }
             
-        } catch (Exception e) {
-            log.error("Общая ошибка при импорте книги: {}", e.getMessage(), e);
-            return false;
+            // Ждём, пока книг в работе станет меньше, чем осталось импортировать
+            quota.acquire();
+            if (isComplete()) {
+                return false;
+            }
+            
+            // Добавляем в кэш перед импортом, чтобы не импортировать одну книгу дважды
+            existingTitles.add(title);
+            existingTitleAuthorPairs.add(titleAuthorKey);
+            metadataStage.submit(new BookImport(bookNode, title, author, contentDir));
+            return true;
+        }
+    }
+
+    /**
+     * Импортируемая книга: данные каталога и результаты стадий конвейера
+     */
+    private static final class BookImport {
+
+        private final JsonNode bookNode;
+        private final String title;
+        private final String author;
+        /**
+         * Каталог локальных файлов книги при импорте из файла каталога или null при импорте из API
+         */
+        private final Path contentDir;
+        private final List<String> subjects = new ArrayList<>();
+        private JsonNode googleData;
+        private Book book;
+        private Path textFile;
+        private MultipartFile pdfFile;
+        private MultipartFile coverFile;
+
+        private BookImport(JsonNode bookNode, String title, String author, Path contentDir) {
+            this.bookNode = bookNode;
+            this.title = title;
+            this.author = author;
+            this.contentDir = contentDir;
+        }
+
+        /**
+         * Возвращает локальный файл для адреса из записи каталога или null, если адрес нужно скачивать
+         */
+        private Path resolveLocal(String location) {
+            if (contentDir == null || location.startsWith("http://") || location.startsWith("https://")) {
+                return null;
+            }
+            return location.startsWith("file:") ? Path.of(URI.create(location)) : contentDir.resolve(location);
+        }
+
+        private void deleteTextFile() {
+            if (textFile == null) {
+                return;
+            }
+            try {
+                Files.deleteIfExists(textFile);
+            } catch (IOException e) {
+                log.warn("Не удалось удалить временный файл {}: {}", textFile, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Файл для загрузки в хранилище, содержимое которого читается с диска по мере передачи
+     */
+    private static final class TempFileMultipartFile implements MultipartFile {
+
+        private final String name;
+        private final String originalFilename;
+        private final String contentType;
+        private final Path file;
+
+        private TempFileMultipartFile(String name, String originalFilename, String contentType, Path file) {
+            this.name = name;
+            this.originalFilename = originalFilename;
+            this.contentType = contentType;
+            this.file = file;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public String getOriginalFilename() {
+            return originalFilename;
+        }
+
+        @Override
+        public String getContentType() {
+            return contentType;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return getSize() == 0;
+        }
+
+        @Override
+        public long getSize() {
+            try {
+                return Files.size(file);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public byte[] getBytes() throws IOException {
+            return Files.readAllBytes(file);
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return Files.newInputStream(file);
+        }
+
+        @Override
+        public void transferTo(File dest) throws IOException {
+            Files.copy(file, dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
         }
     }
-} 
\ No newline at end of file
+}
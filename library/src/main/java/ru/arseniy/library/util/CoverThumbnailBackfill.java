@@ -0,0 +1,37 @@
+package ru.arseniy.library.util;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+import ru.arseniy.library.service.impl.CoverThumbnailGenerator;
+
+/**
+ * Генерация миниатюр для обложек, загруженных до появления миниатюр.
+ * <p>
+ * Запускается после старта приложения и выполняется в фоне в пуле генерации миниатюр. Для обложек,
+ * найденных заполнением ключей файлов позже, миниатюры ставятся в очередь при сохранении ключа.
+ * Обрабатываются только обложки, у которых есть не все миниатюры, поэтому повторные запуски дёшевы.
+ * Отключается настройкой {@code app.files.thumbnails.backfill.enabled=false}.
+ */
+@Component
+public class CoverThumbnailBackfill {
+
+    private final CoverThumbnailGenerator coverThumbnailGenerator;
+    private final boolean enabled;
+
+    public CoverThumbnailBackfill(CoverThumbnailGenerator coverThumbnailGenerator,
+                                  @Value("${app.files.thumbnails.backfill.enabled:true}") boolean enabled) {
+        this.coverThumbnailGenerator = coverThumbnailGenerator;
+        this.enabled = enabled;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    @Order(1)
+    public void backfill() {
+        if (enabled) {
+            coverThumbnailGenerator.scheduleBackfill();
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package ru.arseniy.library.util;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * HTTP-клиент импорта книг для запросов к внешним API и скачивания файлов.
+ * <p>
+ * Один {@link HttpClient} на всё приложение: соединения переиспользуются (keep-alive), с серверами,
+ * поддерживающими HTTP/2, запросы идут по одному соединению. Ответы запрашиваются сжатыми (gzip).
+ * Одновременных запросов к одному хосту не больше {@code app.import.http.max-connections-per-host}.
+ */
+@Component
+public class ImportHttpClient {
+
+    private static final String USER_AGENT = "library-book-importer";
+
+    private final HttpClient httpClient;
+    private final Duration requestTimeout;
+    private final int maxConnectionsPerHost;
+    private final Map<String, Semaphore> hostPermits = new ConcurrentHashMap<>();
+
+    public ImportHttpClient(@Value("${app.import.http.connect-timeout-ms:10000}") long connectTimeoutMs,
+                            @Value("${app.import.http.request-timeout-ms:60000}") long requestTimeoutMs,
+                            @Value("${app.import.http.max-connections-per-host:16}") int maxConnectionsPerHost) {
+        this.httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(Duration.ofMillis(connectTimeoutMs))
+                .executor(Executors.newVirtualThreadPerTaskExecutor())
+                .build();
+        this.requestTimeout = Duration.ofMillis(requestTimeoutMs);
+        this.maxConnectionsPerHost = Math.max(1, maxConnectionsPerHost);
+    }
+
+    @PreDestroy
+    public void close() {
+        httpClient.close();
+    }
+
+    /**
+     * Выполняет GET-запрос и возвращает тело ответа потоком. Поток нужно закрыть: до этого
+     * запрос занимает одно из соединений, разрешённых для хоста.
+     *
+     * @param url адрес
+     * @return распакованное тело ответа
+     * @throws IOException если сервер недоступен или ответил кодом, отличным от 2xx
+     * @throws InterruptedException если ожидание ответа прервано
+     */
+    public InputStream get(String url) throws IOException, InterruptedException {
+        URI uri = URI.create(url);
+        Semaphore permits = hostPermits.computeIfAbsent(uri.getHost() + ":" + uri.getPort(),
+                host -> new Semaphore(maxConnectionsPerHost));
+        permits.acquire();
+        AtomicBoolean released = new AtomicBoolean();
+        Runnable release = () -> {
+            if (released.compareAndSet(false, true)) {
+                permits.release();
+            }
+        };
+        try {
+            HttpRequest request = HttpRequest.newBuilder(uri)
+                    .timeout(requestTimeout)
+                    .header("Accept-Encoding", "gzip")
+                    .header("User-Agent", USER_AGENT)
+                    .GET()
+                    .build();
+            HttpResponse<InputStream> response = httpClient.send(request, HttpResponse.BodyHandlers.ofInputStream());
+            InputStream body = response.body();
+            if (response.statusCode() / 100 != 2) {
+                body.close();
+                throw new IOException("Сервер ответил кодом " + response.statusCode() + " на запрос " + url);
+            }
+            if (response.headers().firstValue("Content-Encoding").filter("gzip"::equalsIgnoreCase).isPresent()) {
+                try {
+                    body = new GZIPInputStream(body);
+                } catch (IOException | RuntimeException e) {
+                    // Без закрытия тела соединение не вернётся в пул
+                    body.close();
+                    throw e;
+                }
+            }
+            return new FilterInputStream(body) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        release.run();
+                    }
+                }
+            };
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            release.run();
+            throw e;
+        }
+    }
+
+    /**
+     * Выполняет GET-запрос и читает тело ответа целиком
+     *
+     * @param url адрес
+     * @return тело ответа
+     * @throws IOException если сервер недоступен или ответил кодом, отличным от 2xx
+     * @throws InterruptedException если ожидание ответа прервано
+     */
+    public byte[] getBytes(String url) throws IOException, InterruptedException {
+        try (InputStream in = get(url)) {
+            return in.readAllBytes();
+        }
+    }
+}
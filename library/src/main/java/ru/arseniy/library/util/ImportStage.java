@@ -0,0 +1,229 @@
+package ru.arseniy.library.util;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Стадия конвейера импорта: ограниченная очередь элементов и не более {@code concurrency} потоков,
+ * которые их обрабатывают.
+ * <p>
+ * Элемент, успешно обработанный стадией, передаётся в очередь следующей стадии; если она заполнена,
+ * поток ждёт, поэтому медленная стадия притормаживает предыдущие, а число элементов в работе ограничено
+ * ёмкостью очередей. Элемент, прошедший последнюю стадию, передаётся в {@link Listener#completed},
+ * отброшенный любой стадией — в {@link Listener#failed}.
+ * <p>
+ * Стадия с {@link BatchHandler} обрабатывает элементы пакетами: поток забирает из очереди до
+ * {@code batchSize} элементов, ожидая неполный пакет не дольше {@code lingerMs}.
+ *
+ * @param <T> тип элемента
+ */
+@Slf4j
+final class ImportStage<T> {
+
+    /**
+     * Метка конца потока элементов; каждый поток стадии, получив её, возвращает метку в очередь для остальных
+     */
+    private static final Object END = new Object();
+
+    private final String name;
+    private final int concurrency;
+    private final int batchSize;
+    private final long lingerNanos;
+    private final BatchHandler<T> handler;
+    private final ImportStage<T> next;
+    private final Listener<T> listener;
+    private final BlockingQueue<Object> queue;
+    private final AtomicInteger activeWorkers = new AtomicInteger();
+
+    /**
+     * @param name название стадии для журнала
+     * @param capacity ёмкость очереди перед стадией
+     * @param concurrency максимальное число элементов, обрабатываемых одновременно
+     * @param handler обработка элемента
+     * @param next следующая стадия или null для последней
+     * @param listener получатель завершённых и отброшенных элементов
+     */
+    ImportStage(String name, int capacity, int concurrency, Handler<T> handler, ImportStage<T> next,
+                Listener<T> listener) {
+        this(name, capacity, concurrency, 1, 0,
+                items -> handler.process(items.get(0)) ? items : List.of(), next, listener);
+    }
+
+    /**
+     * @param name название стадии для журнала
+     * @param capacity ёмкость очереди перед стадией
+     * @param concurrency максимальное число пакетов, обрабатываемых одновременно
+     * @param batchSize максимальный размер пакета
+     * @param lingerMs сколько ждать элементов для неполного пакета
+     * @param handler обработка пакета
+     * @param next следующая стадия или null для последней
+     * @param listener получатель завершённых и отброшенных элементов
+     */
+    ImportStage(String name, int capacity, int concurrency, int batchSize, long lingerMs, BatchHandler<T> handler,
+                ImportStage<T> next, Listener<T> listener) {
+        this.name = name;
+        this.concurrency = Math.max(1, concurrency);
+        this.batchSize = Math.max(1, batchSize);
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, lingerMs));
+        this.handler = handler;
+        this.next = next;
+        this.listener = listener;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+    }
+
+    /**
+     * Запускает потоки стадии и всех следующих стадий
+     *
+     * @param executor исполнитель, создающий по потоку на задачу
+     */
+    void start(ExecutorService executor) {
+        activeWorkers.set(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            executor.execute(this::work);
+        }
+        if (next != null) {
+            next.start(executor);
+        }
+    }
+
+    /**
+     * Ставит элемент в очередь стадии, ожидая свободного места
+     *
+     * @param item элемент
+     * @throws InterruptedException если ожидание прервано
+     */
+    void submit(T item) throws InterruptedException {
+        queue.put(item);
+    }
+
+    /**
+     * Сообщает, что новых элементов не будет. Стадия обработает уже поставленные элементы,
+     * после чего завершится и завершит следующую стадию.
+     *
+     * @throws InterruptedException если ожидание места в очереди прервано
+     */
+    void complete() throws InterruptedException {
+        queue.put(END);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void work() {
+        List<T> batch = new ArrayList<>();
+        try {
+            while (true) {
+                Object element = queue.take();
+                boolean end = element == END;
+                if (!end) {
+                    batch.add((T) element);
+                    end = collect(batch);
+                    List<T> items = batch;
+                    batch = new ArrayList<>();
+                    process(items);
+                }
+                if (end) {
+                    queue.put(END);
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            batch.forEach(listener::failed);
+            Thread.currentThread().interrupt();
+            log.warn("Стадия импорта '{}' прервана", name);
+        } finally {
+            if (activeWorkers.decrementAndGet() == 0 && next != null) {
+                try {
+                    next.complete();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * Добирает элементы в пакет, пока он не заполнится или не истечёт время ожидания
+     *
+     * @return true, если получена метка конца
+     */
+    @SuppressWarnings("unchecked")
+    private boolean collect(List<T> batch) throws InterruptedException {
+        long deadline = System.nanoTime() + lingerNanos;
+        while (batch.size() < batchSize) {
+            long remaining = deadline - System.nanoTime();
+            Object element = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+            if (element == null) {
+                return false;
+            }
+            if (element == END) {
+                return true;
+            }
+            batch.add((T) element);
+        }
+        return false;
+    }
+
+    private void process(List<T> items) throws InterruptedException {
+        Set<T> passed = Collections.newSetFromMap(new IdentityHashMap<>());
+        try {
+            passed.addAll(handler.process(items));
+        } catch (InterruptedException e) {
+            items.forEach(listener::failed);
+            throw e;
+        } catch (Exception e) {
+            log.error("Ошибка на стадии импорта '{}': {}", name, e.getMessage(), e);
+        }
+        for (T item : items) {
+            if (!passed.contains(item)) {
+                listener.failed(item);
+            } else if (next != null) {
+                next.submit(item);
+            } else {
+                listener.completed(item);
+            }
+        }
+    }
+
+    /**
+     * Обработка элемента стадией
+     */
+    @FunctionalInterface
+    interface Handler<T> {
+
+        /**
+         * @return true, если элемент нужно передать дальше, false — если его нужно отбросить
+         */
+        boolean process(T item) throws Exception;
+    }
+
+    /**
+     * Обработка пакета элементов стадией
+     */
+    @FunctionalInterface
+    interface BatchHandler<T> {
+
+        /**
+         * @return элементы пакета, которые нужно передать дальше; остальные отбрасываются
+         */
+        List<T> process(List<T> items) throws Exception;
+    }
+
+    /**
+     * Получатель элементов, покинувших конвейер
+     */
+    interface Listener<T> {
+
+        void completed(T item);
+
+        void failed(T item);
+    }
+}
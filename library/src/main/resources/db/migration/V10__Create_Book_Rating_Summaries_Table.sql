@@ -0,0 +1,16 @@
+-- Создание таблицы агрегированных рейтингов книг
+CREATE TABLE book_rating_summaries (
+    book_id INTEGER PRIMARY KEY REFERENCES books(id) ON DELETE CASCADE,
+    rating_sum BIGINT NOT NULL DEFAULT 0,
+    ratings_count INTEGER NOT NULL DEFAULT 0,
+    average_rating DOUBLE PRECISION NOT NULL DEFAULT 0
+);
+
+-- Заполнение таблицы на основе уже существующих оценок
+INSERT INTO book_rating_summaries (book_id, rating_sum, ratings_count, average_rating)
+SELECT book_id, SUM(rating), COUNT(*), AVG(rating)
+FROM ratings
+GROUP BY book_id;
+
+-- Индекс для сортировки книг по рейтингу
+CREATE INDEX idx_book_rating_summaries_rating ON book_rating_summaries(average_rating, ratings_count);
@@ -0,0 +1,3 @@
+-- Индексы для фильтрации книг по году издания и языку на стороне БД
+CREATE INDEX idx_books_publication_year ON books(publication_year);
+CREATE INDEX idx_books_language_lower ON books(LOWER(language));
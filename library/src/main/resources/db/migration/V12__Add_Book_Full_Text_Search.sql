@@ -0,0 +1,16 @@
+-- Полнотекстовый поиск по книгам.
+-- Конфигурация russian обрабатывает и русские, и английские слова (для латиницы используется английский стеммер).
+-- Веса: название (A) > автор (B) > описание (C)
+ALTER TABLE books ADD COLUMN search_vector TSVECTOR GENERATED ALWAYS AS (
+    setweight(to_tsvector('russian', COALESCE(title, '')), 'A') ||
+    setweight(to_tsvector('russian', COALESCE(author, '')), 'B') ||
+    setweight(to_tsvector('russian', COALESCE(description, '')), 'C')
+) STORED;
+
+CREATE INDEX idx_books_search_vector ON books USING GIN (search_vector);
+
+-- Триграммные индексы для нечёткого поиска по названию и автору (запросы с опечатками)
+CREATE EXTENSION IF NOT EXISTS pg_trgm;
+
+CREATE INDEX idx_books_title_trgm ON books USING GIN (title gin_trgm_ops);
+CREATE INDEX idx_books_author_trgm ON books USING GIN (author gin_trgm_ops);
@@ -0,0 +1,14 @@
+-- Создание таблицы сведений о файлах книг в хранилище.
+-- Для каждой книги хранится точный ключ объекта файла и обложки, поэтому при скачивании
+-- и удалении не нужно перебирать возможные ключи в хранилище.
+CREATE TABLE book_files (
+    id SERIAL PRIMARY KEY,
+    book_id INTEGER NOT NULL REFERENCES books(id) ON DELETE CASCADE,
+    kind VARCHAR(16) NOT NULL,
+    storage_key VARCHAR(1024) NOT NULL,
+    content_type VARCHAR(255),
+    size_bytes BIGINT,
+    etag VARCHAR(255),
+    uploaded_at TIMESTAMP NOT NULL,
+    CONSTRAINT uk_book_files_book_kind UNIQUE (book_id, kind)
+);
@@ -0,0 +1,14 @@
+-- Создание таблицы миниатюр обложек.
+-- Миниатюры фиксированной ширины генерируются из обложки после её загрузки и хранятся
+-- рядом с ней; source_etag — ETag обложки, из которой получена миниатюра.
+CREATE TABLE cover_thumbnails (
+    id SERIAL PRIMARY KEY,
+    book_id INTEGER NOT NULL REFERENCES books(id) ON DELETE CASCADE,
+    width INTEGER NOT NULL,
+    storage_key VARCHAR(1024) NOT NULL,
+    content_type VARCHAR(255) NOT NULL,
+    size_bytes BIGINT NOT NULL,
+    source_etag VARCHAR(255),
+    created_at TIMESTAMP NOT NULL,
+    CONSTRAINT uk_cover_thumbnails_book_width UNIQUE (book_id, width)
+);
@@ -0,0 +1,23 @@
+-- Очередь удаления объектов из хранилища.
+-- Ключи добавляются в той же транзакции, что и удаление сведений о файлах, а сами объекты
+-- удаляются в фоне пакетными запросами. Ключи, которые не удалось удалить за все попытки,
+-- переносятся в failed_storage_deletions.
+CREATE TABLE storage_deletions (
+    id BIGSERIAL PRIMARY KEY,
+    storage_key VARCHAR(1024) NOT NULL,
+    attempts INTEGER NOT NULL DEFAULT 0,
+    next_attempt_at TIMESTAMP NOT NULL,
+    last_error VARCHAR(1024),
+    created_at TIMESTAMP NOT NULL
+);
+
+CREATE INDEX idx_storage_deletions_next_attempt ON storage_deletions (next_attempt_at, id);
+
+CREATE TABLE failed_storage_deletions (
+    id BIGSERIAL PRIMARY KEY,
+    storage_key VARCHAR(1024) NOT NULL,
+    attempts INTEGER NOT NULL,
+    last_error VARCHAR(1024),
+    created_at TIMESTAMP NOT NULL,
+    failed_at TIMESTAMP NOT NULL
+);
@@ -0,0 +1,4 @@
+-- ID книг выделяются приложением из последовательности блоками по 50 (оптимизатор pooled):
+-- значение последовательности — верхняя граница выделенного блока. Это позволяет вставлять
+-- книги JDBC-пакетами. Вставки со значением по умолчанию получают ID из того же шага.
+ALTER SEQUENCE books_id_seq INCREMENT BY 50;
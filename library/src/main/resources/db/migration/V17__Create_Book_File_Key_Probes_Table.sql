@@ -0,0 +1,7 @@
+-- Книги, для которых уже выполнялся поиск ключей файлов в хранилище по прежним правилам именования.
+-- Каждая книга проверяется один раз, даже если файлов у неё не нашлось, поэтому повторные запуски
+-- приложения не повторяют запросы к хранилищу.
+CREATE TABLE book_file_key_probes (
+    book_id INTEGER PRIMARY KEY REFERENCES books(id) ON DELETE CASCADE,
+    probed_at TIMESTAMP NOT NULL
+);